@@ -0,0 +1,151 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.lang.reflect.Method;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.BiConsumer;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+
+import org.dreamlinx.engine.error.DatabaseException;
+
+/**
+ * Bind a column of the current row into a field of the Model. The binder is
+ * chosen once per column when the DAO is built: the primitive fields are read
+ * with the primitive getter and set without boxing, failing when the column
+ * is SQL NULL; the other fields are read by the DbColumnReader of their type.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+@FunctionalInterface
+interface DbColumnBinder<M> {
+
+	void bind(ResultSet rs, int index, M model) throws SQLException;
+
+	/**
+	 * Build the binder for the setter of the column type.
+	 *
+	 * @param Method setter
+	 * @param Class<?> type
+	 * @return DbColumnBinder<M>
+	 */
+	@SuppressWarnings("unchecked")
+	static <M> DbColumnBinder<M> of(Method setter, Class<?> type)
+	{
+		if (type.equals(int.class)) {
+			ObjIntConsumer<M> set = DbModelAccessors.accessor(ObjIntConsumer.class, setter);
+			return (rs, i, model) -> {
+				int v = rs.getInt(i);
+				if (rs.wasNull())
+					throw nullColumn(setter, i);
+				set.accept(model, v);
+			};
+		}
+		else if (type.equals(long.class)) {
+			ObjLongConsumer<M> set = DbModelAccessors.accessor(ObjLongConsumer.class, setter);
+			return (rs, i, model) -> {
+				long v = rs.getLong(i);
+				if (rs.wasNull())
+					throw nullColumn(setter, i);
+				set.accept(model, v);
+			};
+		}
+		else if (type.equals(double.class)) {
+			ObjDoubleConsumer<M> set = DbModelAccessors.accessor(ObjDoubleConsumer.class, setter);
+			return (rs, i, model) -> {
+				double v = rs.getDouble(i);
+				if (rs.wasNull())
+					throw nullColumn(setter, i);
+				set.accept(model, v);
+			};
+		}
+		else if (type.equals(float.class)) {
+			FloatSetter<M> set = DbModelAccessors.accessor(FloatSetter.class, setter);
+			return (rs, i, model) -> {
+				float v = rs.getFloat(i);
+				if (rs.wasNull())
+					throw nullColumn(setter, i);
+				set.accept(model, v);
+			};
+		}
+		else if (type.equals(short.class)) {
+			ShortSetter<M> set = DbModelAccessors.accessor(ShortSetter.class, setter);
+			return (rs, i, model) -> {
+				short v = rs.getShort(i);
+				if (rs.wasNull())
+					throw nullColumn(setter, i);
+				set.accept(model, v);
+			};
+		}
+		else if (type.equals(boolean.class)) {
+			BooleanSetter<M> set = DbModelAccessors.accessor(BooleanSetter.class, setter);
+			return (rs, i, model) -> {
+				boolean v = rs.getBoolean(i);
+				if (rs.wasNull())
+					throw nullColumn(setter, i);
+				set.accept(model, v);
+			};
+		}
+
+		BiConsumer<M, Object> set = DbModelAccessors.accessor(BiConsumer.class, setter);
+		try {
+			DbColumnReader<?> reader = DbColumnReaders.get(type);
+			return (rs, i, model) -> set.accept(model, reader.read(rs, i));
+		}
+		catch (DatabaseException e) {
+			// Not supported type fails only if the column is in the result
+			return (rs, i, model) -> {
+				throw e;
+			};
+		}
+	}
+
+	/**
+	 * A primitive field cannot hold the SQL NULL of the column.
+	 */
+	static DatabaseException nullColumn(Method setter, int index)
+	{
+		return new DatabaseException(String.format("Column %d is NULL for the primitive setter '%s' of '%s'.",
+			index, setter.getName(), setter.getDeclaringClass().getName()));
+	}
+
+	@FunctionalInterface
+	interface FloatSetter<M> {
+
+		void accept(M model, float value);
+	}
+
+	@FunctionalInterface
+	interface ShortSetter<M> {
+
+		void accept(M model, short value);
+	}
+
+	@FunctionalInterface
+	interface BooleanSetter<M> {
+
+		void accept(M model, boolean value);
+	}
+}
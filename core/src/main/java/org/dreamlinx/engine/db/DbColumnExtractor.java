@@ -0,0 +1,244 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.lang.reflect.Method;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+import org.apache.commons.lang3.ClassUtils;
+import org.dreamlinx.engine.error.DatabaseException;
+
+/**
+ * Extract a column of the Models into an array, for the bulk operations.
+ * The extractor is built once per column when the DAO is built: the values
+ * are read by the generated getter into primitive arrays when the column
+ * has not null values, and the database collection type is resolved once.
+ * The array of the previous extraction is reused when it has the same size.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+abstract class DbColumnExtractor<M> {
+
+	static final String NUMBER_TYPE = "T_NUMBER_T";
+	static final String VARCHAR_TYPE = "T_VARCHAR2_T";
+	static final String DATE_TYPE = "T_DATE_T";
+
+	private final Class<?> type;
+	private final String dbType;
+
+	DbColumnExtractor(Class<?> type) {
+
+		this.type = type;
+		this.dbType = dbType(type);
+	}
+
+	/**
+	 * Extract the values of the Models into the buffer, if it fits, or into
+	 * a new array.
+	 *
+	 * @param List<M> models
+	 * @param Object buffer
+	 * @return Object
+	 */
+	abstract Object extract(List<M> models, Object buffer);
+
+	/**
+	 * Returns the database collection type of the column.
+	 *
+	 * @return String
+	 * @throws DatabaseException
+	 */
+	String getDbType() throws DatabaseException
+	{
+		if (dbType == null)
+			throw new DatabaseException(
+				"No such Oracle type found for bind the Java type " + type);
+
+		return dbType;
+	}
+
+	/**
+	 * Build the extractor for the getter of the column type.
+	 *
+	 * @param Method getter
+	 * @param Class<?> type
+	 * @return DbColumnExtractor<M>
+	 */
+	@SuppressWarnings("unchecked")
+	static <M> DbColumnExtractor<M> of(Method getter, Class<?> type)
+	{
+		Class<?> ret = getter.getReturnType();
+
+		if (ret.equals(long.class)) {
+			ToLongFunction<M> get = DbModelAccessors.accessor(ToLongFunction.class, getter);
+			return new DbColumnExtractor<M>(type) {
+
+				@Override
+				Object extract(List<M> models, Object buffer)
+				{
+					long[] data = fit(long[].class, buffer, models.size());
+					for (int i = 0; i < data.length; i++)
+						data[i] = get.applyAsLong(models.get(i));
+
+					return data;
+				}
+			};
+		}
+		else if (ret.equals(int.class)) {
+			ToIntFunction<M> get = DbModelAccessors.accessor(ToIntFunction.class, getter);
+			return new DbColumnExtractor<M>(type) {
+
+				@Override
+				Object extract(List<M> models, Object buffer)
+				{
+					int[] data = fit(int[].class, buffer, models.size());
+					for (int i = 0; i < data.length; i++)
+						data[i] = get.applyAsInt(models.get(i));
+
+					return data;
+				}
+			};
+		}
+		else if (ret.equals(double.class)) {
+			ToDoubleFunction<M> get = DbModelAccessors.accessor(ToDoubleFunction.class, getter);
+			return new DbColumnExtractor<M>(type) {
+
+				@Override
+				Object extract(List<M> models, Object buffer)
+				{
+					double[] data = fit(double[].class, buffer, models.size());
+					for (int i = 0; i < data.length; i++)
+						data[i] = get.applyAsDouble(models.get(i));
+
+					return data;
+				}
+			};
+		}
+
+		Function<M, Object> get = DbModelAccessors.accessor(Function.class, getter);
+		if (ret.equals(Long.class) || ret.equals(Integer.class)) {
+			return new DbColumnExtractor<M>(type) {
+
+				@Override
+				Object extract(List<M> models, Object buffer)
+				{
+					long[] data = fit(long[].class, buffer, models.size());
+					for (int i = 0; i < data.length; i++) {
+						Number v = (Number) get.apply(models.get(i));
+						if (v == null)
+							return boxed(get, models, buffer);
+
+						data[i] = v.longValue();
+					}
+
+					return data;
+				}
+			};
+		}
+		else if (ret.equals(Double.class)) {
+			return new DbColumnExtractor<M>(type) {
+
+				@Override
+				Object extract(List<M> models, Object buffer)
+				{
+					double[] data = fit(double[].class, buffer, models.size());
+					for (int i = 0; i < data.length; i++) {
+						Number v = (Number) get.apply(models.get(i));
+						if (v == null)
+							return boxed(get, models, buffer);
+
+						data[i] = v.doubleValue();
+					}
+
+					return data;
+				}
+			};
+		}
+		else if (Date.class.isAssignableFrom(ret)) {
+			return new DbColumnExtractor<M>(type) {
+
+				@Override
+				Object extract(List<M> models, Object buffer)
+				{
+					Object[] data = fit(Object[].class, buffer, models.size());
+					for (int i = 0; i < data.length; i++) {
+						Date v = (Date) get.apply(models.get(i));
+						data[i] = (v == null || v instanceof Timestamp) ? v : new Timestamp(v.getTime());
+					}
+
+					return data;
+				}
+			};
+		}
+
+		return new DbColumnExtractor<M>(type) {
+
+			@Override
+			Object extract(List<M> models, Object buffer)
+			{
+				return boxed(get, models, buffer);
+			}
+		};
+	}
+
+	//
+	// Internal
+	//
+
+	static <M> Object[] boxed(Function<M, Object> get, List<M> models, Object buffer)
+	{
+		Object[] data = fit(Object[].class, buffer, models.size());
+		for (int i = 0; i < data.length; i++)
+			data[i] = get.apply(models.get(i));
+
+		return data;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <A> A fit(Class<A> arrayType, Object buffer, int size)
+	{
+		if (arrayType.isInstance(buffer) && java.lang.reflect.Array.getLength(buffer) == size)
+			return (A) buffer;
+
+		return (A) java.lang.reflect.Array.newInstance(arrayType.getComponentType(), size);
+	}
+
+	private static String dbType(Class<?> type)
+	{
+		Class<?> wrapper = ClassUtils.primitiveToWrapper(type);
+
+		if (Number.class.isAssignableFrom(wrapper) || Boolean.class.equals(wrapper))
+			return NUMBER_TYPE;
+		else if (String.class.equals(wrapper))
+			return VARCHAR_TYPE;
+		else if (Date.class.isAssignableFrom(wrapper))
+			return DATE_TYPE;
+
+		return null;
+	}
+}
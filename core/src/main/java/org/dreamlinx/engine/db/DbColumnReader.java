@@ -0,0 +1,47 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Read the value of a column for a Java type. A reader must use the typed
+ * getter of the result set and return null when the column is SQL NULL.
+ * Custom types are supported by registering a reader in DbColumnReaders,
+ * before the DAO which uses them is built.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+@FunctionalInterface
+public interface DbColumnReader<T> {
+
+	/**
+	 * Read the value of the column at the index of the current row.
+	 *
+	 * @param ResultSet rs
+	 * @param int index
+	 * @return T
+	 * @throws SQLException
+	 */
+	T read(ResultSet rs, int index) throws SQLException;
+}
@@ -0,0 +1,171 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.lang3.Validate;
+import org.dreamlinx.engine.error.DatabaseException;
+
+/**
+ * Registry of the column readers by Java type. A type without an exact
+ * reader is resolved, in registration order, with the first reader whose
+ * type is assignable to it (eg. a Number is read as an Integer).
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public final class DbColumnReaders {
+
+	private static final Map<Class<?>, DbColumnReader<?>> readers = new ConcurrentHashMap<>();
+	private static final Map<Class<?>, DbColumnReader<?>> resolved = new ConcurrentHashMap<>();
+	private static final List<Class<?>> registered = new CopyOnWriteArrayList<>();
+	static {
+		DbColumnReader<Integer> intReader = (rs, i) -> {
+			int v = rs.getInt(i);
+			return rs.wasNull() ? null : v;
+		};
+		DbColumnReader<Long> longReader = (rs, i) -> {
+			long v = rs.getLong(i);
+			return rs.wasNull() ? null : v;
+		};
+		DbColumnReader<Boolean> booleanReader = (rs, i) -> {
+			boolean v = rs.getBoolean(i);
+			return rs.wasNull() ? null : v;
+		};
+		DbColumnReader<Double> doubleReader = (rs, i) -> {
+			double v = rs.getDouble(i);
+			return rs.wasNull() ? null : v;
+		};
+		DbColumnReader<Float> floatReader = (rs, i) -> {
+			float v = rs.getFloat(i);
+			return rs.wasNull() ? null : v;
+		};
+		DbColumnReader<Short> shortReader = (rs, i) -> {
+			short v = rs.getShort(i);
+			return rs.wasNull() ? null : v;
+		};
+
+		put(String.class, ResultSet::getString);
+		put(Integer.class, intReader);
+		put(int.class, intReader);
+		put(Long.class, longReader);
+		put(long.class, longReader);
+		put(Boolean.class, booleanReader);
+		put(boolean.class, booleanReader);
+		put(Double.class, doubleReader);
+		put(double.class, doubleReader);
+		put(Float.class, floatReader);
+		put(float.class, floatReader);
+		put(Short.class, shortReader);
+		put(short.class, shortReader);
+		put(Date.class, (DbColumnReader<Date>) (rs, i) -> {
+			Timestamp ts = rs.getTimestamp(i);
+			return (ts != null) ? new Date(ts.getTime()) : null;
+		});
+		put(Timestamp.class, ResultSet::getTimestamp);
+		put(java.sql.Date.class, ResultSet::getDate);
+		put(Time.class, ResultSet::getTime);
+		put(byte[].class, ResultSet::getBytes);
+		put(InputStream.class, ResultSet::getBinaryStream);
+		put(BigDecimal.class, ResultSet::getBigDecimal);
+		put(Object[].class, (DbColumnReader<Object>) (rs, i) -> {
+			Array arr = rs.getArray(i);
+			return (arr != null) ? arr.getArray() : null;
+		});
+		put(List.class, (DbColumnReader<List<Object>>) (rs, i) -> {
+			Array arr = rs.getArray(i);
+			return (arr != null) ? Arrays.asList((Object[]) arr.getArray()) : null;
+		});
+		put(URL.class, ResultSet::getURL);
+	}
+
+	/**
+	 * Register the reader for the type, replacing the existing one. DAOs
+	 * already built keep the reader resolved at their creation.
+	 *
+	 * @param Class<T> type
+	 * @param DbColumnReader<? extends T> reader
+	 */
+	public static <T> void register(Class<T> type, DbColumnReader<? extends T> reader)
+	{
+		Validate.notNull(type, "type cannot be null");
+		Validate.notNull(reader, "reader cannot be null");
+
+		put(type, reader);
+		resolved.clear();
+	}
+
+	/**
+	 * Returns the reader for the type. Throws exception if the type is not
+	 * supported.
+	 *
+	 * @param Class<T> type
+	 * @return DbColumnReader<T>
+	 * @throws DatabaseException
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> DbColumnReader<T> get(Class<T> type) throws DatabaseException
+	{
+		Validate.notNull(type, "type cannot be null");
+
+		DbColumnReader<?> reader = readers.get(type);
+		if (reader == null && (reader = resolved.get(type)) == null) {
+
+			for (Class<?> readable : registered) {
+				if (type.isAssignableFrom(readable)) {
+					reader = readers.get(readable);
+					resolved.put(type, reader);
+					break;
+				}
+			}
+
+			if (reader == null)
+				throw new DatabaseException(String.format(
+					"Type '%s' not yet supported.", type.getName()));
+		}
+
+		return (DbColumnReader<T>) reader;
+	}
+
+	/**
+	 * A replaced reader keeps the order of its first registration.
+	 */
+	private static synchronized void put(Class<?> type, DbColumnReader<?> reader)
+	{
+		if (readers.put(type, reader) == null)
+			registered.add(type);
+	}
+
+	private DbColumnReaders() {}
+}
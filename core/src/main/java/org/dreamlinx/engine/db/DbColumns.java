@@ -0,0 +1,636 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.Validate;
+import org.dreamlinx.engine.sys.struct.PrimitiveBuffer;
+
+/**
+ * Columnar result of a query, for the analytical jobs which do not need a
+ * Model for each row. The integer columns, and the numeric ones without
+ * scale, are stored as arrays of long, the other numeric ones as arrays of
+ * double and the temporal ones as arrays of long of epoch milliseconds; the
+ * strings are encoded by a dictionary while its size is within the maximum,
+ * beyond it they are stored as they are. The other types are stored as
+ * objects. A NULL value is stored as zero, or null, and marked in the nulls
+ * of the column.
+ * <p>
+ * When direct, the long and double columns are stored off the heap in
+ * direct buffers, released by the garbage collector with the result.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class DbColumns {
+
+	static final int MAX_DICTIONARY_SIZE = 1 << 16;
+	static final int MAX_DIRECT_BYTES = (Integer.MAX_VALUE - 8) & ~ 7;
+
+	private final Map<String, Column> columns;
+	private final int rows;
+
+	DbColumns(Map<String, Column> columns, int rows) {
+
+		this.columns = Collections.unmodifiableMap(columns);
+		this.rows = rows;
+	}
+
+	public int getRowCount()
+	{
+		return rows;
+	}
+
+	public List<String> getColumnNames()
+	{
+		return new ArrayList<>(columns.keySet());
+	}
+
+	/**
+	 * Returns the column by its name, case insensitive.
+	 *
+	 * @param String name
+	 * @return Column
+	 */
+	public Column getColumn(String name)
+	{
+		Column column = columns.get(name.toUpperCase());
+		Validate.notNull(column, "column %s does not exist", name);
+
+		return column;
+	}
+
+	public LongColumn getLongColumn(String name)
+	{
+		return column(name, LongColumn.class);
+	}
+
+	public DoubleColumn getDoubleColumn(String name)
+	{
+		return column(name, DoubleColumn.class);
+	}
+
+	public StringColumn getStringColumn(String name)
+	{
+		return column(name, StringColumn.class);
+	}
+
+	/**
+	 * Sum the values of the numeric column grouped by the values of the
+	 * string column, scanning the codes of its dictionary when encoded.
+	 *
+	 * @param String keyColumn
+	 * @param String valueColumn
+	 * @return Map<String, Double>
+	 */
+	public Map<String, Double> sumBy(String keyColumn, String valueColumn)
+	{
+		StringColumn keys = getStringColumn(keyColumn);
+		Column values = getColumn(valueColumn);
+		Validate.isTrue(values instanceof LongColumn || values instanceof DoubleColumn,
+			"column %s is not numeric", valueColumn);
+
+		Map<String, Double> map = new LinkedHashMap<>();
+		if (keys.isEncoded()) {
+			double[] sums = new double[keys.dictionary.size()];
+			int[] codes = keys.codes.toArray();
+			if (values instanceof LongColumn) {
+				LongColumn v = (LongColumn) values;
+				for (int i = 0; i < rows; i++)
+					sums[codes[i]] += v.get(i);
+			}
+			else {
+				DoubleColumn v = (DoubleColumn) values;
+				for (int i = 0; i < rows; i++)
+					sums[codes[i]] += v.get(i);
+			}
+
+			for (int code = 0; code < sums.length; code++)
+				map.put(keys.dictionary.get(code), sums[code]);
+		}
+		else {
+			for (int i = 0; i < rows; i++) {
+				double value = (values instanceof LongColumn)
+					? ((LongColumn) values).get(i) : ((DoubleColumn) values).get(i);
+				map.merge(keys.get(i), value, Double::sum);
+			}
+		}
+
+		return map;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("DbColumns[rows=%d, columns=%s]", rows, columns);
+	}
+
+	/**
+	 * A column of the result.
+	 */
+	public abstract static class Column {
+
+		final String name;
+		final BitSet nulls = new BitSet();
+		int size;
+
+		Column(String name) {
+
+			this.name = name;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public boolean isNull(int row)
+		{
+			return nulls.get(row);
+		}
+
+		public int size()
+		{
+			return size;
+		}
+
+		abstract void read(ResultSet rs, int index) throws SQLException;
+
+		@Override
+		public String toString()
+		{
+			return getClass().getSimpleName() + "[" + name + "]";
+		}
+	}
+
+	/**
+	 * Column of long values, on the heap or in a direct buffer.
+	 */
+	public static class LongColumn extends Column {
+
+		private final PrimitiveBuffer.OfLong heap;
+		private ByteBuffer direct;
+
+		LongColumn(String name, int capacity, boolean direct) {
+
+			super(name);
+
+			this.heap = direct ? null : new PrimitiveBuffer.OfLong(capacity);
+			this.direct = direct ? allocate(capacity * 8L) : null;
+		}
+
+		public long get(int row)
+		{
+			if (row < 0 || row >= size)
+				throw new IndexOutOfBoundsException(String.format("Row: %d, Size: %d", row, size));
+
+			return (heap != null) ? heap.get(row) : direct.getLong(row << 3);
+		}
+
+		public long sum()
+		{
+			long sum = 0;
+			if (heap != null) {
+				long[] values = heap.toArray();
+				for (int i = 0; i < size; i++)
+					sum += values[i];
+			}
+			else {
+				for (int i = 0; i < size; i++)
+					sum += direct.getLong(i << 3);
+			}
+
+			return sum;
+		}
+
+		/**
+		 * Returns the values in an array on the heap.
+		 *
+		 * @return long[]
+		 */
+		public long[] toArray()
+		{
+			if (heap != null)
+				return heap.stream().toArray();
+
+			long[] values = new long[size];
+			direct.asLongBuffer().get(values, 0, size);
+			return values;
+		}
+
+		public boolean isDirect()
+		{
+			return direct != null;
+		}
+
+		void add(long value)
+		{
+			if (heap != null)
+				heap.add(value);
+			else {
+				direct = ensure(direct, (size + 1) * 8L);
+				direct.putLong(size << 3, value);
+			}
+
+			size++;
+		}
+
+		@Override
+		void read(ResultSet rs, int index) throws SQLException
+		{
+			long value = rs.getLong(index);
+			if (rs.wasNull())
+				nulls.set(size);
+
+			add(value);
+		}
+	}
+
+	/**
+	 * Column of boolean values, as long values of 1 and 0.
+	 */
+	public static class BooleanColumn extends LongColumn {
+
+		BooleanColumn(String name, int capacity, boolean direct) {
+
+			super(name, capacity, direct);
+		}
+
+		@Override
+		void read(ResultSet rs, int index) throws SQLException
+		{
+			boolean value = rs.getBoolean(index);
+			if (rs.wasNull())
+				nulls.set(size);
+
+			add(value ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Column of temporal values, as long values of epoch milliseconds.
+	 */
+	public static class TimeColumn extends LongColumn {
+
+		TimeColumn(String name, int capacity, boolean direct) {
+
+			super(name, capacity, direct);
+		}
+
+		@Override
+		void read(ResultSet rs, int index) throws SQLException
+		{
+			Timestamp value = rs.getTimestamp(index);
+			if (value == null)
+				nulls.set(size);
+
+			add((value != null) ? value.getTime() : 0);
+		}
+	}
+
+	/**
+	 * Column of double values, on the heap or in a direct buffer.
+	 */
+	public static class DoubleColumn extends Column {
+
+		private final PrimitiveBuffer.OfDouble heap;
+		private ByteBuffer direct;
+
+		DoubleColumn(String name, int capacity, boolean direct) {
+
+			super(name);
+
+			this.heap = direct ? null : new PrimitiveBuffer.OfDouble(capacity);
+			this.direct = direct ? allocate(capacity * 8L) : null;
+		}
+
+		public double get(int row)
+		{
+			if (row < 0 || row >= size)
+				throw new IndexOutOfBoundsException(String.format("Row: %d, Size: %d", row, size));
+
+			return (heap != null) ? heap.get(row) : direct.getDouble(row << 3);
+		}
+
+		public double sum()
+		{
+			double sum = 0;
+			if (heap != null) {
+				double[] values = heap.toArray();
+				for (int i = 0; i < size; i++)
+					sum += values[i];
+			}
+			else {
+				for (int i = 0; i < size; i++)
+					sum += direct.getDouble(i << 3);
+			}
+
+			return sum;
+		}
+
+		/**
+		 * Returns the values in an array on the heap.
+		 *
+		 * @return double[]
+		 */
+		public double[] toArray()
+		{
+			if (heap != null)
+				return heap.stream().toArray();
+
+			double[] values = new double[size];
+			direct.asDoubleBuffer().get(values, 0, size);
+			return values;
+		}
+
+		public boolean isDirect()
+		{
+			return direct != null;
+		}
+
+		@Override
+		void read(ResultSet rs, int index) throws SQLException
+		{
+			double value = rs.getDouble(index);
+			if (rs.wasNull())
+				nulls.set(size);
+
+			if (heap != null)
+				heap.add(value);
+			else {
+				direct = ensure(direct, (size + 1) * 8L);
+				direct.putDouble(size << 3, value);
+			}
+
+			size++;
+		}
+	}
+
+	/**
+	 * Column of strings, encoded by a dictionary while its size is within
+	 * the maximum.
+	 */
+	public static class StringColumn extends Column {
+
+		private PrimitiveBuffer.OfInt codes;
+		private List<String> dictionary = new ArrayList<>();
+		private Map<String, Integer> lookup = new HashMap<>();
+		private List<String> values;
+
+		StringColumn(String name, int capacity) {
+
+			super(name);
+
+			this.codes = new PrimitiveBuffer.OfInt(capacity);
+		}
+
+		public String get(int row)
+		{
+			if (row < 0 || row >= size)
+				throw new IndexOutOfBoundsException(String.format("Row: %d, Size: %d", row, size));
+
+			return (codes != null) ? dictionary.get(codes.get(row)) : values.get(row);
+		}
+
+		public boolean isEncoded()
+		{
+			return codes != null;
+		}
+
+		/**
+		 * Returns the code of the row in the dictionary.
+		 *
+		 * @param int row
+		 * @return int
+		 */
+		public int getCode(int row)
+		{
+			Validate.validState(codes != null, "column %s is not encoded", name);
+			return codes.get(row);
+		}
+
+		/**
+		 * Returns the distinct values by their code, or null when the column
+		 * is not encoded.
+		 *
+		 * @return List<String>
+		 */
+		public List<String> getDictionary()
+		{
+			return (codes != null) ? Collections.unmodifiableList(dictionary) : null;
+		}
+
+		@Override
+		void read(ResultSet rs, int index) throws SQLException
+		{
+			String value = rs.getString(index);
+			if (value == null)
+				nulls.set(size);
+
+			if (codes != null) {
+				Integer code = lookup.get(value);
+				if (code == null && dictionary.size() >= MAX_DICTIONARY_SIZE)
+					decode();
+				else {
+					if (code == null) {
+						code = dictionary.size();
+						dictionary.add(value);
+						lookup.put(value, code);
+					}
+
+					codes.add(code);
+					size++;
+					return;
+				}
+			}
+
+			values.add(value);
+			size++;
+		}
+
+		/**
+		 * The cardinality is too high for the dictionary.
+		 */
+		private void decode()
+		{
+			values = new ArrayList<>(Math.max(size * 2, 16));
+			for (int i = 0; i < size; i++)
+				values.add(dictionary.get(codes.get(i)));
+
+			codes = null;
+			dictionary = null;
+			lookup = null;
+		}
+	}
+
+	/**
+	 * Column of the values of the other types.
+	 */
+	public static class ObjectColumn extends Column {
+
+		private final List<Object> values;
+
+		ObjectColumn(String name, int capacity) {
+
+			super(name);
+
+			this.values = new ArrayList<>(capacity);
+		}
+
+		public Object get(int row)
+		{
+			return values.get(row);
+		}
+
+		@Override
+		void read(ResultSet rs, int index) throws SQLException
+		{
+			Object value = rs.getObject(index);
+			if (value == null)
+				nulls.set(size);
+
+			values.add(value);
+			size++;
+		}
+	}
+
+	//
+	// Internal
+	//
+
+	/**
+	 * Read all the rows of the result set into columns by their type.
+	 */
+	static DbColumns read(ResultSet rs, int capacity, boolean direct) throws SQLException
+	{
+		ResultSetMetaData rsmd = rs.getMetaData();
+		Column[] columns = new Column[rsmd.getColumnCount()];
+		Map<String, Column> map = new LinkedHashMap<>();
+
+		for (int i = 0; i < columns.length; i++) {
+			String name = rsmd.getColumnName(i + 1).toUpperCase();
+			columns[i] = column(rsmd, i + 1, name, capacity, direct);
+			map.put(name, columns[i]);
+		}
+
+		int rows = 0;
+		while (rs.next()) {
+			for (int i = 0; i < columns.length; i++)
+				columns[i].read(rs, i + 1);
+
+			rows++;
+		}
+
+		return new DbColumns(map, rows);
+	}
+
+	private static Column column(ResultSetMetaData rsmd, int index, String name, int capacity, boolean direct)
+		throws SQLException
+	{
+		switch (rsmd.getColumnType(index)) {
+			case Types.BIT:
+			case Types.BOOLEAN:
+				return new BooleanColumn(name, capacity, direct);
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return new LongColumn(name, capacity, direct);
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				int precision = rsmd.getPrecision(index);
+				if (rsmd.getScale(index) == 0 && precision > 0 && precision <= 18)
+					return new LongColumn(name, capacity, direct);
+
+				return new DoubleColumn(name, capacity, direct);
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return new DoubleColumn(name, capacity, direct);
+			case Types.DATE:
+			case Types.TIME:
+			case Types.TIMESTAMP:
+			case Types.TIME_WITH_TIMEZONE:
+			case Types.TIMESTAMP_WITH_TIMEZONE:
+				return new TimeColumn(name, capacity, direct);
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+			case Types.LONGNVARCHAR:
+				return new StringColumn(name, capacity);
+			default:
+				return new ObjectColumn(name, capacity);
+		}
+	}
+
+	private <C extends Column> C column(String name, Class<C> type)
+	{
+		Column column = getColumn(name);
+		Validate.isTrue(type.isInstance(column), "column %s is not a %s", name, type.getSimpleName());
+
+		return type.cast(column);
+	}
+
+	/**
+	 * The capacity is a hint, bounded by the maximum of the buffer.
+	 */
+	private static ByteBuffer allocate(long bytes)
+	{
+		int capacity = (int) Math.min(Math.max(bytes, 64), MAX_DIRECT_BYTES);
+		return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+	}
+
+	private static ByteBuffer ensure(ByteBuffer buffer, long bytes)
+	{
+		if (bytes <= buffer.capacity())
+			return buffer;
+
+		if (bytes > MAX_DIRECT_BYTES)
+			throw new IllegalStateException(String.format(
+				"A direct column cannot hold more than %d rows.", MAX_DIRECT_BYTES >> 3));
+
+		long grown = Math.max((long) buffer.capacity() + (buffer.capacity() >> 1), bytes);
+		ByteBuffer larger = allocate(grown);
+
+		ByteBuffer source = buffer.duplicate();
+		source.clear();
+		larger.put(source);
+		larger.clear();
+
+		return larger;
+	}
+}
@@ -20,29 +20,64 @@
 
 package org.dreamlinx.engine.db;
 
+import java.lang.management.ManagementFactory;
+import java.sql.CallableStatement;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.lang3.Validate;
 import org.apache.log4j.Logger;
 import org.dreamlinx.engine.core.Log;
 import org.dreamlinx.engine.error.DatabaseException;
+import org.dreamlinx.engine.fn.MathFn;
+import org.dreamlinx.engine.sys.struct.Histogram;
 
 /**
- * Define a database connection pool.
+ * Define a database connection pool. The pool measures the time waiting
+ * for a connection and the time it is held by each caller, and reports the
+ * connections held past the leak detection threshold with the stack of the
+ * borrower. The metrics are exposed through JMX once registered.
  * 
  * @author Marco Merli <yohji@dreamlinx.org>
  * @since 1.0
  */
-public abstract class DbConnectionPool {
+public abstract class DbConnectionPool implements DbConnectionPoolMXBean {
 
 	private static final Logger logger = Log.getEngineLogger();
+	private static final String MBEAN_NAME = "org.dreamlinx.engine.db:type=DbConnectionPool,name=";
+
 	protected DbProperties properties;
+	protected DbStatementCache statementCache;
+
+	private final Map<Connection, Lease> leases = new ConcurrentHashMap<>();
+	private final Map<String, Histogram> callerHoldTimes = new ConcurrentHashMap<>();
+	private final Histogram borrowWait = new Histogram();
+	private final Histogram holdTime = new Histogram();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong lastLeakCheck = new AtomicLong();
+	private final LongAdder borrowFailures = new LongAdder();
+	private final LongAdder leaks = new LongAdder();
+	private ObjectName mbeanName;
 
 	protected DbConnectionPool(DbProperties properties) {
 
 		this.properties = properties;
+
+		if (properties != null && MathFn.notZero(properties.getStatementCacheSize()))
+			statementCache = new DbStatementCache(properties.getStatementCacheSize());
 	}
 
 	/**
@@ -74,10 +109,87 @@ public abstract class DbConnectionPool {
 	/**
 	 * Open a connection based by xml configurations.
 	 * 
-	 * @return OracleConnection
+	 * @return Connection
+	 * @throws DatabaseException
+	 */
+	public Connection open() throws DatabaseException
+	{
+		return open(null);
+	}
+
+	/**
+	 * Open a connection for the caller, whose holding time is tracked apart.
+	 * The connection must be given back with the close method.
+	 * 
+	 * @param String caller
+	 * @return Connection
+	 * @throws DatabaseException
+	 */
+	public Connection open(String caller) throws DatabaseException
+	{
+		return open(caller, false);
+	}
+
+	/**
+	 * Open a connection for the caller; a connection only for reading can be
+	 * served by a replica of the database.
+	 * 
+	 * @param String caller
+	 * @param boolean readOnly
+	 * @return Connection
+	 * @throws DatabaseException
+	 */
+	public Connection open(String caller, boolean readOnly) throws DatabaseException
+	{
+		long start = System.nanoTime();
+		Connection conn;
+
+		pending.incrementAndGet();
+		try {
+			conn = acquire(readOnly);
+		}
+		catch (DatabaseException | RuntimeException e) {
+			borrowFailures.increment();
+			throw e;
+		}
+		finally {
+			pending.decrementAndGet();
+		}
+
+		long now = System.nanoTime();
+		borrowWait.record(now - start);
+
+		long threshold = leakDetectionThreshold();
+		leases.put(conn, new Lease(now, caller, (threshold > 0) ? new Throwable("Connection borrowed") : null));
+		if (threshold > 0) {
+			long last = lastLeakCheck.get();
+			if (now - last > threshold && lastLeakCheck.compareAndSet(last, now))
+				detectLeaks();
+		}
+
+		return conn;
+	}
+
+	/**
+	 * Borrow a connection of the pool; the pools implement it in place of
+	 * open(), which measures the borrow around it.
+	 * 
+	 * @return Connection
+	 * @throws DatabaseException
+	 */
+	protected abstract Connection acquire() throws DatabaseException;
+
+	/**
+	 * Borrow a connection of the pool, for reading only when requested.
+	 * 
+	 * @param boolean readOnly
+	 * @return Connection
 	 * @throws DatabaseException
 	 */
-	public abstract Connection open() throws DatabaseException;
+	protected Connection acquire(boolean readOnly) throws DatabaseException
+	{
+		return acquire();
+	}
 
 	/**
 	 * Commit over connection if it is opened. Return false in any other
@@ -127,6 +239,94 @@ public abstract class DbConnectionPool {
 		}
 	}
 
+	/**
+	 * Returns the statement cache in use, or null when it is disabled.
+	 * 
+	 * @return DbStatementCache
+	 */
+	public DbStatementCache getStatementCache()
+	{
+		return statementCache;
+	}
+
+	/**
+	 * Prepare the statement of the SQL, reusing the one cached for the
+	 * physical connection when it is possible. It must be given back with
+	 * the release method.
+	 * 
+	 * @param Connection connection
+	 * @param String sql
+	 * @return PreparedStatement
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException
+	{
+		Connection physical = (statementCache != null) ? physical(connection) : null;
+		if (physical == null)
+			return connection.prepareStatement(sql);
+
+		return statementCache.prepareStatement(physical, sql);
+	}
+
+	/**
+	 * Prepare the callable statement of the SQL, reusing the one cached for
+	 * the physical connection when it is possible. It must be given back
+	 * with the release method.
+	 * 
+	 * @param Connection connection
+	 * @param String sql
+	 * @return CallableStatement
+	 * @throws SQLException
+	 */
+	public CallableStatement prepareCall(Connection connection, String sql) throws SQLException
+	{
+		Connection physical = (statementCache != null) ? physical(connection) : null;
+		if (physical == null)
+			return connection.prepareCall(sql);
+
+		return statementCache.prepareCall(physical, sql);
+	}
+
+	/**
+	 * Give back the statement to the cache, or close it when it is not
+	 * cached.
+	 * 
+	 * @param Statement statement
+	 * @throws SQLException
+	 */
+	public void release(Statement statement) throws SQLException
+	{
+		if (statementCache == null || ! statementCache.release(statement))
+			statement.close();
+	}
+
+	/**
+	 * Returns the physical connection behind the pooled one, on which the
+	 * statements are cached. Null disables the statement cache for the
+	 * connection.
+	 * 
+	 * @param Connection connection
+	 * @return Connection
+	 * @throws SQLException
+	 */
+	protected Connection physical(Connection connection) throws SQLException
+	{
+		return null;
+	}
+
+	/**
+	 * Setup the statement so the rows of its result set are read in pages of
+	 * fetch size, instead of being buffered entirely by the driver.
+	 * 
+	 * @param Statement statement
+	 * @param int fetchSize
+	 * @throws SQLException
+	 */
+	public void cursor(Statement statement, int fetchSize) throws SQLException
+	{
+		statement.setFetchSize(fetchSize);
+	}
+
 	/**
 	 * Alter the session with setting value in parameter.
 	 * 
@@ -138,8 +338,8 @@ public abstract class DbConnectionPool {
 		Validate.notBlank(name, " name cannot be null");
 		Validate.notBlank(value, "value cannot be null");
 
-		try (Connection conn = open();
-			Statement stmt = conn.createStatement()) {
+		Connection conn = open();
+		try (Statement stmt = conn.createStatement()) {
 
 			stmt.execute(String.format("SET SESSION %s TO %s", name, value));
 			if (logger.isDebugEnabled())
@@ -148,6 +348,9 @@ public abstract class DbConnectionPool {
 		catch (SQLException e) {
 			throw new DatabaseException(e);
 		}
+		finally {
+			close(conn);
+		}
 	}
 
 	/**
@@ -161,6 +364,11 @@ public abstract class DbConnectionPool {
 	public boolean close(Connection connection) throws DatabaseException
 	{
 		Validate.notNull(connection, "connection cannot be null.");
+
+		Lease lease = leases.remove(connection);
+		if (lease != null)
+			release(lease, System.nanoTime());
+
 		try {
 			if (connection.isClosed())
 				return false;
@@ -174,4 +382,263 @@ public abstract class DbConnectionPool {
 			throw new DatabaseException(e);
 		}
 	}
+
+	//
+	// Metrics
+	//
+
+	/**
+	 * Report the connections held past the leak detection threshold, with
+	 * the stack of their borrower. Each leak is reported once; returns the
+	 * number of the new leaks.
+	 * 
+	 * @return int
+	 */
+	public int detectLeaks()
+	{
+		long threshold = leakDetectionThreshold();
+		if (threshold <= 0)
+			return 0;
+
+		sweep();
+
+		int found = 0;
+		long now = System.nanoTime();
+		for (Entry<Connection, Lease> entry : leases.entrySet()) {
+			Lease lease = entry.getValue();
+			if (lease.reported || now - lease.borrowed <= threshold)
+				continue;
+
+			lease.reported = true;
+			leaks.increment();
+			found++;
+
+			logger.warn(String.format("Connection %s held for %d ms by '%s' is possibly leaked.",
+				entry.getKey(), (now - lease.borrowed) / 1000000, lease.caller), lease.stack);
+		}
+
+		return found;
+	}
+
+	/**
+	 * Returns the histogram of the times in nanoseconds waiting for a
+	 * connection.
+	 * 
+	 * @return Histogram
+	 */
+	public Histogram getBorrowWaitHistogram()
+	{
+		return borrowWait;
+	}
+
+	/**
+	 * Returns the histogram of the times in nanoseconds a connection is held
+	 * by the callers.
+	 * 
+	 * @return Histogram
+	 */
+	public Histogram getHoldTimeHistogram()
+	{
+		return holdTime;
+	}
+
+	/**
+	 * Returns the histogram of the holding times of the caller, or null.
+	 * 
+	 * @param String caller
+	 * @return Histogram
+	 */
+	public Histogram getHoldTimeHistogram(String caller)
+	{
+		return callerHoldTimes.get(caller);
+	}
+
+	@Override
+	public int getActiveCount()
+	{
+		sweep();
+		return leases.size();
+	}
+
+	/**
+	 * Number of the idle connections, or -1 when the pool cannot tell it.
+	 * 
+	 * @return int
+	 */
+	@Override
+	public int getIdleCount()
+	{
+		return - 1;
+	}
+
+	@Override
+	public int getPendingCount()
+	{
+		return pending.get();
+	}
+
+	/**
+	 * Number of the connections lent and of the pending borrowers. It does
+	 * not sweep the connections closed without the pool, so it is cheap
+	 * enough to be read at each borrow.
+	 * 
+	 * @return int
+	 */
+	public int getLoad()
+	{
+		return leases.size() + pending.get();
+	}
+
+	@Override
+	public long getBorrowCount()
+	{
+		return borrowWait.getCount();
+	}
+
+	@Override
+	public long getBorrowFailureCount()
+	{
+		return borrowFailures.sum();
+	}
+
+	@Override
+	public double getBorrowWaitMean()
+	{
+		return borrowWait.getMean() / 1e6;
+	}
+
+	@Override
+	public double getBorrowWait99th()
+	{
+		return borrowWait.getPercentile(99) / 1e6;
+	}
+
+	@Override
+	public double getBorrowWaitMax()
+	{
+		return borrowWait.getMax() / 1e6;
+	}
+
+	@Override
+	public double getHoldTimeMean()
+	{
+		return holdTime.getMean() / 1e6;
+	}
+
+	@Override
+	public double getHoldTimeMax()
+	{
+		return holdTime.getMax() / 1e6;
+	}
+
+	@Override
+	public Map<String, Double> getHoldTimeByCaller()
+	{
+		Map<String, Double> map = new TreeMap<>();
+		for (Entry<String, Histogram> entry : callerHoldTimes.entrySet())
+			map.put(entry.getKey(), entry.getValue().getMean() / 1e6);
+
+		return map;
+	}
+
+	@Override
+	public long getLeakCount()
+	{
+		return leaks.sum();
+	}
+
+	/**
+	 * Register the metrics of the pool on the platform MBean server, with
+	 * the source name of the properties.
+	 */
+	public void registerMBean()
+	{
+		String name = (properties != null && properties.getSourceName() != null)
+			? properties.getSourceName() : getClass().getSimpleName();
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(MBEAN_NAME + ObjectName.quote(name));
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+
+			server.registerMBean(this, objectName);
+			mbeanName = objectName;
+		}
+		catch (Exception e) {
+			logger.warn(String.format("Metrics of the pool '%s' are not registered: %s", name, e.getMessage()));
+		}
+	}
+
+	/**
+	 * Unregister the metrics of the pool from the platform MBean server.
+	 */
+	public void unregisterMBean()
+	{
+		if (mbeanName == null)
+			return;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		}
+		catch (Exception e) {
+			// quiet
+		}
+
+		mbeanName = null;
+	}
+
+	//
+	// Internal
+	//
+
+	private long leakDetectionThreshold()
+	{
+		Integer threshold = (properties != null) ? properties.getLeakDetectionThreshold() : null;
+		return MathFn.notZero(threshold) ? threshold * 1000000L : 0;
+	}
+
+	private void release(Lease lease, long now)
+	{
+		long held = now - lease.borrowed;
+		holdTime.record(held);
+
+		if (lease.caller != null)
+			callerHoldTimes.computeIfAbsent(lease.caller, c -> new Histogram()).record(held);
+	}
+
+	/**
+	 * The connections closed by the callers without the pool are forgotten.
+	 */
+	private void sweep()
+	{
+		for (Iterator<Entry<Connection, Lease>> it = leases.entrySet().iterator(); it.hasNext();) {
+			Entry<Connection, Lease> entry = it.next();
+			try {
+				if (! entry.getKey().isClosed())
+					continue;
+			}
+			catch (SQLException e) {
+				// Discarded
+			}
+
+			it.remove();
+			release(entry.getValue(), System.nanoTime());
+		}
+	}
+
+	private static final class Lease {
+
+		final long borrowed;
+		final String caller;
+		final Throwable stack;
+		volatile boolean reported;
+
+		Lease(long borrowed, String caller, Throwable stack) {
+
+			this.borrowed = borrowed;
+			this.caller = caller;
+			this.stack = stack;
+		}
+	}
 }
@@ -0,0 +1,57 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.util.Map;
+
+/**
+ * Metrics of the connection pool exposed through JMX. The times are in
+ * milliseconds.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public interface DbConnectionPoolMXBean {
+
+	int getActiveCount();
+
+	int getIdleCount();
+
+	int getPendingCount();
+
+	long getBorrowCount();
+
+	long getBorrowFailureCount();
+
+	double getBorrowWaitMean();
+
+	double getBorrowWait99th();
+
+	double getBorrowWaitMax();
+
+	double getHoldTimeMean();
+
+	double getHoldTimeMax();
+
+	Map<String, Double> getHoldTimeByCaller();
+
+	long getLeakCount();
+}
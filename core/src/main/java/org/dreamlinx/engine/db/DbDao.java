@@ -25,24 +25,44 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
-import java.math.BigDecimal;
-import java.net.URL;
 import java.sql.CallableStatement;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
@@ -52,9 +72,13 @@ import org.dreamlinx.engine.core.Log;
 import org.dreamlinx.engine.error.CollisionException;
 import org.dreamlinx.engine.error.DatabaseException;
 import org.dreamlinx.engine.error.InitializationException;
+import org.dreamlinx.engine.fn.MathFn;
 import org.dreamlinx.engine.model.Key;
 import org.dreamlinx.engine.model.Model;
+import org.dreamlinx.engine.sys.Daemon;
+import org.dreamlinx.engine.sys.DaemonPool;
 import org.dreamlinx.engine.sys.struct.AutoCloseableIterator;
+import org.dreamlinx.engine.sys.struct.PrimitiveBuffer;
 
 /**
  * Support for database interaction.
@@ -68,13 +92,28 @@ public abstract class DbDao<M extends Model> {
 	private static final Logger logger = Log.getEngineLogger();
 
 	static final int MAP_INIT_SIZE = 512;
+	static final int MAX_COLUMN_WIDTH = 256;
+	static final int ARRAY_INIT_SIZE = 1024;
+	static final String CACHE_EXPIRY = ".cacheExpiry";
+	static final String CACHE_TAGS = ".cacheTags";
+	static final String PROJECT = ".project";
+	static final Object END = new Object();
+	static final long OFFER_TIMEOUT = 50;
+	static final Pattern SELECT_STAR = Pattern.compile("^(\\s*SELECT\\s+(?:DISTINCT\\s+)?)(\\w+\\.)?\\*(\\s+FROM\\s.*)$",
+		Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
 	static DbConnectionPool connectionPool;
+	static DbExecutor executor;
+	static DbQueryCache queryCache;
+	static final DbQueryMetrics queryMetrics = new DbQueryMetrics(0);
 
 	Class<M> modelClass;
+	Supplier<M> modelFactory;
 	Map<String, Method> columnSetterMapping;
+	Map<String, DbColumnBinder<M>> columnBinders;
 	Map<String, Method> columnGetterMapping;
 	Map<String, Class<?>> columnTypeMapping;
 	Properties sqlQueryMapping;
+	ConcurrentMap<String, DbRowMapper<M>> rowMappers;
 
 	//
 	// Init
@@ -90,9 +129,11 @@ public abstract class DbDao<M extends Model> {
 			// Generic class of the Model
 			ParameterizedType paramType = (ParameterizedType) getClass().getGenericSuperclass();
 			modelClass = (Class<M>) paramType.getActualTypeArguments()[0];
+			modelFactory = DbModelAccessors.constructor(modelClass);
 
 			// Mapping for binding column with setter methods of the Model
 			columnSetterMapping = new LinkedHashMap<>();
+			columnBinders = new LinkedHashMap<>();
 			columnGetterMapping = new LinkedHashMap<>();
 			columnTypeMapping = new LinkedHashMap<>();
 
@@ -120,6 +161,7 @@ public abstract class DbDao<M extends Model> {
 						String name = "set" + StringUtils.capitalize(fld.getName());
 						Method meth = currClass.getMethod(name, columnType);
 						columnSetterMapping.put(columnName, meth);
+						columnBinders.put(columnName, DbColumnBinder.<M> of(meth, columnType));
 
 						// Column getter
 						if (columnType.isAssignableFrom(Boolean.class)
@@ -136,6 +178,9 @@ public abstract class DbDao<M extends Model> {
 				currClass = currClass.getSuperclass();
 			}
 
+			// Mapping plans for each result set shape
+			rowMappers = new ConcurrentHashMap<>();
+
 			// XML queries file
 			String xmlFile = getClass().getPackage().getName() + "." + getClass().getSimpleName();
 			xmlFile = xmlFile.replace(".", "/");
@@ -155,15 +200,69 @@ public abstract class DbDao<M extends Model> {
 
 	public static void init(DbConnectionPool connectionPool) throws DatabaseException
 	{
+		if (DbDao.connectionPool != null)
+			DbDao.connectionPool.unregisterMBean();
+
 		DbDao.connectionPool = connectionPool;
 		DbDao.connectionPool.init();
+		DbDao.connectionPool.registerMBean();
+
+		if (executor != null)
+			executor.shutdown();
+
+		Short poolSize = connectionPool.getProperties().getPoolSize();
+		executor = new DbExecutor(MathFn.notZero(poolSize) ? poolSize : 1);
+
+		Integer cacheSize = connectionPool.getProperties().getQueryCacheSize();
+		queryCache = MathFn.notZero(cacheSize) ? new DbQueryCache(cacheSize) : null;
+
+		Integer slowQueryThreshold = connectionPool.getProperties().getSlowQueryThreshold();
+		queryMetrics.setSlowQueryThreshold(MathFn.notZero(slowQueryThreshold) ? slowQueryThreshold : 0);
+		queryMetrics.setAdaptive(! Boolean.FALSE.equals(connectionPool.getProperties().getAdaptiveSizing()));
+		queryMetrics.setProjectionCheck(Boolean.TRUE.equals(connectionPool.getProperties().getProjectionCheck()));
+		queryMetrics.registerMBean();
 	}
 
 	public static void shutdown() throws DatabaseException
 	{
+		if (executor != null)
+			executor.shutdown();
+
+		queryMetrics.unregisterMBean();
+		DbDao.connectionPool.unregisterMBean();
 		DbDao.connectionPool.shutdown();
 	}
 
+	/**
+	 * Returns the executor of the asynchronous queries.
+	 * 
+	 * @return DbExecutor
+	 */
+	public static DbExecutor getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * Returns the cache of the query results, or null when it is disabled.
+	 * 
+	 * @return DbQueryCache
+	 */
+	public static DbQueryCache getQueryCache()
+	{
+		return queryCache;
+	}
+
+	/**
+	 * Returns the metrics of the queries.
+	 * 
+	 * @return DbQueryMetrics
+	 */
+	public static DbQueryMetrics getQueryMetrics()
+	{
+		return queryMetrics;
+	}
+
 	//
 	// Supplied
 	//
@@ -184,37 +283,43 @@ public abstract class DbDao<M extends Model> {
 			"function outputType must be of Types.OTHER");
 
 		M model = null;
-		Connection conn = connectionPool.open();
+		DbQueryMetrics.Probe probe = probe(function);
+		Connection conn = openReadOnly();
 		CallableStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = conn.prepareCall(function.getFunction());
+			stmt = connectionPool.prepareCall(conn, function.getFunction());
 			stmt.registerOutParameter(1, function.getOutputType());
 
 			function.createArrays(conn);
 			prepareParams(stmt, function.getParameters(), 2);
 			stmt.execute();
+			probe.executed();
 
 			rs = (ResultSet) stmt.getObject(1);
+			fetchSize(rs, probe.fetchSize(fetchHint(null)));
 			if (rs != null && rs.next()) {
 
-				model = queryForModel(rs);
+				model = probe.map(rowMapper(rs), rs);
 
 				if (rs != null && rs.next())
 					throw new IllegalStateException("Function returns more then one row.");
 			}
 		}
 		catch (SQLException e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		catch (Exception e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		finally {
 			function.freeArrays();
 			close(rs, stmt);
-			connectionPool.close(conn);
+			close(conn);
+			probe.close();
 		}
 
 		return model;
@@ -232,33 +337,42 @@ public abstract class DbDao<M extends Model> {
 	{
 		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
 
+		if (isCached(sqlQuery))
+			return queryCache.get(sqlQuery, cacheKind("M:" + modelClass.getName()), q -> queryForModel(q));
+
 		M model = null;
-		Connection conn = connectionPool.open();
-		CallableStatement stmt = null;
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = openReadOnly();
+		PreparedStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = conn.prepareCall(sqlQuery.getQuery());
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			fetchSize(stmt, probe.fetchSize(fetchHint(sqlQuery.getFetchSize())));
 			prepareParams(stmt, sqlQuery.getParameters(), 1);
 
 			rs = stmt.executeQuery();
+			probe.executed();
 			if (rs != null && rs.next()) {
 
-				model = queryForModel(rs);
+				model = probe.map(rowMapper(rs), rs);
 
 				if (rs != null && rs.next())
 					throw new IllegalStateException("SQL query returns more then one row.");
 			}
 		}
 		catch (SQLException e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		catch (Exception e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		finally {
 			close(rs, stmt);
-			connectionPool.close(conn);
+			close(conn);
+			probe.close();
 		}
 
 		return model;
@@ -298,24 +412,28 @@ public abstract class DbDao<M extends Model> {
 			"function outputType must be of Types.OTHER");
 
 		Map<Key, M> map = null;
-		Connection conn = connectionPool.open();
+		DbQueryMetrics.Probe probe = probe(function);
+		Connection conn = openReadOnly();
 		CallableStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = conn.prepareCall(function.getFunction());
+			stmt = connectionPool.prepareCall(conn, function.getFunction());
 			stmt.registerOutParameter(1, function.getOutputType());
 
 			function.createArrays(conn);
 			prepareParams(stmt, function.getParameters(), 2);
 			stmt.execute();
+			probe.executed();
 
 			rs = (ResultSet) stmt.getObject(1);
+			fetchSize(rs, probe.fetchSize(fetchHint(null)));
 			if (rs != null && rs.next()) {
-				map = newMap(size);
+				DbRowMapper<M> mapper = rowMapper(rs);
+				map = newMap(probe.size(size));
 
 				do {
-					M model = queryForModel(rs);
+					M model = probe.map(mapper, rs);
 
 					Key key = model.getKey();
 					if (Engine.isSelfCheckMode())
@@ -328,15 +446,18 @@ public abstract class DbDao<M extends Model> {
 			}
 		}
 		catch (SQLException e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		catch (Exception e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		finally {
 			function.freeArrays();
 			close(rs, stmt);
-			connectionPool.close(conn);
+			close(conn);
+			probe.close();
 		}
 
 		return map;
@@ -374,21 +495,29 @@ public abstract class DbDao<M extends Model> {
 	{
 		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
 
+		if (isCached(sqlQuery))
+			return queryCache.get(sqlQuery, cacheKind("MM:" + modelClass.getName()),
+				q -> unmodifiable(queryForModelMap(q, size)));
+
 		Map<Key, M> map = null;
-		Connection conn = connectionPool.open();
-		CallableStatement stmt = null;
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = openReadOnly();
+		PreparedStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = conn.prepareCall(sqlQuery.getQuery());
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			fetchSize(stmt, probe.fetchSize(fetchHint(sqlQuery.getFetchSize())));
 			prepareParams(stmt, sqlQuery.getParameters(), 1);
 			rs = stmt.executeQuery();
+			probe.executed();
 
 			if (rs != null && rs.next()) {
-				map = newMap(size);
+				DbRowMapper<M> mapper = rowMapper(rs);
+				map = newMap(probe.size(size));
 
 				do {
-					M model = queryForModel(rs);
+					M model = probe.map(mapper, rs);
 
 					Key key = model.getKey();
 					if (Engine.isSelfCheckMode())
@@ -401,19 +530,141 @@ public abstract class DbDao<M extends Model> {
 			}
 		}
 		catch (SQLException e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		catch (Exception e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		finally {
 			close(rs, stmt);
-			connectionPool.close(conn);
+			close(conn);
+			probe.close();
 		}
 
 		return map;
 	}
 
+	/**
+	 * Retrieve a map of Models from a query split in partitions, which are
+	 * executed concurrently on separate connections by the DaemonPool (or in
+	 * sequence, when the pool is not active). The last two parameters of the
+	 * query are bound to the count of partitions and to the partition index,
+	 * as for a hash-mod predicate like "WHERE MOD(ID, ?) = ?". The size is
+	 * the expected size of the whole result.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @param int partitions
+	 * @param Number size
+	 * @return Map<Key, M extends Model>
+	 * @throws DatabaseException
+	 */
+	protected final Map<Key, M> queryForModelMap(DbSQLQuery sqlQuery, int partitions, Number size)
+		throws DatabaseException
+	{
+		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
+
+		return queryForModelMap(i -> {
+			DbSQLQuery query = sqlQuery.copy();
+			query.addParameter("__PARTITIONS", partitions);
+			query.addParameter("__PARTITION", i);
+
+			return query;
+		}, partitions, size);
+	}
+
+	/**
+	 * Retrieve a map of Models from the queries of the partitions, which are
+	 * executed concurrently on separate connections by the DaemonPool (or in
+	 * sequence, when the pool is not active). The partition function returns
+	 * the query of each partition index, as for a range predicate. The size
+	 * is the expected size of the whole result. The Models are in the order
+	 * of the partitions. Within a transaction the partitions are executed in
+	 * sequence on its connection.
+	 * 
+	 * @param IntFunction<DbSQLQuery> partition
+	 * @param int partitions
+	 * @param Number size
+	 * @return Map<Key, M extends Model>
+	 * @throws DatabaseException
+	 */
+	protected final Map<Key, M> queryForModelMap(IntFunction<DbSQLQuery> partition, int partitions, Number size)
+		throws DatabaseException
+	{
+		Validate.notNull(partition, "partition cannot be null");
+		Validate.isTrue(partitions > 0, "partitions must be greater than zero");
+
+		int partSize = (MathFn.notZero(size) ? size.intValue() : MAP_INIT_SIZE) / partitions + 1;
+		List<Map<Key, M>> parts = new ArrayList<>(partitions);
+		for (int i = 0; i < partitions; i++)
+			parts.add(newMap(partSize));
+
+		if (partitions == 1 || ! DaemonPool.isActive() || DbTransaction.current() != null) {
+			for (int i = 0; i < partitions; i++)
+				fillModelMap(partition.apply(i), parts.get(i));
+
+			return mergeModelMaps(parts);
+		}
+
+		List<Future<Void>> futures = new ArrayList<>(partitions);
+		for (int i = 0; i < partitions; i++) {
+			DbSQLQuery query = partition.apply(i);
+			Map<Key, M> part = parts.get(i);
+			String name = String.format("%s#%d", getClass().getSimpleName(), i);
+
+			Daemon<Void> daemon = new Daemon<Void>() {
+
+				{
+					setBreakOnError(true);
+				}
+
+				@Override
+				public Void execute() throws Exception
+				{
+					fillModelMap(query, part);
+					return null;
+				}
+
+				@Override
+				protected String getName()
+				{
+					return name;
+				}
+			};
+
+			futures.add(DaemonPool.startForFuture(daemon));
+		}
+
+		Exception error = null;
+		for (Future<Void> future : futures) {
+			try {
+				if (future != null)
+					future.get();
+				else if (error == null)
+					error = new DatabaseException("Daemon pool is terminated.");
+			}
+			catch (ExecutionException e) {
+				if (error == null)
+					error = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (error == null)
+					error = e;
+			}
+		}
+
+		if (error instanceof DatabaseException)
+			throw (DatabaseException) error;
+		if (error instanceof RuntimeException)
+			throw (RuntimeException) error;
+		if (error != null)
+			throw new DatabaseException(error);
+
+		return mergeModelMaps(parts);
+	}
+
 	/**
 	 * Retrieve a list of Models from a function.
 	 * 
@@ -443,38 +694,45 @@ public abstract class DbDao<M extends Model> {
 			"function outputType must be of Types.OTHER");
 
 		List<M> list = null;
-		Connection conn = connectionPool.open();
+		DbQueryMetrics.Probe probe = probe(function);
+		Connection conn = openReadOnly();
 		CallableStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = conn.prepareCall(function.getFunction());
+			stmt = connectionPool.prepareCall(conn, function.getFunction());
 			stmt.registerOutParameter(1, function.getOutputType());
 
 			function.createArrays(conn);
 			prepareParams(stmt, function.getParameters(), 2);
 			stmt.execute();
+			probe.executed();
 
 			rs = (ResultSet) stmt.getObject(1);
+			fetchSize(rs, probe.fetchSize(fetchHint(null)));
 			if (rs != null && rs.next()) {
-				list = newList(size);
+				DbRowMapper<M> mapper = rowMapper(rs);
+				list = newList(probe.size(size));
 
 				do {
-					list.add(queryForModel(rs));
+					list.add(probe.map(mapper, rs));
 				}
 				while (rs.next());
 			}
 		}
 		catch (SQLException e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		catch (Exception e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		finally {
 			function.freeArrays();
 			close(rs, stmt);
-			connectionPool.close(conn);
+			close(conn);
+			probe.close();
 		}
 
 		return list;
@@ -505,34 +763,45 @@ public abstract class DbDao<M extends Model> {
 	{
 		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
 
+		if (isCached(sqlQuery))
+			return queryCache.get(sqlQuery, cacheKind("ML:" + modelClass.getName()),
+				q -> unmodifiable(queryForModelList(q, size)));
+
 		List<M> list = null;
-		Connection conn = connectionPool.open();
-		CallableStatement stmt = null;
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = openReadOnly();
+		PreparedStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = conn.prepareCall(sqlQuery.getQuery());
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			fetchSize(stmt, probe.fetchSize(fetchHint(sqlQuery.getFetchSize())));
 
 			prepareParams(stmt, sqlQuery.getParameters(), 1);
 			rs = stmt.executeQuery();
+			probe.executed();
 			if (rs != null && rs.next()) {
-				list = newList(size);
+				DbRowMapper<M> mapper = rowMapper(rs);
+				list = newList(probe.size(size));
 
 				do {
-					list.add(queryForModel(rs));
+					list.add(probe.map(mapper, rs));
 				}
 				while (rs.next());
 			}
 		}
 		catch (SQLException e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		catch (Exception e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		finally {
 			close(rs, stmt);
-			connectionPool.close(conn);
+			close(conn);
+			probe.close();
 		}
 
 		return list;
@@ -557,25 +826,32 @@ public abstract class DbDao<M extends Model> {
 			"function outputType must be of Types.OTHER");
 
 		AutoCloseableIterator<M> it = null;
-		Connection conn = connectionPool.open();
+		DbQueryMetrics.Probe probe = probe(function);
+		Connection conn = openReadOnly();
 		CallableStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = conn.prepareCall(function.getFunction());
+			stmt = connectionPool.prepareCall(conn, function.getFunction());
 			stmt.registerOutParameter(1, function.getOutputType());
 
 			function.createArrays(conn);
 			prepareParams(stmt, function.getParameters(), 2);
 			stmt.execute();
+			probe.executed();
 
 			rs = (ResultSet) stmt.getObject(1);
-			it = new ResultSetIterator(conn, stmt, rs);
+			fetchSize(rs, probe.fetchSize(fetchHint(null)));
+			it = new ResultSetIterator(conn, stmt, rs, probe);
 		}
 		catch (SQLException e) {
+			probe.failed();
+			probe.close();
 			throw new DatabaseException(e);
 		}
 		catch (Exception e) {
+			probe.failed();
+			probe.close();
 			throw new DatabaseException(e);
 		}
 
@@ -597,27 +873,203 @@ public abstract class DbDao<M extends Model> {
 	{
 		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
 
-		Connection conn = connectionPool.open();
-		CallableStatement stmt = null;
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = openReadOnly();
+		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		AutoCloseableIterator<M> it = null;
 		try {
-			stmt = conn.prepareCall(sqlQuery.getQuery());
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			fetchSize(stmt, probe.fetchSize(fetchHint(sqlQuery.getFetchSize())));
 
 			prepareParams(stmt, sqlQuery.getParameters(), 1);
 			rs = stmt.executeQuery();
-			it = new ResultSetIterator(conn, stmt, rs);
+			probe.executed();
+			it = new ResultSetIterator(conn, stmt, rs, probe);
 		}
 		catch (SQLException e) {
+			probe.failed();
+			probe.close();
 			throw new DatabaseException(e);
 		}
 		catch (Exception e) {
+			probe.failed();
+			probe.close();
 			throw new DatabaseException(e);
 		}
 
 		return it;
 	}
 
+	/**
+	 * Retrieve an iterator of Models from a function, read and mapped ahead
+	 * by a producer thread into a buffer of the given depth, so the fetch
+	 * of the rows overlaps their processing. Closing the iterator cancels
+	 * the producer and its statement; a failure of the producer is thrown
+	 * by the iterator after the rows read before it. Within a transaction,
+	 * or with a depth of zero, the rows are read by the caller.
+	 * 
+	 * @param DbFunction function
+	 * @param int depth
+	 * @return AutoCloseableIterator<M extends Model>
+	 * @throws DatabaseException
+	 */
+	protected final AutoCloseableIterator<M> queryForModelIterator(DbFunction function, int depth)
+		throws DatabaseException
+	{
+		Validate.isTrue(depth >= 0, "depth cannot be negative");
+
+		return prefetch(queryForModelIterator(function), depth);
+	}
+
+	/**
+	 * Retrieve an iterator of Models from a query, read and mapped ahead by
+	 * a producer thread into a buffer of the given depth, so the fetch of
+	 * the rows overlaps their processing. Closing the iterator cancels the
+	 * producer and its statement; a failure of the producer is thrown by the
+	 * iterator after the rows read before it. Within a transaction, or with
+	 * a depth of zero, the rows are read by the caller.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @param int depth
+	 * @return AutoCloseableIterator<M extends Model>
+	 * @throws DatabaseException
+	 */
+	protected final AutoCloseableIterator<M> queryForModelIterator(DbSQLQuery sqlQuery, int depth)
+		throws DatabaseException
+	{
+		Validate.isTrue(depth >= 0, "depth cannot be negative");
+
+		return prefetch(queryForModelIterator(sqlQuery), depth);
+	}
+
+	/**
+	 * Retrieve an iterator of Models from a query paginated by key, which
+	 * holds a connection only while a page is read. The query must select
+	 * the rows after the key parameter, ordered by the key, as in
+	 * 'SELECT * FROM T WHERE ID > ? ORDER BY ID'; its initial value is the
+	 * lower bound of the first page. Each page is read in at most pageSize
+	 * rows, and the next page is selected after the key of the last Model
+	 * of the page. When prefetch, the next page is read by the executor
+	 * while the current one is consumed, outside of any transaction.
+	 * <p>
+	 * The rows changed between the pages are seen by the following pages,
+	 * unlike with a single cursor.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @param String keyParameter
+	 * @param Function<M, ?> key
+	 * @param int pageSize
+	 * @param boolean prefetch
+	 * @return AutoCloseableIterator<M extends Model>
+	 * @throws DatabaseException
+	 */
+	protected final AutoCloseableIterator<M> queryForModelPages(DbSQLQuery sqlQuery, String keyParameter,
+		Function<M, ?> key, int pageSize, boolean prefetch) throws DatabaseException
+	{
+		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
+		Validate.notNull(key, "key cannot be null");
+		Validate.isTrue(sqlQuery.getParameters().containsKey(keyParameter),
+			"sqlQuery has not the key parameter %s", keyParameter);
+		Validate.isTrue(pageSize > 0, "pageSize must be greater than zero");
+
+		KeysetIterator it = new KeysetIterator(sqlQuery, keyParameter, key, pageSize,
+			prefetch && DbTransaction.current() == null);
+		it.page = queryForPage(sqlQuery, pageSize);
+		it.prefetch();
+
+		return it;
+	}
+
+	/**
+	 * Retrieve a lazily populated stream of Models from a function. The rows
+	 * are fetched in pages of the configured fetch size while the stream is
+	 * consumed; the connection is released when the stream is exhausted or
+	 * closed. The stream must be used in a try-with-resources statement.
+	 * 
+	 * @param DbFunction function
+	 * @return Stream<M extends Model>
+	 * @throws DatabaseException
+	 */
+	protected final Stream<M> queryForModelStream(DbFunction function) throws DatabaseException
+	{
+		Validate.notNull(function, "function cannot be null");
+		Validate.notNull(function.getOutputType(), "function outputType cannot be null");
+		Validate.isTrue(function.getOutputType().equals(Types.OTHER),
+			"function outputType must be of Types.OTHER");
+
+		DbQueryMetrics.Probe probe = probe(function);
+		Connection conn = openReadOnly();
+		CallableStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = connectionPool.prepareCall(conn, function.getFunction());
+			stmt.registerOutParameter(1, function.getOutputType());
+
+			function.createArrays(conn);
+			prepareParams(stmt, function.getParameters(), 2);
+			stmt.execute();
+			probe.executed();
+
+			rs = (ResultSet) stmt.getObject(1);
+			fetchSize(rs, probe.fetchSize(fetchHint(null)));
+
+			ResultSetSpliterator it = new ResultSetSpliterator(conn, stmt, rs, probe);
+			return StreamSupport.stream(it, false).onClose(it::close);
+		}
+		catch (Exception e) {
+			probe.failed();
+			probe.close();
+			close(rs, stmt);
+			close(conn);
+			throw new DatabaseException(e);
+		}
+		finally {
+			function.freeArrays();
+		}
+	}
+
+	/**
+	 * Retrieve a lazily populated stream of Models from a query. Fields of
+	 * SQL SELECT must match with the DbColumnName of the Model. The rows are
+	 * fetched in pages of the configured fetch size while the stream is
+	 * consumed; the connection is released when the stream is exhausted or
+	 * closed. The stream must be used in a try-with-resources statement.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @return Stream<M extends Model>
+	 * @throws DatabaseException
+	 */
+	protected final Stream<M> queryForModelStream(DbSQLQuery sqlQuery) throws DatabaseException
+	{
+		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
+
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = openReadOnly();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			fetchSize(stmt, probe.fetchSize(fetchHint(sqlQuery.getFetchSize())));
+
+			prepareParams(stmt, sqlQuery.getParameters(), 1);
+			rs = stmt.executeQuery();
+			probe.executed();
+
+			ResultSetSpliterator it = new ResultSetSpliterator(conn, stmt, rs, probe);
+			return StreamSupport.stream(it, false).onClose(it::close);
+		}
+		catch (Exception e) {
+			probe.failed();
+			probe.close();
+			close(rs, stmt);
+			close(conn);
+			throw new DatabaseException(e);
+		}
+	}
+
 	/**
 	 * Retrieve an object from a function. The object type returned is of the
 	 * type provided as parameter. The query must returns only a row and the
@@ -638,25 +1090,29 @@ public abstract class DbDao<M extends Model> {
 			"function outputType cannot be of Types.OTHER");
 
 		T object = null;
-		Connection conn = connectionPool.open();
+		DbQueryMetrics.Probe probe = probe(function);
+		Connection conn = openReadOnly();
 		CallableStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = conn.prepareCall(function.getFunction());
+			stmt = connectionPool.prepareCall(conn, function.getFunction());
 			stmt.registerOutParameter(1, function.getOutputType());
 
 			prepareParams(stmt, function.getParameters(), 2);
 			stmt.execute();
+			probe.executed();
 
 			object = (T) stmt.getObject(1);
 		}
 		catch (SQLException e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		finally {
 			close(rs, stmt);
-			connectionPool.close(conn);
+			close(conn);
+			probe.close();
 		}
 
 		return object;
@@ -672,36 +1128,44 @@ public abstract class DbDao<M extends Model> {
 	 * @return T
 	 * @throws DatabaseException
 	 */
-	@SuppressWarnings("unchecked")
 	protected final <T> T queryForObject(DbSQLQuery sqlQuery, Class<T> objectType) throws DatabaseException
 	{
 		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
 		Validate.notNull(objectType, "objectType cannot be null");
 
+		if (isCached(sqlQuery))
+			return queryCache.get(sqlQuery, cacheKind("O:" + objectType.getName()),
+				q -> queryForObject(q, objectType));
+
 		T object = null;
-		Connection conn = connectionPool.open();
-		CallableStatement stmt = null;
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = openReadOnly();
+		PreparedStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = conn.prepareCall(sqlQuery.getQuery());
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			fetchSize(stmt, probe.fetchSize(fetchHint(sqlQuery.getFetchSize())));
 
 			prepareParams(stmt, sqlQuery.getParameters(), 1);
 			rs = stmt.executeQuery();
+			probe.executed();
 
 			if (rs != null && rs.next()) {
-				object = (T) getObject(rs, 1, objectType);
+				object = probe.read(DbColumnReaders.get(objectType), rs);
 
 				if (rs != null && rs.next())
 					throw new IllegalStateException("SQL query returns more then one row.");
 			}
 		}
 		catch (SQLException e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		finally {
 			close(rs, stmt);
-			connectionPool.close(conn);
+			close(conn);
+			probe.close();
 		}
 
 		return object;
@@ -716,7 +1180,6 @@ public abstract class DbDao<M extends Model> {
 	 * @return List<T>
 	 * @throws DatabaseException
 	 */
-	@SuppressWarnings("unchecked")
 	protected final <T> List<T> queryForObjectList(DbFunction function, Class<T> objectType) throws DatabaseException
 	{
 		Validate.notNull(function, "function cannot be null");
@@ -726,33 +1189,39 @@ public abstract class DbDao<M extends Model> {
 			"function outputType cannot be of Types.OTHER");
 
 		List<T> list = null;
-		Connection conn = connectionPool.open();
+		DbQueryMetrics.Probe probe = probe(function);
+		Connection conn = openReadOnly();
 		CallableStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = conn.prepareCall(function.getFunction());
+			stmt = connectionPool.prepareCall(conn, function.getFunction());
 			stmt.registerOutParameter(1, function.getOutputType());
 
 			prepareParams(stmt, function.getParameters(), 2);
 			stmt.execute();
+			probe.executed();
 
 			rs = (ResultSet) stmt.getObject(1);
+			fetchSize(rs, probe.fetchSize(fetchHint(null)));
 			if (rs != null && rs.next()) {
-				list = new LinkedList<>();
+				DbColumnReader<T> reader = DbColumnReaders.get(objectType);
+				list = newList(probe.size(null));
 
 				do {
-					list.add((T) getObject(rs, 1, objectType));
+					list.add(probe.read(reader, rs));
 				}
 				while (rs.next());
 			}
 		}
 		catch (SQLException e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		finally {
 			close(rs, stmt);
-			connectionPool.close(conn);
+			close(conn);
+			probe.close();
 		}
 
 		return list;
@@ -767,134 +1236,570 @@ public abstract class DbDao<M extends Model> {
 	 * @return List<T>
 	 * @throws DatabaseException
 	 */
-	@SuppressWarnings("unchecked")
 	protected final <T> List<T> queryForObjectList(DbSQLQuery sqlQuery, Class<T> objectType) throws DatabaseException
 	{
 		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
 		Validate.notNull(objectType, "objectType cannot be null");
 
+		if (isCached(sqlQuery))
+			return queryCache.get(sqlQuery, cacheKind("OL:" + objectType.getName()),
+				q -> unmodifiable(queryForObjectList(q, objectType)));
+
 		List<T> list = null;
-		Connection conn = connectionPool.open();
-		CallableStatement stmt = null;
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = openReadOnly();
+		PreparedStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = conn.prepareCall(sqlQuery.getQuery());
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			fetchSize(stmt, probe.fetchSize(fetchHint(sqlQuery.getFetchSize())));
 
 			prepareParams(stmt, sqlQuery.getParameters(), 1);
 			rs = stmt.executeQuery();
+			probe.executed();
 
 			if (rs != null && rs.next()) {
-				list = new LinkedList<>();
+				DbColumnReader<T> reader = DbColumnReaders.get(objectType);
+				list = newList(probe.size(null));
 
 				do {
-					list.add((T) getObject(rs, 1, objectType));
+					list.add(probe.read(reader, rs));
 				}
 				while (rs.next());
 			}
 		}
 		catch (SQLException e) {
+			probe.failed();
 			throw new DatabaseException(e);
 		}
 		finally {
 			close(rs, stmt);
-			connectionPool.close(conn);
+			close(conn);
+			probe.close();
 		}
 
 		return list;
 	}
 
 	/**
-	 * Execute a function with commit/rollback. The function can have result
-	 * output; if it has not result, the ojbectType have to be null.
+	 * Retrieve the first column of the rows of a function as an array of
+	 * long, read without boxing; a NULL is read as zero. Without rows the
+	 * array is empty.
 	 * 
-	 * @param DbFunction
-	 * @param Class<T>
-	 * @return T
+	 * @param DbFunction function
+	 * @return long[]
 	 * @throws DatabaseException
 	 */
-	@SuppressWarnings("unchecked")
-	protected final <T> T execute(DbFunction function, Class<T> objectType) throws DatabaseException
+	protected final long[] queryForLongArray(DbFunction function) throws DatabaseException
 	{
-		Validate.notNull(function, "function cannot be null");
-
-		T object = null;
-		Connection conn = connectionPool.open();
-		CallableStatement stmt = null;
-		ResultSet rs = null;
-
-		try {
-			stmt = conn.prepareCall(function.getFunction());
-
-			Integer startIndex = 1;
-			if (function.hasOuput())
-				stmt.registerOutParameter(startIndex++, function.getOutputType());
-
-			function.createArrays(conn);
-			prepareParams(stmt, function.getParameters(), startIndex);
-			stmt.executeUpdate();
-
-			if (function.hasOuput())
-				object = (T) stmt.getObject(1);
-		}
-		catch (SQLException e) {
-			connectionPool.rollback(conn);
-			throw new DatabaseException(e);
-		}
-		finally {
-			connectionPool.commit(conn);
-			function.freeArrays();
-			close(rs, stmt);
-			connectionPool.close(conn);
-		}
-
-		return object;
+		return queryForBuffer(function, PrimitiveBuffer.OfLong::new, (rs, buffer) -> buffer.add(rs.getLong(1)), 8)
+			.toArray();
 	}
 
 	/**
-	 * Execute a query for update with commit/rollback. It returns the number
-	 * of updated rows.
+	 * Retrieve the first column of the rows of a query as an array of
+	 * long, read without boxing; a NULL is read as zero. Without rows the
+	 * array is empty.
 	 * 
-	 * @param DbSQLQuery
-	 * @return Integer
+	 * @param DbSQLQuery sqlQuery
+	 * @return long[]
 	 * @throws DatabaseException
 	 */
-	protected final Integer execute(DbSQLQuery sqlQuery) throws DatabaseException
+	protected final long[] queryForLongArray(DbSQLQuery sqlQuery) throws DatabaseException
 	{
 		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
 
-		Integer modRows = - 1;
-		Connection conn = connectionPool.open();
-		CallableStatement stmt = null;
+		if (isCached(sqlQuery))
+			return queryCache.get(sqlQuery, cacheKind("LA:"), q -> queryForLongArray(q));
 
-		try {
-			stmt = conn.prepareCall(sqlQuery.getQuery());
-			prepareParams(stmt, sqlQuery.getParameters(), 1);
-			modRows = stmt.executeUpdate();
-		}
-		catch (SQLException e) {
-			connectionPool.rollback(conn);
-			throw new DatabaseException(e);
-		}
-		finally {
-			connectionPool.commit(conn);
-			close(null, stmt);
-			connectionPool.close(conn);
-		}
+		return queryForBuffer(sqlQuery, PrimitiveBuffer.OfLong::new, (rs, buffer) -> buffer.add(rs.getLong(1)), 8)
+			.toArray();
+	}
 
-		return modRows;
+	/**
+	 * Retrieve the first column of the rows of a function as an array of
+	 * int, read without boxing; a NULL is read as zero. Without rows the
+	 * array is empty.
+	 * 
+	 * @param DbFunction function
+	 * @return int[]
+	 * @throws DatabaseException
+	 */
+	protected final int[] queryForIntArray(DbFunction function) throws DatabaseException
+	{
+		return queryForBuffer(function, PrimitiveBuffer.OfInt::new, (rs, buffer) -> buffer.add(rs.getInt(1)), 4)
+			.toArray();
 	}
+
 	/**
-	 * Create a DbSQLQuery with the sqlQuery extracted from the associated XML
-	 * file. Throw DatabaseException if the file does not exists.
+	 * Retrieve the first column of the rows of a query as an array of
+	 * int, read without boxing; a NULL is read as zero. Without rows the
+	 * array is empty.
 	 * 
-	 * @param String xmlKeyName
-	 * @return DbSQLQuery
+	 * @param DbSQLQuery sqlQuery
+	 * @return int[]
 	 * @throws DatabaseException
 	 */
-	protected final DbSQLQuery loadXMLQuery(String xmlKeyName) throws DatabaseException
+	protected final int[] queryForIntArray(DbSQLQuery sqlQuery) throws DatabaseException
 	{
-		Validate.notNull(xmlKeyName, "xmlKeyName cannot be null");
+		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
+
+		if (isCached(sqlQuery))
+			return queryCache.get(sqlQuery, cacheKind("IA:"), q -> queryForIntArray(q));
+
+		return queryForBuffer(sqlQuery, PrimitiveBuffer.OfInt::new, (rs, buffer) -> buffer.add(rs.getInt(1)), 4)
+			.toArray();
+	}
+
+	/**
+	 * Retrieve the first column of the rows of a function as an array of
+	 * double, read without boxing; a NULL is read as zero. Without rows the
+	 * array is empty.
+	 * 
+	 * @param DbFunction function
+	 * @return double[]
+	 * @throws DatabaseException
+	 */
+	protected final double[] queryForDoubleArray(DbFunction function) throws DatabaseException
+	{
+		return queryForBuffer(function, PrimitiveBuffer.OfDouble::new, (rs, buffer) -> buffer.add(rs.getDouble(1)), 8)
+			.toArray();
+	}
+
+	/**
+	 * Retrieve the first column of the rows of a query as an array of
+	 * double, read without boxing; a NULL is read as zero. Without rows the
+	 * array is empty.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @return double[]
+	 * @throws DatabaseException
+	 */
+	protected final double[] queryForDoubleArray(DbSQLQuery sqlQuery) throws DatabaseException
+	{
+		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
+
+		if (isCached(sqlQuery))
+			return queryCache.get(sqlQuery, cacheKind("DA:"), q -> queryForDoubleArray(q));
+
+		return queryForBuffer(sqlQuery, PrimitiveBuffer.OfDouble::new, (rs, buffer) -> buffer.add(rs.getDouble(1)), 8)
+			.toArray();
+	}
+
+	/**
+	 * Retrieve the rows of a query by column, for the analytical jobs: the
+	 * numeric and temporal columns are read into arrays of primitives and
+	 * the strings are encoded by a dictionary.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @return DbColumns
+	 * @throws DatabaseException
+	 */
+	protected final DbColumns queryForColumns(DbSQLQuery sqlQuery) throws DatabaseException
+	{
+		return queryForColumns(sqlQuery, false);
+	}
+
+	/**
+	 * Retrieve the rows of a query by column, for the analytical jobs; when
+	 * direct, the numeric and temporal columns are stored off the heap.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @param boolean direct
+	 * @return DbColumns
+	 * @throws DatabaseException
+	 */
+	protected final DbColumns queryForColumns(DbSQLQuery sqlQuery, boolean direct) throws DatabaseException
+	{
+		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
+
+		DbColumns columns = null;
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = openReadOnly();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			fetchSize(stmt, probe.fetchSize(fetchHint(sqlQuery.getFetchSize())));
+			prepareParams(stmt, sqlQuery.getParameters(), 1);
+			rs = stmt.executeQuery();
+			probe.executed();
+
+			columns = DbColumns.read(rs, arraySize(probe), direct);
+			probe.fetched(columns.getRowCount(), width(rs.getMetaData()));
+		}
+		catch (SQLException e) {
+			probe.failed();
+			throw new DatabaseException(e);
+		}
+		finally {
+			close(rs, stmt);
+			close(conn);
+			probe.close();
+		}
+
+		return columns;
+	}
+
+	/**
+	 * Execute a function with commit/rollback. The function can have result
+	 * output; if it has not result, the ojbectType have to be null. The
+	 * cached query results with its cache tags are invalidated, or all of
+	 * them when it has not.
+	 * 
+	 * @param DbFunction
+	 * @param Class<T>
+	 * @return T
+	 * @throws DatabaseException
+	 */
+	@SuppressWarnings("unchecked")
+	protected final <T> T execute(DbFunction function, Class<T> objectType) throws DatabaseException
+	{
+		Validate.notNull(function, "function cannot be null");
+
+		T object = null;
+		DbQueryMetrics.Probe probe = probe(function);
+		Connection conn = open();
+		CallableStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = connectionPool.prepareCall(conn, function.getFunction());
+
+			Integer startIndex = 1;
+			if (function.hasOuput())
+				stmt.registerOutParameter(startIndex++, function.getOutputType());
+
+			function.createArrays(conn);
+			prepareParams(stmt, function.getParameters(), startIndex);
+			stmt.executeUpdate();
+			probe.executed();
+
+			if (function.hasOuput())
+				object = (T) stmt.getObject(1);
+		}
+		catch (SQLException e) {
+			probe.failed();
+			rollback(conn);
+			throw new DatabaseException(e);
+		}
+		finally {
+			commit(conn);
+			function.freeArrays();
+			close(rs, stmt);
+			close(conn);
+			probe.close();
+		}
+
+		invalidate(function);
+
+		return object;
+	}
+
+	/**
+	 * Execute a query for update with commit/rollback. It returns the number
+	 * of updated rows.
+	 * 
+	 * @param DbSQLQuery
+	 * @return Integer
+	 * @throws DatabaseException
+	 */
+	protected final Integer execute(DbSQLQuery sqlQuery) throws DatabaseException
+	{
+		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
+
+		Integer modRows = - 1;
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = open();
+		PreparedStatement stmt = null;
+
+		try {
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			prepareParams(stmt, sqlQuery.getParameters(), 1);
+			modRows = stmt.executeUpdate();
+			probe.executed();
+		}
+		catch (SQLException e) {
+			probe.failed();
+			rollback(conn);
+			throw new DatabaseException(e);
+		}
+		finally {
+			commit(conn);
+			close(null, stmt);
+			close(conn);
+			probe.close();
+		}
+
+		invalidate(sqlQuery);
+
+		return modRows;
+	}
+
+	/**
+	 * Asynchronous variant of queryForModel, executed by the DbExecutor.
+	 * 
+	 * @param DbFunction function
+	 * @return CompletableFuture<M>
+	 */
+	protected final CompletableFuture<M> queryForModelAsync(DbFunction function)
+	{
+		return async(() -> queryForModel(function));
+	}
+
+	/**
+	 * Asynchronous variant of queryForModel, executed by the DbExecutor.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @return CompletableFuture<M>
+	 */
+	protected final CompletableFuture<M> queryForModelAsync(DbSQLQuery sqlQuery)
+	{
+		return async(() -> queryForModel(sqlQuery));
+	}
+
+	/**
+	 * Asynchronous variant of queryForModelMap, executed by the DbExecutor.
+	 * 
+	 * @param DbFunction function
+	 * @param Number size
+	 * @return CompletableFuture<Map<Key, M>>
+	 */
+	protected final CompletableFuture<Map<Key, M>> queryForModelMapAsync(DbFunction function, Number size)
+	{
+		return async(() -> queryForModelMap(function, size));
+	}
+
+	/**
+	 * Asynchronous variant of queryForModelMap, executed by the DbExecutor.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @param Number size
+	 * @return CompletableFuture<Map<Key, M>>
+	 */
+	protected final CompletableFuture<Map<Key, M>> queryForModelMapAsync(DbSQLQuery sqlQuery, Number size)
+	{
+		return async(() -> queryForModelMap(sqlQuery, size));
+	}
+
+	/**
+	 * Asynchronous variant of queryForModelList, executed by the DbExecutor.
+	 * 
+	 * @param DbFunction function
+	 * @param Number size
+	 * @return CompletableFuture<List<M>>
+	 */
+	protected final CompletableFuture<List<M>> queryForModelListAsync(DbFunction function, Number size)
+	{
+		return async(() -> queryForModelList(function, size));
+	}
+
+	/**
+	 * Asynchronous variant of queryForModelList, executed by the DbExecutor.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @param Number size
+	 * @return CompletableFuture<List<M>>
+	 */
+	protected final CompletableFuture<List<M>> queryForModelListAsync(DbSQLQuery sqlQuery, Number size)
+	{
+		return async(() -> queryForModelList(sqlQuery, size));
+	}
+
+	/**
+	 * Asynchronous variant of queryForObject, executed by the DbExecutor.
+	 * 
+	 * @param DbFunction function
+	 * @param Class<T> objectType
+	 * @return CompletableFuture<T>
+	 */
+	protected final <T> CompletableFuture<T> queryForObjectAsync(DbFunction function, Class<T> objectType)
+	{
+		return async(() -> queryForObject(function, objectType));
+	}
+
+	/**
+	 * Asynchronous variant of queryForObject, executed by the DbExecutor.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @param Class<T> objectType
+	 * @return CompletableFuture<T>
+	 */
+	protected final <T> CompletableFuture<T> queryForObjectAsync(DbSQLQuery sqlQuery, Class<T> objectType)
+	{
+		return async(() -> queryForObject(sqlQuery, objectType));
+	}
+
+	/**
+	 * Asynchronous variant of queryForObjectList, executed by the DbExecutor.
+	 * 
+	 * @param DbFunction function
+	 * @param Class<T> objectType
+	 * @return CompletableFuture<List<T>>
+	 */
+	protected final <T> CompletableFuture<List<T>> queryForObjectListAsync(DbFunction function, Class<T> objectType)
+	{
+		return async(() -> queryForObjectList(function, objectType));
+	}
+
+	/**
+	 * Asynchronous variant of queryForObjectList, executed by the DbExecutor.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @param Class<T> objectType
+	 * @return CompletableFuture<List<T>>
+	 */
+	protected final <T> CompletableFuture<List<T>> queryForObjectListAsync(DbSQLQuery sqlQuery, Class<T> objectType)
+	{
+		return async(() -> queryForObjectList(sqlQuery, objectType));
+	}
+
+	/**
+	 * Asynchronous variant of execute, executed by the DbExecutor.
+	 * 
+	 * @param DbFunction function
+	 * @param Class<T> objectType
+	 * @return CompletableFuture<T>
+	 */
+	protected final <T> CompletableFuture<T> executeAsync(DbFunction function, Class<T> objectType)
+	{
+		return async(() -> execute(function, objectType));
+	}
+
+	/**
+	 * Asynchronous variant of execute, executed by the DbExecutor.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @return CompletableFuture<Integer>
+	 */
+	protected final CompletableFuture<Integer> executeAsync(DbSQLQuery sqlQuery)
+	{
+		return async(() -> execute(sqlQuery));
+	}
+
+	/**
+	 * Returns the Model of the key from the cache, or executes the function
+	 * and caches its result.
+	 *
+	 * @param ModelCache<M> cache
+	 * @param Key key
+	 * @param DbFunction function
+	 * @return M
+	 * @throws DatabaseException
+	 */
+	protected final M queryForModel(ModelCache<M> cache, Key key, DbFunction function) throws DatabaseException
+	{
+		return cache.get(key, k -> queryForModel(function));
+	}
+
+	/**
+	 * Returns the Model of the key from the cache, or executes the query and
+	 * caches its result.
+	 *
+	 * @param ModelCache<M> cache
+	 * @param Key key
+	 * @param DbSQLQuery sqlQuery
+	 * @return M
+	 * @throws DatabaseException
+	 */
+	protected final M queryForModel(ModelCache<M> cache, Key key, DbSQLQuery sqlQuery) throws DatabaseException
+	{
+		return cache.get(key, k -> queryForModel(sqlQuery));
+	}
+
+	/**
+	 * Executes the function and caches all the Models of the result.
+	 *
+	 * @param ModelCache<M> cache
+	 * @param DbFunction function
+	 * @param Number size
+	 * @return Map<Key, M>
+	 * @throws DatabaseException
+	 */
+	protected final Map<Key, M> queryForModelMap(ModelCache<M> cache, DbFunction function, Number size)
+		throws DatabaseException
+	{
+		Map<Key, M> map = queryForModelMap(function, size);
+		cache.putAll(map);
+
+		return map;
+	}
+
+	/**
+	 * Executes the query and caches all the Models of the result.
+	 *
+	 * @param ModelCache<M> cache
+	 * @param DbSQLQuery sqlQuery
+	 * @param Number size
+	 * @return Map<Key, M>
+	 * @throws DatabaseException
+	 */
+	protected final Map<Key, M> queryForModelMap(ModelCache<M> cache, DbSQLQuery sqlQuery, Number size)
+		throws DatabaseException
+	{
+		Map<Key, M> map = queryForModelMap(sqlQuery, size);
+		cache.putAll(map);
+
+		return map;
+	}
+
+	/**
+	 * Executes the work on the shard of the key, when the connection pool is
+	 * a ShardedDbConnectionPool.
+	 *
+	 * @param Key key
+	 * @param Callable<T> work
+	 * @return T
+	 * @throws DatabaseException
+	 */
+	protected final <T> T onShard(Key key, Callable<T> work) throws DatabaseException
+	{
+		try {
+			return sharded().call(key, work);
+		}
+		catch (DatabaseException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	/**
+	 * Executes the query on every shard concurrently and merges the Models,
+	 * when the connection pool is a ShardedDbConnectionPool. The size is the
+	 * expected size of the result of each shard.
+	 *
+	 * @param DbSQLQuery sqlQuery
+	 * @param Number size
+	 * @return Map<Key, M>
+	 * @throws DatabaseException
+	 */
+	protected final Map<Key, M> queryForModelMapOnShards(DbSQLQuery sqlQuery, Number size) throws DatabaseException
+	{
+		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
+
+		return sharded().scatter(() -> queryForModelMap(sqlQuery, size));
+	}
+
+	/**
+	 * Create a DbSQLQuery with the sqlQuery extracted from the associated XML
+	 * file. Throw DatabaseException if the file does not exists. The result
+	 * of the query is cached when the file has the expiry in seconds with
+	 * the key suffixed by '.cacheExpiry'; the comma separated tags of the
+	 * key suffixed by '.cacheTags' invalidate it, beyond its tables. The
+	 * 'SELECT *' of the query is projected on the columns of the Model when
+	 * the key suffixed by '.project' is true.
+	 * 
+	 * @param String xmlKeyName
+	 * @return DbSQLQuery
+	 * @throws DatabaseException
+	 */
+	protected final DbSQLQuery loadXMLQuery(String xmlKeyName) throws DatabaseException
+	{
+		Validate.notNull(xmlKeyName, "xmlKeyName cannot be null");
 
 		if (sqlQueryMapping == null) {
 			String m = "This DAO have not an XML file, expected in the same package with name '%s'";
@@ -904,114 +1809,197 @@ public abstract class DbDao<M extends Model> {
 		String sql = sqlQueryMapping.getProperty(xmlKeyName);
 		Validate.notBlank(sql, "SQL query cannot be blank.");
 
-		return new DbSQLQuery(sql);
+		DbSQLQuery sqlQuery = new DbSQLQuery(sql);
+		sqlQuery.setName(xmlKeyName);
+
+		// Opt-in projection on the columns of the Model
+		if (Boolean.parseBoolean(StringUtils.trim(sqlQueryMapping.getProperty(xmlKeyName + PROJECT))))
+			sqlQuery.setQuery(project(sql));
+
+		// Opt-in cache of the result, with the expiry in seconds
+		String expiry = sqlQueryMapping.getProperty(xmlKeyName + CACHE_EXPIRY);
+		if (StringUtils.isNotBlank(expiry))
+			sqlQuery.setCacheExpiry(Long.valueOf(expiry.trim()) * 1000);
+
+		String tags = sqlQueryMapping.getProperty(xmlKeyName + CACHE_TAGS);
+		if (StringUtils.isNotBlank(tags))
+			sqlQuery.setCacheTags(StringUtils.stripAll(tags.split(",")));
+
+		return sqlQuery;
+	}
+
+	/**
+	 * Returns the comma separated columns bound in the Model, for the select
+	 * list of the queries.
+	 * 
+	 * @return String
+	 */
+	protected final String getSelectList()
+	{
+		return StringUtils.join(columnBinders.keySet(), ", ");
+	}
+
+	/**
+	 * Returns a copy of the query with its 'SELECT *', or 'SELECT alias.*',
+	 * projected on the columns bound in the Model, so the unused columns of
+	 * a wide table are neither transferred nor decoded. The other queries
+	 * are returned as they are. All the bound columns must exist in the
+	 * result of the query.
+	 * 
+	 * @param DbSQLQuery sqlQuery
+	 * @return DbSQLQuery
+	 */
+	protected final DbSQLQuery project(DbSQLQuery sqlQuery)
+	{
+		Validate.notNull(sqlQuery, "sqlQuery cannot be null");
+
+		String projected = project(sqlQuery.getQuery());
+		if (projected.equals(sqlQuery.getQuery()))
+			return sqlQuery;
+
+		DbSQLQuery copy = sqlQuery.copy();
+		copy.setQuery(projected);
+
+		return copy;
 	}
 
 	//
 	// Internal
 	//
 
-	M queryForModel(ResultSet rs) throws Exception
+	String project(String sql)
 	{
-		M model = modelClass.newInstance();
-		return queryForModel(rs, model);
+		Matcher matcher = SELECT_STAR.matcher(sql);
+		if (columnBinders.isEmpty() || ! matcher.matches()) {
+			if (logger.isDebugEnabled())
+				logger.debug("Query cannot be projected on the columns of the Model: " + sql);
+
+			return sql;
+		}
+
+		String alias = StringUtils.defaultString(matcher.group(2));
+		StringBuilder projected = new StringBuilder(matcher.group(1));
+		for (String column : columnBinders.keySet())
+			projected.append(alias).append(column).append(", ");
+
+		projected.setLength(projected.length() - 2);
+		return projected.append(matcher.group(3)).toString();
 	}
 
-	M queryForModel(ResultSet rs, M model) throws Exception
+	/**
+	 * Returns the mapping plan for the shape of the result set. The plan is
+	 * built the first time the shape is seen; the columns without binding in
+	 * the Model are skipped.
+	 */
+	DbRowMapper<M> rowMapper(ResultSet rs) throws SQLException
 	{
 		ResultSetMetaData rsmd = rs.getMetaData();
+		String[] columnNames = new String[rsmd.getColumnCount()];
+
+		StringBuilder signature = new StringBuilder();
+		for (int i = 0; i < columnNames.length; i++) {
+			columnNames[i] = rsmd.getColumnName(i + 1).toUpperCase();
+			signature.append(columnNames[i]).append(',');
+		}
+
+		String key = signature.toString();
+		DbRowMapper<M> mapper = rowMappers.get(key);
+		if (mapper == null) {
+
+			mapper = newRowMapper(rsmd, columnNames);
+			DbRowMapper<M> prev = rowMappers.putIfAbsent(key, mapper);
+			if (prev != null)
+				mapper = prev;
+		}
+
+		return mapper;
+	}
 
-		for (int i = 1; i <= rsmd.getColumnCount(); i++) {
-			String columnName = rsmd.getColumnName(i).toUpperCase();
+	DbRowMapper<M> newRowMapper(ResultSetMetaData rsmd, String[] columnNames) throws SQLException
+	{
+		List<Integer> indexes = new ArrayList<>(columnNames.length);
+		List<String> unbound = new ArrayList<>();
+		int width = 0;
+		int wasted = 0;
+		for (int i = 0; i < columnNames.length; i++) {
+
+			int columnWidth = width(rsmd, i + 1);
+			width += columnWidth;
 
-			Method setterMethod = columnSetterMapping.get(columnName);
-			if (setterMethod == null) {
+			if (columnBinders.containsKey(columnNames[i]))
+				indexes.add(i);
+			else {
+				unbound.add(columnNames[i]);
+				wasted += columnWidth;
 
 				if (logger.isDebugEnabled())
-					logger.debug("Model has not field for binding the column '" + columnName + "'");
-				continue;
+					logger.debug("Model has not field for binding the column '" + columnNames[i] + "'");
 			}
-
-			Class<?> setterClass = columnTypeMapping.get(columnName);
-			setterMethod.invoke(model, getObject(rs, i, setterClass));
 		}
 
-		model.aftermath();
+		int[] columnIndexes = new int[indexes.size()];
+		List<DbColumnBinder<M>> binders = new ArrayList<>(indexes.size());
 
-		return model;
+		for (int i = 0; i < columnIndexes.length; i++) {
+			columnIndexes[i] = indexes.get(i) + 1;
+			binders.add(columnBinders.get(columnNames[indexes.get(i)]));
+		}
+
+		return new DbRowMapper<>(modelFactory, columnIndexes, binders, Math.max(width, 1),
+			unbound.toArray(new String[unbound.size()]), wasted);
 	}
 
-	Object getObject(ResultSet rs, Integer index, Class<?> type)
-		throws SQLException
+	/**
+	 * Estimate the width in bytes of the rows by the types of the columns;
+	 * the variable ones are bounded, as they are seldom full.
+	 */
+	static int width(ResultSetMetaData rsmd) throws SQLException
 	{
-		if (rs.getObject(index) == null) {
-			return null;
-		}
-		else if (type.equals(String.class)) {
-			return rs.getString(index);
-		}
-		else if (type.equals(Integer.class)
-			|| type.equals(int.class)) {
-			return rs.getInt(index);
-		}
-		else if (type.equals(Long.class)
-			|| type.equals(long.class)) {
-			return rs.getLong(index);
-		}
-		else if (type.equals(Boolean.class)
-			|| type.equals(boolean.class)) {
-			return rs.getBoolean(index);
-		}
-		else if (type.equals(Double.class)
-			|| type.equals(double.class)) {
-			return rs.getDouble(index);
-		}
-		else if (type.equals(Float.class)
-			|| type.equals(float.class)) {
-			return rs.getFloat(index);
-		}
-		else if (type.equals(Short.class)
-			|| type.equals(short.class)) {
-			return rs.getShort(index);
-		}
-		else if (type.equals(Date.class)) {
+		int width = 0;
+		for (int i = 1; i <= rsmd.getColumnCount(); i++)
+			width += width(rsmd, i);
 
-			Timestamp ts = rs.getTimestamp(index);
-			if (ts == null)
-				return null;
+		return Math.max(width, 1);
+	}
 
-			return new Date(ts.getTime());
-		}
-		else if (type.equals(Timestamp.class)) {
-			return rs.getTimestamp(index);
-		}
-		else if (type.equals(byte[].class)) {
-			return rs.getBytes(index);
-		}
-		else if (InputStream.class.isAssignableFrom(type)) {
-			return rs.getBinaryStream(index);
-		}
-		else if (type.equals(BigDecimal.class)) {
-			return rs.getBigDecimal(index);
-		}
-		else if (Object[].class.isAssignableFrom(type)) {
-			return rs.getArray(index).getArray();
-		}
-		else if (List.class.isAssignableFrom(type)) {
-			return Arrays.asList(rs.getArray(index).getArray());
-		}
-		else if (type.equals(URL.class)) {
-			return rs.getURL(index);
+	static int width(ResultSetMetaData rsmd, int column) throws SQLException
+	{
+		switch (rsmd.getColumnType(column)) {
+			case Types.BIT:
+			case Types.BOOLEAN:
+			case Types.TINYINT:
+				return 1;
+			case Types.SMALLINT:
+				return 2;
+			case Types.INTEGER:
+			case Types.REAL:
+				return 4;
+			case Types.BIGINT:
+			case Types.DOUBLE:
+			case Types.FLOAT:
+			case Types.DATE:
+			case Types.TIME:
+				return 8;
+			case Types.TIMESTAMP:
+				return 12;
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				return 22;
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+				int precision = rsmd.getPrecision(column);
+				return (precision > 0) ? Math.min(precision, MAX_COLUMN_WIDTH) : MAX_COLUMN_WIDTH;
+			default:
+				return MAX_COLUMN_WIDTH;
 		}
-		else
-			throw new DatabaseException(String.format(
-				"Type '%s' not yet supported.", type.getName()));
 	}
 
 	/**
 	 * @author Raph
 	 */
-	void prepareParams(CallableStatement stmt, Map<String, Object> params, Integer startIndex)
+	void prepareParams(PreparedStatement stmt, Map<String, Object> params, Integer startIndex)
 		throws SQLException
 	{
 		if (! params.isEmpty()) {
@@ -1082,34 +2070,456 @@ public abstract class DbDao<M extends Model> {
 		}
 	}
 
-	void close(ResultSet rs, Statement stmt)
+	/**
+	 * Submit the call to the DbExecutor. Within a transaction the call runs
+	 * on the caller, as the workers cannot share its connection.
+	 */
+	<T> CompletableFuture<T> async(Callable<T> call)
+	{
+		if (executor == null)
+			throw new InitializationException(DbExecutor.class);
+
+		if (DbTransaction.current() == null)
+			return executor.submit(call);
+
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			future.complete(call.call());
+		}
+		catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Returns the connection of the transaction bound to the thread, or a
+	 * connection of the pool.
+	 */
+	Connection open() throws DatabaseException
+	{
+		DbTransaction tx = DbTransaction.current();
+		return (tx != null) ? tx.getConnection() : connectionPool.open(getClass().getName());
+	}
+
+	/**
+	 * Returns the connection of the transaction bound to the thread, or a
+	 * connection of the pool for reading, which may route it to a replica.
+	 */
+	Connection openReadOnly() throws DatabaseException
+	{
+		DbTransaction tx = DbTransaction.current();
+		return (tx != null) ? tx.getConnection() : connectionPool.open(getClass().getName(), true);
+	}
+
+	/**
+	 * Commit the connection, unless it is pinned by the transaction.
+	 */
+	void commit(Connection conn) throws DatabaseException
+	{
+		if (! pinned(conn))
+			connectionPool.commit(conn);
+	}
+
+	/**
+	 * Rollback the connection; the transaction pinning it is marked for the
+	 * rollback instead.
+	 */
+	void rollback(Connection conn) throws DatabaseException
+	{
+		if (pinned(conn))
+			DbTransaction.current().setRollbackOnly();
+		else
+			connectionPool.rollback(conn);
+	}
+
+	/**
+	 * Give back the connection to the pool, unless it is pinned by the
+	 * transaction.
+	 */
+	void close(Connection conn) throws DatabaseException
+	{
+		if (! pinned(conn))
+			connectionPool.close(conn);
+	}
+
+	private static boolean pinned(Connection conn)
+	{
+		DbTransaction tx = DbTransaction.current();
+		return (tx != null && tx.isActive() && tx.getConnection() == conn);
+	}
+
+	/**
+	 * Fill the map shared by the partitions with the Models of the query.
+	 */
+	void fillModelMap(DbSQLQuery sqlQuery, Map<Key, M> map) throws DatabaseException
+	{
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = openReadOnly();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			fetchSize(stmt, probe.fetchSize(fetchHint(sqlQuery.getFetchSize())));
+			prepareParams(stmt, sqlQuery.getParameters(), 1);
+			rs = stmt.executeQuery();
+			probe.executed();
+
+			if (rs != null && rs.next()) {
+				DbRowMapper<M> mapper = rowMapper(rs);
+
+				do {
+					putModel(map, probe.map(mapper, rs));
+				}
+				while (rs.next());
+			}
+		}
+		catch (CollisionException e) {
+			probe.failed();
+			throw e;
+		}
+		catch (Exception e) {
+			probe.failed();
+			throw new DatabaseException(e);
+		}
+		finally {
+			close(rs, stmt);
+			close(conn);
+			probe.close();
+		}
+	}
+
+	/**
+	 * Merge the maps of the partitions in their order.
+	 */
+	Map<Key, M> mergeModelMaps(List<Map<Key, M>> parts)
+	{
+		int rows = 0;
+		for (Map<Key, M> part : parts)
+			rows += part.size();
+
+		Map<Key, M> map = newMap(rows);
+		for (Map<Key, M> part : parts)
+			for (M model : part.values())
+				putModel(map, model);
+
+		return map;
+	}
+
+	/**
+	 * Put the Model by its key; a collision is an error in self-check mode.
+	 */
+	static <K, V> void putModel(Map<K, V> map, K key, V model)
+	{
+		V exist = map.put(key, model);
+		if (exist != null && Engine.isSelfCheckMode())
+			throw new CollisionException(key.hashCode(), model, exist);
+	}
+
+	private void putModel(Map<Key, M> map, M model)
+	{
+		putModel(map, model.getKey(), model);
+	}
+
+	/**
+	 * The fetch size of the query, or the global one: a configured fetch
+	 * size, zero included, is a hint the adaptive sizing does not override.
+	 */
+	Integer fetchHint(Integer fetchSize)
+	{
+		return (fetchSize != null) ? fetchSize : connectionPool.getProperties().getFetchSize();
+	}
+
+	void fetchSize(Statement stmt, Integer fetchSize) throws SQLException
+	{
+		if (stmt != null && MathFn.notZero(fetchSize))
+			connectionPool.cursor(stmt, fetchSize);
+	}
+
+	void fetchSize(ResultSet rs, Integer fetchSize) throws SQLException
+	{
+		if (rs != null && MathFn.notZero(fetchSize))
+			rs.setFetchSize(fetchSize);
+	}
+
+	void close(ResultSet rs, Statement stmt)
+	{
+		try {
+			if (rs != null)
+				rs.close();
+		}
+		catch (SQLException e) {
+			// quiet
+		}
+
+		try {
+			if (stmt != null)
+				connectionPool.release(stmt);
+		}
+		catch (SQLException e) {
+			// quiet
+		}
+	}
+
+	/**
+	 * The connection of a transaction cannot be shared with the producer.
+	 */
+	AutoCloseableIterator<M> prefetch(AutoCloseableIterator<M> it, int depth)
+	{
+		if (depth == 0 || DbTransaction.current() != null || executor == null)
+			return it;
+
+		return new PrefetchIterator((ResultSetIterator) it, depth);
+	}
+
+	List<M> queryForPage(DbSQLQuery sqlQuery, int pageSize) throws DatabaseException
+	{
+		List<M> list = new ArrayList<>(pageSize);
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = openReadOnly();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			stmt.setMaxRows(pageSize);
+			fetchSize(stmt, pageSize);
+			prepareParams(stmt, sqlQuery.getParameters(), 1);
+			rs = stmt.executeQuery();
+			probe.executed();
+
+			if (rs != null) {
+				DbRowMapper<M> mapper = null;
+				while (list.size() < pageSize && rs.next()) {
+					if (mapper == null)
+						mapper = rowMapper(rs);
+
+					list.add(probe.map(mapper, rs));
+				}
+			}
+		}
+		catch (Exception e) {
+			probe.failed();
+			throw new DatabaseException(e);
+		}
+		finally {
+			try {
+				if (stmt != null)
+					stmt.setMaxRows(0);
+			}
+			catch (SQLException e) {
+				// quiet
+			}
+
+			close(rs, stmt);
+			close(conn);
+			probe.close();
+		}
+
+		return list;
+	}
+
+	/**
+	 * Read the rows of the function into a buffer presized to the expected
+	 * rows.
+	 */
+	<B extends PrimitiveBuffer> B queryForBuffer(DbFunction function, IntFunction<B> factory,
+		BufferReader<B> reader, int width) throws DatabaseException
+	{
+		Validate.notNull(function, "function cannot be null");
+		Validate.notNull(function.getOutputType(), "function outputType cannot be null");
+
+		B buffer = null;
+		DbQueryMetrics.Probe probe = probe(function);
+		Connection conn = openReadOnly();
+		CallableStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = connectionPool.prepareCall(conn, function.getFunction());
+			stmt.registerOutParameter(1, function.getOutputType());
+
+			function.createArrays(conn);
+			prepareParams(stmt, function.getParameters(), 2);
+			stmt.execute();
+			probe.executed();
+
+			rs = (ResultSet) stmt.getObject(1);
+			fetchSize(rs, probe.fetchSize(fetchHint(null)));
+			buffer = readBuffer(rs, factory.apply(arraySize(probe)), reader);
+			probe.fetched(buffer.size(), width);
+		}
+		catch (SQLException e) {
+			probe.failed();
+			throw new DatabaseException(e);
+		}
+		finally {
+			function.freeArrays();
+			close(rs, stmt);
+			close(conn);
+			probe.close();
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Read the rows of the query into a buffer presized to the expected rows.
+	 */
+	<B extends PrimitiveBuffer> B queryForBuffer(DbSQLQuery sqlQuery, IntFunction<B> factory,
+		BufferReader<B> reader, int width) throws DatabaseException
 	{
+		B buffer = null;
+		DbQueryMetrics.Probe probe = probe(sqlQuery);
+		Connection conn = openReadOnly();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
 		try {
-			if (rs != null)
-				rs.close();
+			stmt = connectionPool.prepareStatement(conn, sqlQuery.getQuery());
+			fetchSize(stmt, probe.fetchSize(fetchHint(sqlQuery.getFetchSize())));
+			prepareParams(stmt, sqlQuery.getParameters(), 1);
+			rs = stmt.executeQuery();
+			probe.executed();
+
+			buffer = readBuffer(rs, factory.apply(arraySize(probe)), reader);
+			probe.fetched(buffer.size(), width);
 		}
 		catch (SQLException e) {
-			// quiet
+			probe.failed();
+			throw new DatabaseException(e);
 		}
-
-		try {
-			if (stmt != null)
-				stmt.close();
+		finally {
+			close(rs, stmt);
+			close(conn);
+			probe.close();
 		}
-		catch (SQLException e) {
-			// quiet
+
+		return buffer;
+	}
+
+	private static <B extends PrimitiveBuffer> B readBuffer(ResultSet rs, B buffer, BufferReader<B> reader)
+		throws SQLException
+	{
+		if (rs != null)
+			while (rs.next())
+				reader.read(rs, buffer);
+
+		return buffer;
+	}
+
+	private static int arraySize(DbQueryMetrics.Probe probe)
+	{
+		Number size = probe.size(null);
+		return (size != null) ? size.intValue() : ARRAY_INIT_SIZE;
+	}
+
+	/**
+	 * Reads the current row into the buffer.
+	 */
+	@FunctionalInterface
+	interface BufferReader<B> {
+
+		void read(ResultSet rs, B buffer) throws SQLException;
+	}
+
+	DbQueryMetrics.Probe probe(DbSQLQuery sqlQuery)
+	{
+		return queryMetrics.probe(DbQueryMetrics.identity(sqlQuery), sqlQuery.getParameters());
+	}
+
+	DbQueryMetrics.Probe probe(DbFunction function)
+	{
+		return queryMetrics.probe(DbQueryMetrics.identity(function), function.getParameters());
+	}
+
+	/**
+	 * The queries in a transaction are not cached, so they read its own
+	 * writes.
+	 */
+	boolean isCached(DbSQLQuery sqlQuery)
+	{
+		return (queryCache != null && sqlQuery.getCacheExpiry() != null && DbTransaction.current() == null);
+	}
+
+	/**
+	 * The cached results of the tables written in a transaction are
+	 * invalidated when it is committed.
+	 */
+	static void invalidate(DbSQLQuery sqlQuery)
+	{
+		if (queryCache == null)
+			return;
+
+		DbTransaction tx = DbTransaction.current();
+		if (tx != null)
+			tx.invalidate(DbQueryCache.tags(sqlQuery));
+		else
+			queryCache.invalidate(sqlQuery);
+	}
+
+	/**
+	 * The function invalidates its cache tags, or all the cached results
+	 * when it has not.
+	 */
+	static void invalidate(DbFunction function)
+	{
+		if (queryCache == null)
+			return;
+
+		DbTransaction tx = DbTransaction.current();
+		if (tx != null)
+			tx.invalidate(DbQueryCache.tags(function));
+		else
+			queryCache.invalidate(function);
+	}
+
+	/**
+	 * The results of the shards are cached apart.
+	 */
+	static String cacheKind(String kind)
+	{
+		if (connectionPool instanceof ShardedDbConnectionPool) {
+			Integer shard = ((ShardedDbConnectionPool) connectionPool).getCurrentShard();
+			if (shard != null)
+				return kind + "#" + shard;
 		}
+
+		return kind;
 	}
 
-	Map<Key, M> newMap(Number initialCapacity)
+	private static ShardedDbConnectionPool sharded() throws DatabaseException
 	{
-		if (initialCapacity == null)
-			initialCapacity = MAP_INIT_SIZE;
+		if (! (connectionPool instanceof ShardedDbConnectionPool))
+			throw new DatabaseException("The connection pool is not sharded.");
 
-		return new LinkedHashMap<>(initialCapacity.intValue());
+		return (ShardedDbConnectionPool) connectionPool;
 	}
 
-	List<M> newList(Number initialCapacity)
+	static <K, V> Map<K, V> unmodifiable(Map<K, V> map)
+	{
+		return (map != null) ? Collections.unmodifiableMap(map) : null;
+	}
+
+	static <T> List<T> unmodifiable(List<T> list)
+	{
+		return (list != null) ? Collections.unmodifiableList(list) : null;
+	}
+
+	/**
+	 * The map holds the expected entries without rehashing.
+	 */
+	Map<Key, M> newMap(Number expectedSize)
+	{
+		if (expectedSize == null)
+			expectedSize = MAP_INIT_SIZE;
+
+		return new LinkedHashMap<>((int) (expectedSize.intValue() / 0.75F) + 1);
+	}
+
+	<T> List<T> newList(Number initialCapacity)
 	{
 		if (initialCapacity != null)
 			return new ArrayList<>(initialCapacity.intValue());
@@ -1117,18 +2527,90 @@ public abstract class DbDao<M extends Model> {
 			return new LinkedList<>();
 	}
 
+	class ResultSetSpliterator extends Spliterators.AbstractSpliterator<M> {
+
+		private Connection conn;
+		private Statement stmt;
+		private ResultSet rs;
+		private DbRowMapper<M> mapper;
+		private DbQueryMetrics.Probe probe;
+		private boolean closed;
+
+		public ResultSetSpliterator(Connection conn, Statement stmt, ResultSet rs, DbQueryMetrics.Probe probe) {
+
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+
+			this.conn = conn;
+			this.stmt = stmt;
+			this.rs = rs;
+			this.probe = probe;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super M> action)
+		{
+			if (closed)
+				return false;
+
+			try {
+				if (rs != null && rs.next()) {
+					if (mapper == null)
+						mapper = rowMapper(rs);
+
+					action.accept(probe.map(mapper, rs));
+					return true;
+				}
+
+				close();
+				return false;
+			}
+			catch (RuntimeException e) {
+				probe.failed();
+				close();
+				throw e;
+			}
+			catch (Exception e) {
+				probe.failed();
+				close();
+				throw new RuntimeException(e);
+			}
+		}
+
+		public void close()
+		{
+			if (closed)
+				return;
+
+			closed = true;
+			DbDao.this.close(rs, stmt);
+			try {
+				DbDao.this.close(conn);
+			}
+			catch (DatabaseException e) {
+				throw new RuntimeException(e);
+			}
+			finally {
+				probe.close();
+			}
+		}
+	}
+
 	class ResultSetIterator implements AutoCloseableIterator<M> {
 
 		private Connection conn;
-		private CallableStatement stmt;
+		private Statement stmt;
 		private ResultSet rs;
+		private DbRowMapper<M> mapper;
+		private DbQueryMetrics.Probe probe;
 		private M record;
+		private boolean closed;
 
-		public ResultSetIterator(Connection conn, CallableStatement stmt, ResultSet rs) {
+		public ResultSetIterator(Connection conn, Statement stmt, ResultSet rs, DbQueryMetrics.Probe probe) {
 
 			this.conn = conn;
 			this.stmt = stmt;
 			this.rs = rs;
+			this.probe = probe;
 		}
 
 		@Override
@@ -1136,7 +2618,10 @@ public abstract class DbDao<M extends Model> {
 		{
 			try {
 				if (rs != null && rs.next()) {
-					record = queryForModel(rs, modelClass.newInstance());
+					if (mapper == null)
+						mapper = rowMapper(rs);
+
+					record = probe.map(mapper, rs);
 					return true;
 				}
 				else {
@@ -1146,6 +2631,7 @@ public abstract class DbDao<M extends Model> {
 				}
 			}
 			catch (Exception e) {
+				probe.failed();
 				throw new RuntimeException(e);
 			}
 		}
@@ -1159,8 +2645,282 @@ public abstract class DbDao<M extends Model> {
 		@Override
 		public void close() throws Exception
 		{
+			if (closed)
+				return;
+
+			closed = true;
 			DbDao.this.close(rs, stmt);
-			connectionPool.close(conn);
+			try {
+				DbDao.this.close(conn);
+			}
+			finally {
+				probe.close();
+			}
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new IllegalStateException("remove is not allowed here!");
+		}
+	}
+
+	/**
+	 * Iterator over the pages of a query by key, each read with its own
+	 * connection.
+	 */
+	class KeysetIterator implements AutoCloseableIterator<M> {
+
+		private final DbSQLQuery sqlQuery;
+		private final String keyParameter;
+		private final Function<M, ?> key;
+		private final int pageSize;
+		private final boolean prefetch;
+		private List<M> page;
+		private int index;
+		private CompletableFuture<List<M>> next;
+		private AtomicBoolean claimed;
+		private boolean closed;
+
+		KeysetIterator(DbSQLQuery sqlQuery, String keyParameter, Function<M, ?> key, int pageSize,
+			boolean prefetch) {
+
+			this.sqlQuery = sqlQuery;
+			this.keyParameter = keyParameter;
+			this.key = key;
+			this.pageSize = pageSize;
+			this.prefetch = prefetch;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			if (closed)
+				return false;
+
+			if (index < page.size())
+				return true;
+
+			if (page.size() < pageSize) {
+				close();
+				return false;
+			}
+
+			try {
+				page = (next != null) ? next.join() : queryForPage(after(), pageSize);
+			}
+			catch (CompletionException e) {
+				close();
+				throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause()
+					: new RuntimeException(e.getCause());
+			}
+			catch (DatabaseException e) {
+				close();
+				throw new RuntimeException(e);
+			}
+
+			index = 0;
+			next = null;
+			prefetch();
+
+			return hasNext();
+		}
+
+		@Override
+		public M next()
+		{
+			if (! hasNext())
+				throw new NoSuchElementException();
+
+			return page.get(index++);
+		}
+
+		/**
+		 * The pending page is not read when its task has not started yet;
+		 * otherwise it is awaited, so its connection is released on return.
+		 */
+		@Override
+		public void close()
+		{
+			if (closed)
+				return;
+
+			closed = true;
+			page = Collections.emptyList();
+			if (next != null && ! claimed.compareAndSet(false, true)) {
+				try {
+					next.join();
+				}
+				catch (CompletionException | CancellationException e) {
+					// discarded
+				}
+			}
+
+			next = null;
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new IllegalStateException("remove is not allowed here!");
+		}
+
+		void prefetch()
+		{
+			if (prefetch && page.size() == pageSize) {
+				DbSQLQuery query = after();
+				AtomicBoolean claim = claimed = new AtomicBoolean();
+				next = executor.submit(() -> claim.compareAndSet(false, true) ? queryForPage(query, pageSize) : null);
+			}
+		}
+
+		private DbSQLQuery after()
+		{
+			DbSQLQuery query = sqlQuery.copy();
+			query.addParameter(keyParameter, key.apply(page.get(page.size() - 1)));
+
+			return query;
+		}
+	}
+
+	/**
+	 * Iterator over the Models read ahead by a producer task of the executor
+	 * into a bounded buffer. When the executor runs the task on the caller,
+	 * or rejects it, the Models are read inline.
+	 */
+	class PrefetchIterator implements AutoCloseableIterator<M> {
+
+		private final ResultSetIterator source;
+		private final BlockingQueue<Object> buffer;
+		private final CompletableFuture<Boolean> producer;
+		private final boolean inline;
+		private final Object lock = new Object();
+		private volatile boolean cancelled;
+		private boolean released;
+		private Object record;
+		private boolean done;
+
+		PrefetchIterator(ResultSetIterator source, int depth) {
+
+			this.source = source;
+			this.buffer = new ArrayBlockingQueue<>(depth);
+
+			Thread caller = Thread.currentThread();
+			this.producer = executor.submit(() -> {
+				if (Thread.currentThread() == caller)
+					return false;
+
+				produce();
+				return true;
+			});
+			this.inline = producer.handle((produced, e) -> e != null || ! produced).getNow(false);
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			if (done)
+				return false;
+
+			if (record != null)
+				return true;
+
+			if (inline) {
+				try {
+					if (source.hasNext()) {
+						record = source.next();
+						return true;
+					}
+				}
+				catch (RuntimeException e) {
+					close();
+					throw e;
+				}
+
+				done = true;
+				return false;
+			}
+
+			try {
+				record = buffer.take();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new RuntimeException(e);
+			}
+
+			if (record == END) {
+				record = null;
+				close();
+				return false;
+			}
+
+			if (record instanceof Failure) {
+				Throwable error = ((Failure) record).error;
+				record = null;
+				close();
+				throw (error instanceof RuntimeException) ? (RuntimeException) error : new RuntimeException(error);
+			}
+
+			return true;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public M next()
+		{
+			if (! hasNext())
+				throw new NoSuchElementException();
+
+			M model = (M) record;
+			record = null;
+			return model;
+		}
+
+		/**
+		 * Waits the producer, so the connection is released on return.
+		 */
+		@Override
+		public void close()
+		{
+			if (inline) {
+				done = true;
+				try {
+					source.close();
+				}
+				catch (Exception e) {
+					// quiet
+				}
+				return;
+			}
+
+			if (done && producer.isDone())
+				return;
+
+			done = true;
+			cancelled = true;
+			synchronized (lock) {
+				if (! released) {
+					try {
+						source.stmt.cancel();
+					}
+					catch (SQLException e) {
+						// quiet
+					}
+				}
+			}
+
+			buffer.clear();
+			try {
+				producer.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException e) {
+				// quiet
+			}
 		}
 
 		@Override
@@ -1168,5 +2928,54 @@ public abstract class DbDao<M extends Model> {
 		{
 			throw new IllegalStateException("remove is not allowed here!");
 		}
+
+		private void produce()
+		{
+			Object last = END;
+			try {
+				while (! cancelled && source.hasNext())
+					offer(source.next());
+			}
+			catch (Throwable t) {
+				last = new Failure(t);
+			}
+			finally {
+				synchronized (lock) {
+					released = true;
+				}
+
+				try {
+					source.close();
+				}
+				catch (Exception e) {
+					if (last == END)
+						last = new Failure(e);
+				}
+			}
+
+			offer(last);
+		}
+
+		private void offer(Object element)
+		{
+			try {
+				while (! cancelled)
+					if (buffer.offer(element, OFFER_TIMEOUT, TimeUnit.MILLISECONDS))
+						return;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static final class Failure {
+
+		final Throwable error;
+
+		Failure(Throwable error) {
+
+			this.error = error;
+		}
 	}
 }
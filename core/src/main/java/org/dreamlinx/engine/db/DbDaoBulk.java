@@ -21,11 +21,19 @@
 package org.dreamlinx.engine.db;
 
 import java.lang.reflect.Method;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.Validate;
+import org.dreamlinx.engine.error.BulkException;
 import org.dreamlinx.engine.error.DatabaseException;
 import org.dreamlinx.engine.fn.MathFn;
 import org.dreamlinx.engine.model.Model;
@@ -43,18 +51,52 @@ public abstract class DbDaoBulk<M extends Model> extends DbDao<M> {
 	 */
 	private int commitSize = 1000;
 
+	/**
+	 * Number of splits executed concurrently; 1 is sequential.
+	 */
+	private int parallelism = 1;
+
+	private final Map<String, DbColumnExtractor<M>> columnExtractors;
+
 	public DbDaoBulk() {
 
 		Integer customCommitSize = connectionPool.getProperties().getCommitSize();
 		if (MathFn.notZero(customCommitSize))
 			commitSize = customCommitSize;
+
+		Integer customParallelism = connectionPool.getProperties().getBulkParallelism();
+		if (MathFn.notZero(customParallelism))
+			parallelism = customParallelism;
+
+		columnExtractors = new LinkedHashMap<>();
+		for (Map.Entry<String, Method> getter : columnGetterMapping.entrySet())
+			columnExtractors.put(getter.getKey(),
+				DbColumnExtractor.<M> of(getter.getValue(), columnTypeMapping.get(getter.getKey())));
+	}
+
+	/**
+	 * Set the number of splits executed concurrently, each one on its own
+	 * connection. The default value of properties is 1 (sequential).
+	 * 
+	 * @param int parallelism
+	 */
+	protected final void setParallelism(int parallelism)
+	{
+		Validate.isTrue(parallelism > 0, "parallelism must be greater than zero");
+
+		this.parallelism = parallelism;
 	}
 
 	/**
 	 * Execute a function with commit/rollback. The function must declare names
 	 * of the field of the model as parameter names (without any values - it is
 	 * just a marker). The function can have result output; if it has not result,
-	 * the ojbectType have to be null.
+	 * the ojbectType have to be null. The models are split by commit size;
+	 * with a parallelism greater than 1 the splits run concurrently, the
+	 * results are still in split order and the failed splits are reported by
+	 * a BulkException after all the others are committed. Within a
+	 * transaction the splits run in sequence on its connection. Each split
+	 * invalidates the cached query results as the function.
 	 * 
 	 * @param DbFunction
 	 * @param List<M> models
@@ -77,22 +119,23 @@ public abstract class DbDaoBulk<M extends Model> extends DbDao<M> {
 		if (hasResult = (objectType != null))
 			res = (T[]) java.lang.reflect.Array.newInstance(objectType, splits);
 
-		if (splits > 1) {
+		if (splits > 1 && parallelism > 1 && DbTransaction.current() == null) {
+			Object[] r = executeBulkParallel(function, models, objectType, splits);
+			if (hasResult)
+				System.arraycopy(r, 0, res, 0, splits);
+		}
+		else if (splits > 1) {
+			Map<String, Object> buffers = new HashMap<>();
 			for (int split = 0; split < splits; split++) {
 
-				final int fromIdx = (split * commitSize);
-				int toIdx = ((split * commitSize) + commitSize);
-				if (toIdx >= models.size())
-					toIdx = models.size();
-
-				List<M> splitModels = models.subList(fromIdx, toIdx);
-				T r = _executeBulk(function, splitModels, objectType);
+				List<M> splitModels = split(models, split);
+				T r = _executeBulk(function, splitModels, objectType, buffers);
 				if (hasResult)
 					res[iRes++] = r;
 			}
 		}
 		else {
-			T r = _executeBulk(function, models, objectType);
+			T r = _executeBulk(function, models, objectType, new HashMap<>());
 			if (hasResult)
 				res[iRes] = r;
 		}
@@ -104,52 +147,75 @@ public abstract class DbDaoBulk<M extends Model> extends DbDao<M> {
 	// Internal
 	//
 
-	private <T> T _executeBulk(DbFunction fn, List<M> mods, Class<T> type)
-		throws DatabaseException
+	private List<M> split(List<M> models, int split)
 	{
-		Map<String, Object> params = fn.getParameters();
-		for (String param : params.keySet()) {
-
-			Object[] data = new Object[mods.size()];
-			Method getMeth = columnGetterMapping.get(param);
-			Class<?> getType = columnTypeMapping.get(param);
+		int fromIdx = (split * commitSize);
+		int toIdx = Math.min(fromIdx + commitSize, models.size());
 
-			// Prepare data values
-			for (int iData = 0; iData < mods.size(); iData++) {
+		return models.subList(fromIdx, toIdx);
+	}
 
-				Object val = null;
-				try {
-					val = data[iData] = getMeth.invoke(mods.get(iData));
+	/**
+	 * The splits are taken in order by the lanes of the parallelism, each
+	 * with its own copy of the function. All the splits are executed and
+	 * committed on their own; the failed ones are reported together by a
+	 * BulkException.
+	 */
+	private <T> Object[] executeBulkParallel(DbFunction function, List<M> models, Class<T> objectType,
+		int splits) throws DatabaseException
+	{
+		Object[] res = new Object[splits];
+		SortedMap<Integer, Throwable> errors = new ConcurrentSkipListMap<>();
+		AtomicInteger next = new AtomicInteger();
+
+		int lanes = Math.min(parallelism, splits);
+		List<CompletableFuture<Void>> futures = new ArrayList<>(lanes);
+		for (int lane = 0; lane < lanes; lane++) {
+			futures.add(async(() -> {
+				Map<String, Object> buffers = new HashMap<>();
+				int split;
+				while ((split = next.getAndIncrement()) < splits) {
+					try {
+						res[split] = _executeBulk(function.copy(), split(models, split), objectType, buffers);
+					}
+					catch (Exception e) {
+						errors.put(split, e);
+					}
 				}
-				catch (Exception e) {}
-
-				if (val != null && getType.isAssignableFrom(Date.class))
-					data[iData] = new java.sql.Timestamp(((Date) val).getTime());
-			}
-			params.put(param, data);
+				return null;
+			}));
+		}
 
-			// Prepare database types
-			String oraType;
+		for (CompletableFuture<Void> future : futures) {
 			try {
-				getType.asSubclass(Number.class);
-				oraType = "T_NUMBER_T";
+				future.join();
 			}
-			catch (Exception e) {
-
-				if (getType.isAssignableFrom(Boolean.class)) {
-					oraType = "T_NUMBER_T";
-				}
-				else if (getType.isAssignableFrom(String.class)) {
-					oraType = "T_VARCHAR2_T";
-				}
-				else if (getType.isAssignableFrom(Date.class)) {
-					oraType = "T_DATE_T";
-				}
-				else
-					throw new DatabaseException(
-						"No such Oracle type found for bind the Java type " + getType);
+			catch (CompletionException e) {
+				throw new DatabaseException(e.getCause());
 			}
-			fn.getParametersTypes().put(param, oraType);
+		}
+
+		if (! errors.isEmpty())
+			throw new BulkException(res, errors);
+
+		return res;
+	}
+
+	private <T> T _executeBulk(DbFunction fn, List<M> mods, Class<T> type, Map<String, Object> buffers)
+		throws DatabaseException
+	{
+		for (String name : fn.getParameters().keySet()) {
+
+			DbColumnExtractor<M> extractor = columnExtractors.get(name);
+			if (extractor == null)
+				throw new DatabaseException(String.format(
+					"Model has not field for the parameter '%s'", name));
+
+			Object data = extractor.extract(mods, buffers.get(name));
+			buffers.put(name, data);
+
+			fn.parameters.put(name, data);
+			fn.getParametersTypes().put(name, extractor.getDbType());
 		}
 
 		return execute(fn, type);
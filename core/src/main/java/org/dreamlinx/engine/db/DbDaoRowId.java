@@ -20,8 +20,14 @@
 
 package org.dreamlinx.engine.db;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.apache.commons.lang3.Validate;
 import org.dreamlinx.engine.error.DatabaseException;
@@ -41,6 +47,9 @@ public abstract class DbDaoRowId<M extends Model> extends DbDao<M> {
 	 */
 	int DEFAULT_MAX_PARAM_LIST = 1000;
 
+	private static final String ROWIDS_PARAM = "p_rowids";
+	private static final String ROWIDS_TYPE = "T_LIST_ROWID";
+
 	/**
 	 * Retrieve a map of Models from a function by a list of rowids. The
 	 * function must have only a parameter of Oracle type `T_LIST_ROWID`.
@@ -58,27 +67,23 @@ public abstract class DbDaoRowId<M extends Model> extends DbDao<M> {
 		Validate.notNull(function, "function cannot be null");
 		Validate.notEmpty(rowIds, "rowIds cannot be empty");
 
+		List<String> uniqueIds = distinct(rowIds);
+		List<Map<Key, M>> maps = fetch(function, uniqueIds,
+			(fn, size) -> queryForModelMap(fn, size));
+
+		if (maps.size() == 1)
+			return maps.get(0);
+
 		Map<Key, M> map = null;
-		if (rowIds.size() > DEFAULT_MAX_PARAM_LIST) {
-
-			for (int split = 0; split < sizeOfSplits(rowIds); split++) {
-				List<String> splits = splitRows(rowIds, split);
-
-				if (map == null) {
-					map = _queryForModelMap(function, splits);
-				}
-				else {
-					Map<Key, M> subMap = _queryForModelMap(function, splits);
-
-					if (subMap != null && map != null)
-						map.putAll(subMap);
-					else if (subMap != null)
-						map = subMap;
-				}
-			}
+		for (Map<Key, M> subMap : maps) {
+			if (subMap == null)
+				continue;
+
+			if (map == null)
+				map = newMap(uniqueIds.size());
+
+			map.putAll(subMap);
 		}
-		else
-			map = _queryForModelMap(function, rowIds);
 
 		return map;
 	}
@@ -100,27 +105,23 @@ public abstract class DbDaoRowId<M extends Model> extends DbDao<M> {
 		Validate.notNull(function, "function cannot be null");
 		Validate.notEmpty(rowIds, "rowIds cannot be empty");
 
+		List<String> uniqueIds = distinct(rowIds);
+		List<List<M>> lists = fetch(function, uniqueIds,
+			(fn, size) -> queryForModelList(fn, size));
+
+		if (lists.size() == 1)
+			return lists.get(0);
+
 		List<M> list = null;
-		if (rowIds.size() > DEFAULT_MAX_PARAM_LIST) {
-
-			for (int split = 0; split < sizeOfSplits(rowIds); split++) {
-				List<String> splits = splitRows(rowIds, split);
-
-				if (list == null) {
-					list = _queryForModelList(function, splits);
-				}
-				else {
-					List<M> subList = _queryForModelList(function, splits);
-
-					if (subList != null && list != null)
-						list.addAll(subList);
-					else if (subList != null)
-						list = subList;
-				}
-			}
+		for (List<M> subList : lists) {
+			if (subList == null)
+				continue;
+
+			if (list == null)
+				list = new ArrayList<>(uniqueIds.size());
+
+			list.addAll(subList);
 		}
-		else
-			list = _queryForModelList(function, rowIds);
 
 		return list;
 	}
@@ -129,40 +130,89 @@ public abstract class DbDaoRowId<M extends Model> extends DbDao<M> {
 	// Internal
 	//
 
-	private int sizeOfSplits(List<String> rowIds)
+	private List<String> distinct(List<String> rowIds)
 	{
-		return (int) Math.ceil((double) rowIds.size() / DEFAULT_MAX_PARAM_LIST);
+		Set<String> unique = new LinkedHashSet<>(rowIds);
+		return (unique.size() == rowIds.size()) ? rowIds : new ArrayList<>(unique);
 	}
 
-	private List<String> splitRows(List<String> rowIds, int split)
+	/**
+	 * Each split of rowids is queried by its own copy of the function; the
+	 * splits run concurrently on the DbExecutor and the results are returned
+	 * in split order. Within a transaction the splits run in sequence on its
+	 * connection.
+	 */
+	private <R> List<R> fetch(DbFunction function, List<String> rowIds, SplitQuery<R> query)
+		throws DatabaseException
 	{
-		final int fromIdx = (split * DEFAULT_MAX_PARAM_LIST);
-		int toIdx = ((split * DEFAULT_MAX_PARAM_LIST) + DEFAULT_MAX_PARAM_LIST);
-		if (toIdx >= rowIds.size())
-			toIdx = rowIds.size();
+		int splits = sizeOfSplits(rowIds);
+		if (splits == 1)
+			return Collections.singletonList(query.apply(bind(function, rowIds), rowIds.size()));
+
+		if (DbTransaction.current() != null) {
+			List<R> results = new ArrayList<>(splits);
+			for (int split = 0; split < splits; split++) {
+				List<String> splitIds = splitRows(rowIds, split);
+				results.add(query.apply(bind(function, splitIds), splitIds.size()));
+			}
 
-		return rowIds.subList(fromIdx, toIdx);
+			return results;
+		}
+
+		List<CompletableFuture<R>> futures = new ArrayList<>(splits);
+		for (int split = 0; split < splits; split++) {
+			List<String> splitIds = splitRows(rowIds, split);
+			DbFunction fn = bind(function, splitIds);
+
+			futures.add(async(() -> query.apply(fn, splitIds.size())));
+		}
+
+		List<R> results = new ArrayList<>(splits);
+		for (CompletableFuture<R> future : futures) {
+			try {
+				results.add(future.join());
+			}
+			catch (CompletionException e) {
+				if (e.getCause() instanceof DatabaseException)
+					throw (DatabaseException) e.getCause();
+
+				throw new DatabaseException(e.getCause());
+			}
+		}
+
+		return results;
 	}
 
-	private Map<Key, M> _queryForModelMap(DbFunction fn, List<String> rowIds)
-		throws DatabaseException
+	private DbFunction bind(DbFunction function, List<String> rowIds)
 	{
-		fn.getParameters().clear();
+		DbFunction fn = function.copy();
+		if (! fn.getParameters().containsKey(ROWIDS_PARAM))
+			fn.clearParameters();
 
 		String[] arr = rowIds.toArray(new String[rowIds.size()]);
-		fn.addParameter("p_rowids", arr, null, "T_LIST_ROWID");
+		fn.addParameter(ROWIDS_PARAM, arr, null, ROWIDS_TYPE);
 
-		return queryForModelMap(fn, rowIds.size());
+		return fn;
 	}
 
-	private List<M> _queryForModelList(DbFunction fn, List<String> rowIds)
-		throws DatabaseException
+	private int sizeOfSplits(List<String> rowIds)
+	{
+		return (int) Math.ceil((double) rowIds.size() / DEFAULT_MAX_PARAM_LIST);
+	}
+
+	private List<String> splitRows(List<String> rowIds, int split)
 	{
-		fn.getParameters().clear();
+		final int fromIdx = (split * DEFAULT_MAX_PARAM_LIST);
+		int toIdx = ((split * DEFAULT_MAX_PARAM_LIST) + DEFAULT_MAX_PARAM_LIST);
+		if (toIdx >= rowIds.size())
+			toIdx = rowIds.size();
 
-		String[] arr = rowIds.toArray(new String[rowIds.size()]);
-		fn.addParameter("p_rowids", arr, null, "T_LIST_ROWID");
+		return rowIds.subList(fromIdx, toIdx);
+	}
+
+	@FunctionalInterface
+	private interface SplitQuery<R> {
 
-		return queryForModelList(fn, rowIds.size());
+		R apply(DbFunction function, int size) throws DatabaseException;
 	}
 }
@@ -0,0 +1,268 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+import org.dreamlinx.engine.core.Log;
+
+/**
+ * Bounded executor of the database tasks, sized as the connection pool so
+ * each worker can hold a connection. A task submitted by a worker runs
+ * inline, so a task joining other tasks cannot starve the pool. The queue
+ * depth and the wait and execution times are observable.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public final class DbExecutor {
+
+	private static final Logger logger = Log.getEngineLogger();
+	private static final int QUEUE_FACTOR = 64;
+
+	private final ThreadPoolExecutor pool;
+
+	private final LongAdder submitted = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder waitTime = new LongAdder();
+	private final LongAdder execTime = new LongAdder();
+	private final LongAccumulator maxWaitTime = new LongAccumulator(Math::max, 0);
+	private final LongAccumulator maxExecTime = new LongAccumulator(Math::max, 0);
+
+	public DbExecutor(int size) {
+
+		Validate.isTrue(size > 0, "size must be greater than zero");
+
+		AtomicInteger count = new AtomicInteger();
+		pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<>(size * QUEUE_FACTOR),
+			task -> new Worker(task, "DbExecutor-" + count.incrementAndGet()),
+			DbExecutor::saturated);
+		pool.allowCoreThreadTimeOut(true);
+
+		if (logger.isDebugEnabled())
+			logger.debug(String.format("DbExecutor is now active with %d workers.", size));
+	}
+
+	/**
+	 * Submit the task and returns its future. When the caller is a worker of
+	 * the executor, the task runs inline.
+	 *
+	 * @param Callable<T> task
+	 * @return CompletableFuture<T>
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task)
+	{
+		Validate.notNull(task, "task cannot be null");
+
+		CompletableFuture<T> future = new CompletableFuture<>();
+		long queued = System.nanoTime();
+		submitted.increment();
+
+		Runnable run = () -> {
+			long start = System.nanoTime();
+			record(waitTime, maxWaitTime, start - queued);
+
+			T result = null;
+			Throwable error = null;
+			try {
+				result = task.call();
+			}
+			catch (Throwable t) {
+				error = t;
+			}
+
+			record(execTime, maxExecTime, System.nanoTime() - start);
+			if (error != null) {
+				failed.increment();
+				future.completeExceptionally(error);
+			}
+			else {
+				completed.increment();
+				future.complete(result);
+			}
+		};
+
+		if (Thread.currentThread() instanceof Worker)
+			run.run();
+		else {
+			try {
+				pool.execute(run);
+			}
+			catch (RejectedExecutionException e) {
+				failed.increment();
+				future.completeExceptionally(e);
+			}
+		}
+
+		return future;
+	}
+
+	/**
+	 * Initiates an orderly shutdown: the submitted tasks are executed, but no
+	 * new tasks will be accepted.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	/**
+	 * Number of the tasks waiting for a worker.
+	 *
+	 * @return int
+	 */
+	public int getQueueDepth()
+	{
+		return pool.getQueue().size();
+	}
+
+	/**
+	 * Number of the workers running a task.
+	 *
+	 * @return int
+	 */
+	public int getActiveCount()
+	{
+		return pool.getActiveCount();
+	}
+
+	/**
+	 * Maximum number of workers.
+	 *
+	 * @return int
+	 */
+	public int getSize()
+	{
+		return pool.getMaximumPoolSize();
+	}
+
+	public long getSubmittedCount()
+	{
+		return submitted.sum();
+	}
+
+	public long getCompletedCount()
+	{
+		return completed.sum();
+	}
+
+	public long getFailedCount()
+	{
+		return failed.sum();
+	}
+
+	/**
+	 * Average time in milliseconds spent by the tasks in the queue.
+	 *
+	 * @return double
+	 */
+	public double getAverageWaitTime()
+	{
+		return average(waitTime);
+	}
+
+	/**
+	 * Maximum time in milliseconds spent by a task in the queue.
+	 *
+	 * @return double
+	 */
+	public double getMaxWaitTime()
+	{
+		return maxWaitTime.get() / 1e6;
+	}
+
+	/**
+	 * Average time in milliseconds of the execution of the tasks.
+	 *
+	 * @return double
+	 */
+	public double getAverageExecutionTime()
+	{
+		return average(execTime);
+	}
+
+	/**
+	 * Maximum time in milliseconds of the execution of a task.
+	 *
+	 * @return double
+	 */
+	public double getMaxExecutionTime()
+	{
+		return maxExecTime.get() / 1e6;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("DbExecutor[size=%d, active=%d, queue=%d, completed=%d, failed=%d, wait=%.3fms, exec=%.3fms]",
+			getSize(), getActiveCount(), getQueueDepth(), getCompletedCount(), getFailedCount(),
+			getAverageWaitTime(), getAverageExecutionTime());
+	}
+
+	//
+	// Internal
+	//
+
+	private static void record(LongAdder sum, LongAccumulator max, long nanos)
+	{
+		sum.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	private double average(LongAdder sum)
+	{
+		long count = completed.sum() + failed.sum();
+		return (count != 0) ? sum.sum() / 1e6 / count : 0;
+	}
+
+	/**
+	 * A saturated executor runs the task on the caller; a shut down one
+	 * rejects it, so its future fails instead of never completing.
+	 */
+	private static void saturated(Runnable task, ThreadPoolExecutor pool)
+	{
+		if (pool.isShutdown())
+			throw new RejectedExecutionException("DbExecutor is shut down.");
+
+		task.run();
+	}
+
+	private static final class Worker extends Thread {
+
+		Worker(Runnable task, String name) {
+
+			super(task, name);
+			setDaemon(true);
+		}
+	}
+}
@@ -24,9 +24,11 @@ import java.sql.Array;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.dreamlinx.engine.error.DatabaseException;
@@ -37,9 +39,7 @@ import org.dreamlinx.engine.error.DatabaseException;
  * @author Marco Merli <yohji@dreamlinx.org>
  * @since 1.0
  */
-public class DbFunction {
-
-	private static final String FN_BLOCK = "{%s call %s(%s)}";
+public class DbFunction implements Cloneable {
 
 	protected String functionName;
 	protected Integer outputType;
@@ -48,6 +48,10 @@ public class DbFunction {
 	protected Map<String, String> parametersFn;
 	protected Map<String, String> parametersTypes;
 
+	private String function;
+	private boolean template;
+	private String[] cacheTags;
+
 	public DbFunction(String functionName) {
 
 		this(functionName, Types.OTHER);
@@ -61,29 +65,19 @@ public class DbFunction {
 		parameters = new LinkedHashMap<>();
 	}
 
+	/**
+	 * Returns the call text of the function. It is compiled once and reused
+	 * until the layout of the parameters changes.
+	 * 
+	 * @return String
+	 */
 	public String getFunction()
 	{
-		StringBuilder paramsList = new StringBuilder();
-
-		if (hasParameters()) {
-			for (String name : parameters.keySet()) {
-
-				if (paramsList.length() != 0)
-					paramsList.append(',');
+		String fn = function;
+		if (fn == null)
+			function = fn = compile();
 
-				String fn;
-				if (parametersFn != null && (fn = parametersFn.get(name)) != null) {
-					paramsList.append(fn);
-					paramsList.append("(?)");
-				}
-				else
-					paramsList.append('?');
-			}
-		}
-
-		return String.format(FN_BLOCK,
-			(hasOuput() ? "? = " : ""),
-			functionName, paramsList.toString());
+		return fn;
 	}
 
 	public void addParameter(String name, Object value)
@@ -100,6 +94,14 @@ public class DbFunction {
 	{
 		Validate.notBlank(name, "name cannot be null");
 
+		boolean layout = ! parameters.containsKey(name)
+			|| (StringUtils.isNotBlank(function) && ! function.equalsIgnoreCase(getParametersFn().get(name)))
+			|| (StringUtils.isNotBlank(type) && ! type.equalsIgnoreCase(getParametersTypes().get(name)));
+
+		if (layout && template)
+			throw new IllegalStateException(String.format(
+				"The layout of the function template '%s' cannot be changed.", functionName));
+
 		parameters.put(name, value);
 
 		if (StringUtils.isNotBlank(function))
@@ -107,6 +109,80 @@ public class DbFunction {
 
 		if (StringUtils.isNotBlank(type))
 			getParametersTypes().put(name, type.toUpperCase());
+
+		if (layout)
+			this.function = null;
+	}
+
+	/**
+	 * Freeze the function as template: the call text and the layout of the
+	 * parameters are compiled once and shared by the functions bound from
+	 * it. The values of the template parameters are the defaults of the
+	 * bound ones.
+	 * 
+	 * @return DbFunction
+	 */
+	public DbFunction template()
+	{
+		getFunction();
+		template = true;
+
+		return this;
+	}
+
+	/**
+	 * Bind a new function to the template, with the values of the parameters
+	 * in the order of their layout. The call text is not compiled again.
+	 * 
+	 * @param Object... values
+	 * @return DbFunction
+	 */
+	public DbFunction bind(Object... values)
+	{
+		Validate.isTrue(template, "function must be a template");
+		Validate.isTrue(values.length == parameters.size(),
+			"expected %d values, found %d", parameters.size(), values.length);
+
+		DbFunction fn;
+		try {
+			fn = (DbFunction) clone();
+		}
+		catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+
+		fn.parameters = new LinkedHashMap<>(parameters);
+		int i = 0;
+		for (Map.Entry<String, Object> param : fn.parameters.entrySet())
+			param.setValue(values[i++]);
+
+		return fn;
+	}
+
+	/**
+	 * Returns a copy of the function, with its own parameters and layout; the
+	 * copy of a template is not a template. The compiled call text is kept.
+	 * 
+	 * @return DbFunction
+	 */
+	public DbFunction copy()
+	{
+		DbFunction fn;
+		try {
+			fn = (DbFunction) clone();
+		}
+		catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+
+		fn.parameters = new LinkedHashMap<>(parameters);
+		if (parametersFn != null)
+			fn.parametersFn = new LinkedHashMap<>(parametersFn);
+		if (parametersTypes != null)
+			fn.parametersTypes = new LinkedHashMap<>(parametersTypes);
+
+		fn.template = false;
+		return fn;
 	}
 
 	public String getFunctionName()
@@ -114,9 +190,33 @@ public class DbFunction {
 		return functionName;
 	}
 
+	/**
+	 * Returns an unmodifiable view of the parameters.
+	 * 
+	 * @return Map<String, Object>
+	 */
 	public Map<String, Object> getParameters()
 	{
-		return parameters;
+		return Collections.unmodifiableMap(parameters);
+	}
+
+	/**
+	 * Remove all the parameters, with their functions and types; the call
+	 * text is compiled again.
+	 */
+	public void clearParameters()
+	{
+		if (template)
+			throw new IllegalStateException(String.format(
+				"The layout of the function template '%s' cannot be changed.", functionName));
+
+		parameters.clear();
+		if (parametersFn != null)
+			parametersFn.clear();
+		if (parametersTypes != null)
+			parametersTypes.clear();
+
+		function = null;
 	}
 
 	public Integer getOutputType()
@@ -134,6 +234,27 @@ public class DbFunction {
 		return (outputType != null);
 	}
 
+	public boolean isTemplate()
+	{
+		return template;
+	}
+
+	/**
+	 * Returns the tables or tags of the cached query results invalidated by
+	 * the function; all the cached results are invalidated when null.
+	 * 
+	 * @return String[]
+	 */
+	public String[] getCacheTags()
+	{
+		return cacheTags;
+	}
+
+	public void setCacheTags(String... cacheTags)
+	{
+		this.cacheTags = cacheTags;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -144,6 +265,45 @@ public class DbFunction {
 	// Internal
 	//
 
+	/**
+	 * Build the call text of the function.
+	 */
+	protected String compile()
+	{
+		StringBuilder fn = new StringBuilder(functionName.length() + 16 + 4 * parameters.size());
+		fn.append('{');
+		if (hasOuput())
+			fn.append("? = ");
+
+		fn.append("call ").append(functionName).append('(');
+		appendParameters(fn);
+
+		return fn.append(")}").toString();
+	}
+
+	/**
+	 * Append the placeholders of the parameters, wrapped by their functions.
+	 */
+	protected StringBuilder appendParameters(StringBuilder fn)
+	{
+		boolean first = true;
+		for (String name : parameters.keySet()) {
+
+			if (! first)
+				fn.append(',');
+
+			first = false;
+
+			String wrapper;
+			if (parametersFn != null && (wrapper = parametersFn.get(name)) != null)
+				fn.append(wrapper).append("(?)");
+			else
+				fn.append('?');
+		}
+
+		return fn;
+	}
+
 	protected void createArrays(Connection conn) throws DatabaseException
 	{
 		if (parametersTypes == null)
@@ -162,7 +322,7 @@ public class DbFunction {
 					throw new IllegalArgumentException(String.format(
 						"Parameter `%s` for type `%s` has not an array value.", param, type));
 
-				parameters.put(param, conn.createArrayOf(type, (Object[]) raw));
+				parameters.put(param, conn.createArrayOf(type, elements(raw)));
 			}
 		}
 		catch (SQLException e) {
@@ -170,6 +330,31 @@ public class DbFunction {
 		}
 	}
 
+	/**
+	 * Box the elements of a primitive array, with the loop typed by the array.
+	 */
+	static Object[] elements(Object raw)
+	{
+		if (raw instanceof Object[])
+			return (Object[]) raw;
+		else if (raw instanceof long[])
+			return ArrayUtils.toObject((long[]) raw);
+		else if (raw instanceof int[])
+			return ArrayUtils.toObject((int[]) raw);
+		else if (raw instanceof double[])
+			return ArrayUtils.toObject((double[]) raw);
+		else if (raw instanceof float[])
+			return ArrayUtils.toObject((float[]) raw);
+		else if (raw instanceof short[])
+			return ArrayUtils.toObject((short[]) raw);
+		else if (raw instanceof byte[])
+			return ArrayUtils.toObject((byte[]) raw);
+		else if (raw instanceof boolean[])
+			return ArrayUtils.toObject((boolean[]) raw);
+		else
+			return ArrayUtils.toObject((char[]) raw);
+	}
+
 	protected void freeArrays() throws DatabaseException
 	{
 		if (parametersTypes == null)
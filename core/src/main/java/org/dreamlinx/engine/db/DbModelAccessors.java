@@ -0,0 +1,191 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.ClassUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+import org.dreamlinx.engine.core.Log;
+
+/**
+ * Generates the accessors of a Model with the LambdaMetafactory, so the
+ * binding of the columns does not pass through the reflection at each row.
+ * When a lambda cannot be generated (not accessible class or class loader
+ * not visible by the engine), it falls back to the reflection.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+final class DbModelAccessors {
+
+	private static final Logger logger = Log.getEngineLogger();
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	/**
+	 * Generate the factory of the class, by its public constructor without
+	 * arguments.
+	 *
+	 * @param Class<M> type
+	 * @return Supplier<M>
+	 */
+	@SuppressWarnings("unchecked")
+	static <M> Supplier<M> constructor(Class<M> type)
+	{
+		Constructor<M> ctor;
+		try {
+			ctor = type.getConstructor();
+		}
+		catch (NoSuchMethodException e) {
+			return () -> {
+				try {
+					return type.getDeclaredConstructor().newInstance();
+				}
+				catch (ReflectiveOperationException ex) {
+					throw new IllegalStateException(ex);
+				}
+			};
+		}
+
+		if (isVisible(type)) {
+			try {
+				MethodHandle impl = lookup.unreflectConstructor(ctor);
+				CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+					MethodType.methodType(Supplier.class),
+					MethodType.methodType(Object.class),
+					impl, MethodType.methodType(type));
+
+				return (Supplier<M>) site.getTarget().invoke();
+			}
+			catch (Throwable t) {
+				fallback(ctor, t);
+			}
+		}
+
+		ctor.setAccessible(true);
+		return () -> {
+			try {
+				return ctor.newInstance();
+			}
+			catch (ReflectiveOperationException e) {
+				throw new IllegalStateException(e);
+			}
+		};
+	}
+
+	/**
+	 * Generate the accessor of the method as instance of the functional
+	 * interface. The first parameter of the interface is the Model; the
+	 * primitive parameters and return types are bound without boxing.
+	 *
+	 * @param Class<F> iface
+	 * @param Method method
+	 * @return F
+	 */
+	static <F> F accessor(Class<F> iface, Method method)
+	{
+		Method sam = null;
+		for (Method m : iface.getMethods())
+			if (Modifier.isAbstract(m.getModifiers()))
+				sam = m;
+
+		Validate.notNull(sam, "iface must be a functional interface");
+
+		Class<?> owner = method.getDeclaringClass();
+		if (isVisible(owner)) {
+			try {
+				MethodHandle impl = lookup.unreflect(method);
+				MethodType samType = MethodType.methodType(sam.getReturnType(), sam.getParameterTypes());
+
+				CallSite site = LambdaMetafactory.metafactory(lookup, sam.getName(),
+					MethodType.methodType(iface), samType, impl, instantiated(samType, impl.type()));
+
+				return iface.cast(site.getTarget().invoke());
+			}
+			catch (Throwable t) {
+				fallback(method, t);
+			}
+		}
+
+		try {
+			method.setAccessible(true);
+			return MethodHandleProxies.asInterfaceInstance(iface, lookup.unreflect(method));
+		}
+		catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	//
+	// Internal
+	//
+
+	/**
+	 * The erased types of the interface are narrowed to the types of the
+	 * method; the Object ones are narrowed to the wrapper types.
+	 */
+	private static MethodType instantiated(MethodType samType, MethodType implType)
+	{
+		Class<?>[] params = new Class<?>[samType.parameterCount()];
+		for (int i = 0; i < params.length; i++) {
+			Class<?> samParam = samType.parameterType(i);
+			params[i] = samParam.isPrimitive() ? samParam : ClassUtils.primitiveToWrapper(implType.parameterType(i));
+		}
+
+		Class<?> ret = samType.returnType();
+		if (! ret.isPrimitive())
+			ret = ClassUtils.primitiveToWrapper(implType.returnType());
+
+		return MethodType.methodType(ret, params);
+	}
+
+	/**
+	 * The generated class lives in the class loader of the engine: the class
+	 * of the model must be resolvable from there.
+	 */
+	static boolean isVisible(Class<?> type)
+	{
+		try {
+			return Class.forName(type.getName(), false, DbModelAccessors.class.getClassLoader()) == type;
+		}
+		catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	private static void fallback(Object member, Throwable cause)
+	{
+		if (logger.isDebugEnabled())
+			logger.debug(String.format("Reflection in use for '%s': %s", member, cause));
+	}
+
+	private DbModelAccessors() {}
+}
@@ -45,8 +45,21 @@ public class DbProperties implements Serializable {
 	private String password;
 
 	private Short poolSize = 10;
+	private Short poolMinIdle = 2;
+	private Integer borrowTimeout = 30000;
+	private Integer maxLifetime = 1800000;
+	private Integer idleTimeout = 600000;
+	private Integer validationInterval = 5000;
+	private Integer evictionInterval = 30000;
+	private Integer leakDetectionThreshold = 0;
 	private Integer fetchSize = 100;
 	private Integer commitSize = 1000;
+	private Integer statementCacheSize = 100;
+	private Integer bulkParallelism = 1;
+	private Integer queryCacheSize = 1000;
+	private Integer slowQueryThreshold = 1000;
+	private Boolean adaptiveSizing = true;
+	private Boolean projectionCheck = false;
 
 	private Integer notificationPort;
 
@@ -130,6 +143,118 @@ public class DbProperties implements Serializable {
 		this.poolSize = poolSize;
 	}
 
+	public Short getPoolMinIdle()
+	{
+		return poolMinIdle;
+	}
+
+	public void setPoolMinIdle(Short poolMinIdle)
+	{
+		this.poolMinIdle = poolMinIdle;
+	}
+
+	/**
+	 * Maximum time in milliseconds waiting for a pooled connection.
+	 * 
+	 * @return Integer
+	 */
+	public Integer getBorrowTimeout()
+	{
+		return borrowTimeout;
+	}
+
+	public void setBorrowTimeout(Integer borrowTimeout)
+	{
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	/**
+	 * Maximum time in milliseconds a pooled connection is kept open.
+	 * 
+	 * @return Integer
+	 */
+	public Integer getMaxLifetime()
+	{
+		return maxLifetime;
+	}
+
+	public void setMaxLifetime(Integer maxLifetime)
+	{
+		this.maxLifetime = maxLifetime;
+	}
+
+	/**
+	 * Maximum time in milliseconds a pooled connection is kept idle, beyond
+	 * the minimum idle ones.
+	 * 
+	 * @return Integer
+	 */
+	public Integer getIdleTimeout()
+	{
+		return idleTimeout;
+	}
+
+	public void setIdleTimeout(Integer idleTimeout)
+	{
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Time in milliseconds after which a pooled connection is validated
+	 * again when it is borrowed.
+	 * 
+	 * @return Integer
+	 */
+	public Integer getValidationInterval()
+	{
+		return validationInterval;
+	}
+
+	public void setValidationInterval(Integer validationInterval)
+	{
+		this.validationInterval = validationInterval;
+	}
+
+	/**
+	 * Time in milliseconds between the evictions in background of the idle
+	 * connections exceeding the lifetime or the idle timeout; zero disables
+	 * the eviction in background.
+	 * 
+	 * @return Integer
+	 */
+	public Integer getEvictionInterval()
+	{
+		return evictionInterval;
+	}
+
+	public void setEvictionInterval(Integer evictionInterval)
+	{
+		this.evictionInterval = evictionInterval;
+	}
+
+	/**
+	 * Time in milliseconds after which a borrowed connection is reported as
+	 * leaked, with the stack of its borrower; zero disables the detection.
+	 * 
+	 * @return Integer
+	 */
+	public Integer getLeakDetectionThreshold()
+	{
+		return leakDetectionThreshold;
+	}
+
+	public void setLeakDetectionThreshold(Integer leakDetectionThreshold)
+	{
+		this.leakDetectionThreshold = leakDetectionThreshold;
+	}
+
+	/**
+	 * Number of the rows fetched in a round trip, unless the query gives its
+	 * own; zero keeps the default of the driver. When null, the fetch size
+	 * is chosen by the adaptive sizing.
+	 * 
+	 * @return Integer
+	 */
 	public Integer getFetchSize()
 	{
 		return fetchSize;
@@ -150,6 +275,85 @@ public class DbProperties implements Serializable {
 		this.commitSize = commitSize;
 	}
 
+	public Integer getStatementCacheSize()
+	{
+		return statementCacheSize;
+	}
+
+	public void setStatementCacheSize(Integer statementCacheSize)
+	{
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	public Integer getBulkParallelism()
+	{
+		return bulkParallelism;
+	}
+
+	public void setBulkParallelism(Integer bulkParallelism)
+	{
+		this.bulkParallelism = bulkParallelism;
+	}
+
+	public Integer getQueryCacheSize()
+	{
+		return queryCacheSize;
+	}
+
+	public void setQueryCacheSize(Integer queryCacheSize)
+	{
+		this.queryCacheSize = queryCacheSize;
+	}
+
+	/**
+	 * Time in milliseconds after which a query is logged as slow, with its
+	 * parameters; zero disables the log.
+	 * 
+	 * @return Integer
+	 */
+	public Integer getSlowQueryThreshold()
+	{
+		return slowQueryThreshold;
+	}
+
+	public void setSlowQueryThreshold(Integer slowQueryThreshold)
+	{
+		this.slowQueryThreshold = slowQueryThreshold;
+	}
+
+	/**
+	 * Whether the results are presized and the fetch size chosen by the
+	 * history of the queries, when not given; the fetch size only when the
+	 * global one is null.
+	 * 
+	 * @return Boolean
+	 */
+	public Boolean getAdaptiveSizing()
+	{
+		return adaptiveSizing;
+	}
+
+	public void setAdaptiveSizing(Boolean adaptiveSizing)
+	{
+		this.adaptiveSizing = adaptiveSizing;
+	}
+
+	/**
+	 * Whether the queries fetching columns without binding in the Model are
+	 * logged, with the bytes they waste.
+	 * 
+	 * @return Boolean
+	 */
+	public Boolean getProjectionCheck()
+	{
+		return projectionCheck;
+	}
+
+	public void setProjectionCheck(Boolean projectionCheck)
+	{
+		this.projectionCheck = projectionCheck;
+	}
+
 	public Integer getNotificationPort()
 	{
 		return notificationPort;
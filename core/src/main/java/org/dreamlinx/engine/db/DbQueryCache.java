@@ -0,0 +1,394 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.Validate;
+import org.dreamlinx.engine.error.DatabaseException;
+
+/**
+ * Cache of the results of the SQL queries, keyed by the SQL text and the
+ * values of the parameters. Only the queries with a cache expiry are cached.
+ * The cached results are shared by all the callers: the collections are
+ * unmodifiable, and the Models and the arrays must be treated as read-only.
+ * A cached result is discarded when it expires, or when one of its tables
+ * or tags is invalidated; the tables modified by the DAO are invalidated
+ * automatically. A result loaded while one of its tables or tags is
+ * invalidated is not cached. When the cache is full, the results with the
+ * oldest expiry are evicted, the expired ones first.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public final class DbQueryCache {
+
+	private static final Pattern TABLES = Pattern.compile(
+		"\\b(?:FROM|JOIN|UPDATE|INTO)\\s+([\\w.$\"]+)", Pattern.CASE_INSENSITIVE);
+
+	private final int maxSize;
+	private final Map<Object, Entry> entries = new ConcurrentHashMap<>();
+	private final NavigableSet<Entry> expiries = new ConcurrentSkipListSet<>();
+	private final Map<String, Set<Object>> tagged = new ConcurrentHashMap<>();
+	private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+	private final AtomicLong epoch = new AtomicLong();
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public DbQueryCache(int size) {
+
+		Validate.isTrue(size > 0, "size must be greater than zero");
+
+		this.maxSize = size;
+	}
+
+	/**
+	 * Returns the cached result of the query, or load and cache it when the
+	 * query has a cache expiry. The loader receives a copy of the query
+	 * without the cache expiry. The kind distinguishes the shapes of the
+	 * result of the same query.
+	 *
+	 * @param DbSQLQuery sqlQuery
+	 * @param String kind
+	 * @param Loader<T> loader
+	 * @return T
+	 * @throws DatabaseException
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(DbSQLQuery sqlQuery, String kind, Loader<T> loader) throws DatabaseException
+	{
+		if (sqlQuery.getCacheExpiry() == null)
+			return loader.load(sqlQuery);
+
+		Object key = new QueryKey(kind, sqlQuery);
+		Entry entry = entries.get(key);
+		long now = System.currentTimeMillis();
+
+		if (entry != null && entry.expiresAt > now) {
+			hits.increment();
+			return (T) entry.value;
+		}
+		misses.increment();
+
+		Set<String> tags = tags(sqlQuery);
+		long stamp = stamp(tags);
+
+		DbSQLQuery uncached = sqlQuery.copy();
+		uncached.setCacheExpiry(null);
+		T value = loader.load(uncached);
+
+		if (stamp(tags) == stamp) {
+			entry = new Entry(key, value, now + sqlQuery.getCacheExpiry(), tags, sequence.incrementAndGet());
+			remove(key, entries.put(key, entry));
+			expiries.add(entry);
+
+			for (String tag : tags)
+				tagged.computeIfAbsent(tag, t -> ConcurrentHashMap.newKeySet()).add(key);
+
+			// Invalidated while caching
+			if (stamp(tags) != stamp && entries.remove(key, entry))
+				remove(key, entry);
+
+			evict();
+		}
+
+		return value;
+	}
+
+	/**
+	 * Discard all the results of the queries on the table, or with the tag.
+	 *
+	 * @param String tag
+	 */
+	public void invalidate(String tag)
+	{
+		tag = normalize(tag);
+		generation(tag).incrementAndGet();
+
+		Set<Object> keys = tagged.remove(tag);
+		if (keys == null)
+			return;
+
+		for (Object key : keys) {
+			Entry entry = entries.remove(key);
+			if (entry != null) {
+				remove(key, entry);
+				invalidations.increment();
+			}
+		}
+	}
+
+	/**
+	 * Discard all the results of the queries on the tables of the statement.
+	 *
+	 * @param DbSQLQuery sqlQuery
+	 */
+	public void invalidate(DbSQLQuery sqlQuery)
+	{
+		invalidate(tags(sqlQuery));
+	}
+
+	/**
+	 * Discard all the results of the queries on the tables, or with the tags
+	 * of the function; all the results when it has not tags.
+	 *
+	 * @param DbFunction function
+	 */
+	public void invalidate(DbFunction function)
+	{
+		Set<String> tags = tags(function);
+		if (tags != null)
+			invalidate(tags);
+		else
+			invalidateAll();
+	}
+
+	/**
+	 * Discard all the results of the queries on the tables, or with the tags.
+	 *
+	 * @param Set<String> tags
+	 */
+	public void invalidate(Set<String> tags)
+	{
+		for (String tag : tags)
+			invalidate(tag);
+	}
+
+	/**
+	 * Discard all the cached results.
+	 */
+	public void invalidateAll()
+	{
+		epoch.incrementAndGet();
+		entries.clear();
+		expiries.clear();
+		tagged.clear();
+	}
+
+	/**
+	 * Number of the cached results.
+	 *
+	 * @return int
+	 */
+	public int size()
+	{
+		return entries.size();
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	public long getInvalidations()
+	{
+		return invalidations.sum();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	/**
+	 * Returns the tables referred by the SQL text, in upper case.
+	 *
+	 * @param String sql
+	 * @return Set<String>
+	 */
+	public static Set<String> tables(String sql)
+	{
+		Set<String> tables = new LinkedHashSet<>();
+		Matcher matcher = TABLES.matcher(sql);
+		while (matcher.find())
+			tables.add(normalize(matcher.group(1)));
+
+		return tables;
+	}
+
+	/**
+	 * Loader of the result of a query.
+	 */
+	@FunctionalInterface
+	public interface Loader<T> {
+
+		T load(DbSQLQuery sqlQuery) throws DatabaseException;
+	}
+
+	//
+	// Internal
+	//
+
+	static Set<String> tags(DbSQLQuery sqlQuery)
+	{
+		Set<String> tags = tables(sqlQuery.getQuery());
+		if (sqlQuery.getCacheTags() != null)
+			for (String tag : sqlQuery.getCacheTags())
+				tags.add(normalize(tag));
+
+		return tags;
+	}
+
+	static Set<String> tags(DbFunction function)
+	{
+		if (function.getCacheTags() == null)
+			return null;
+
+		Set<String> tags = new LinkedHashSet<>();
+		for (String tag : function.getCacheTags())
+			tags.add(normalize(tag));
+
+		return tags;
+	}
+
+	private static String normalize(String tag)
+	{
+		return tag.replace("\"", "").trim().toUpperCase();
+	}
+
+	private AtomicLong generation(String tag)
+	{
+		return generations.computeIfAbsent(tag, t -> new AtomicLong());
+	}
+
+	/**
+	 * The generations only grow, so their sum changes on any invalidation
+	 * of the tags.
+	 */
+	private long stamp(Set<String> tags)
+	{
+		long stamp = epoch.get();
+		for (String tag : tags)
+			stamp += generation(tag).get();
+
+		return stamp;
+	}
+
+	/**
+	 * The expiries are ordered, so each eviction takes the first one without
+	 * scanning the entries.
+	 */
+	private void evict()
+	{
+		while (entries.size() > maxSize) {
+			Entry eldest = expiries.pollFirst();
+			if (eldest == null)
+				return;
+
+			if (entries.remove(eldest.key, eldest)) {
+				remove(eldest.key, eldest);
+				evictions.increment();
+			}
+		}
+	}
+
+	private void remove(Object key, Entry entry)
+	{
+		if (entry == null)
+			return;
+
+		expiries.remove(entry);
+		for (String tag : entry.tags) {
+			Set<Object> keys = tagged.get(tag);
+			if (keys != null && entries.get(key) == null)
+				keys.remove(key);
+		}
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+
+		final Object key;
+		final Object value;
+		final long expiresAt;
+		final Set<String> tags;
+		final long sequence;
+
+		Entry(Object key, Object value, long expiresAt, Set<String> tags, long sequence) {
+
+			this.key = key;
+			this.value = value;
+			this.expiresAt = expiresAt;
+			this.tags = tags;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry other)
+		{
+			int c = Long.compare(expiresAt, other.expiresAt);
+			return (c != 0) ? c : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private static final class QueryKey {
+
+		private final String kind;
+		private final String sql;
+		private final Object[] params;
+		private final int hash;
+
+		QueryKey(String kind, DbSQLQuery sqlQuery) {
+
+			this.kind = kind;
+			this.sql = sqlQuery.getQuery();
+			this.params = sqlQuery.getParameters().values().toArray();
+			this.hash = 31 * (31 * kind.hashCode() + sql.hashCode()) + Arrays.deepHashCode(params);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj)
+				return true;
+			if (! (obj instanceof QueryKey))
+				return false;
+
+			QueryKey other = (QueryKey) obj;
+			return hash == other.hash && kind.equals(other.kind) && sql.equals(other.sql)
+				&& Arrays.deepEquals(params, other.params);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,560 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.lang.management.ManagementFactory;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.dreamlinx.engine.core.Log;
+import org.dreamlinx.engine.model.Model;
+import org.dreamlinx.engine.sys.struct.Histogram;
+
+/**
+ * Metrics of the queries executed by the DAOs, by the identity of the query:
+ * the XML key of the query, the name of the function or the hash of the SQL.
+ * For each query are recorded, in lock-free histograms, the execution time
+ * up to the first row, the fetch time of the rows and their mapping time,
+ * the rows returned and the errors. The queries slower than the threshold
+ * are logged with their parameters.
+ * <p>
+ * The identities beyond the maximum are merged in the OTHERS one, so the
+ * queries built on the fly cannot exhaust the memory.
+ * <p>
+ * When adaptive, the decayed estimates of the rows and of their width in
+ * bytes presize the results of the next executions and choose their fetch
+ * size, so a large result is fetched in few round trips and a small one in
+ * a single round trip. The sizes given by the callers take priority, and
+ * so does the global fetch size, when it is configured.
+ * <p>
+ * With the projection check, the bytes of the columns fetched without
+ * binding in the Model are counted, and each query wasting them is logged
+ * once for each shape of its result.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class DbQueryMetrics implements DbQueryMetricsMXBean {
+
+	private static final Logger logger = Log.getEngineLogger();
+	private static final String MBEAN_NAME = "org.dreamlinx.engine.db:type=DbQueryMetrics";
+
+	public static final String OTHERS = "*";
+	private static final int MAX_QUERIES = 1000;
+
+	private static final double DECAY = 0.25;
+	private static final int FETCH_BYTES = 256 * 1024;
+	private static final int MIN_FETCH_SIZE = 16;
+	private static final int MAX_FETCH_SIZE = 10000;
+
+	private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+	private final LongAdder slowQueries = new LongAdder();
+	private volatile long slowQueryThreshold;
+	private volatile boolean adaptive = true;
+	private volatile boolean projectionCheck;
+	private ObjectName mbeanName;
+
+	/**
+	 * @param long slowQueryThreshold in milliseconds, zero disables the log
+	 */
+	public DbQueryMetrics(long slowQueryThreshold) {
+
+		this.slowQueryThreshold = slowQueryThreshold;
+	}
+
+	/**
+	 * Returns the identity of the query.
+	 *
+	 * @param DbSQLQuery sqlQuery
+	 * @return String
+	 */
+	public static String identity(DbSQLQuery sqlQuery)
+	{
+		if (sqlQuery.getName() != null)
+			return sqlQuery.getName();
+
+		return "SQL#" + Integer.toHexString(sqlQuery.getQuery().hashCode());
+	}
+
+	/**
+	 * Returns the identity of the function.
+	 *
+	 * @param DbFunction function
+	 * @return String
+	 */
+	public static String identity(DbFunction function)
+	{
+		if (function.getFunctionName() != null)
+			return function.getFunctionName();
+
+		return "SQL#" + Integer.toHexString(function.getFunction().hashCode());
+	}
+
+	/**
+	 * Returns the metrics of the query, or null when it is not yet executed.
+	 *
+	 * @param String identity
+	 * @return Stats
+	 */
+	public Stats getStats(String identity)
+	{
+		return stats.get(identity);
+	}
+
+	/**
+	 * Forget the metrics of all the queries.
+	 */
+	public void reset()
+	{
+		stats.clear();
+		slowQueries.reset();
+	}
+
+	@Override
+	public int getQueryCount()
+	{
+		return stats.size();
+	}
+
+	@Override
+	public long getSlowQueryCount()
+	{
+		return slowQueries.sum();
+	}
+
+	@Override
+	public long getSlowQueryThreshold()
+	{
+		return slowQueryThreshold;
+	}
+
+	@Override
+	public void setSlowQueryThreshold(long slowQueryThreshold)
+	{
+		this.slowQueryThreshold = slowQueryThreshold;
+	}
+
+	@Override
+	public boolean isAdaptive()
+	{
+		return adaptive;
+	}
+
+	@Override
+	public void setAdaptive(boolean adaptive)
+	{
+		this.adaptive = adaptive;
+	}
+
+	@Override
+	public boolean isProjectionCheck()
+	{
+		return projectionCheck;
+	}
+
+	@Override
+	public void setProjectionCheck(boolean projectionCheck)
+	{
+		this.projectionCheck = projectionCheck;
+	}
+
+	@Override
+	public Map<String, Long> getExecutionsByQuery()
+	{
+		Map<String, Long> map = new TreeMap<>();
+		for (Entry<String, Stats> entry : stats.entrySet())
+			map.put(entry.getKey(), entry.getValue().execTime.getCount());
+
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getErrorsByQuery()
+	{
+		Map<String, Long> map = new TreeMap<>();
+		for (Entry<String, Stats> entry : stats.entrySet())
+			map.put(entry.getKey(), entry.getValue().getErrorCount());
+
+		return map;
+	}
+
+	@Override
+	public Map<String, Double> getExecTimeMeanByQuery()
+	{
+		return byQuery(s -> s.execTime.getMean() / 1e6);
+	}
+
+	@Override
+	public Map<String, Double> getExecTime99thByQuery()
+	{
+		return byQuery(s -> s.execTime.getPercentile(99) / 1e6);
+	}
+
+	@Override
+	public Map<String, Double> getFetchTimeMeanByQuery()
+	{
+		return byQuery(s -> s.fetchTime.getMean() / 1e6);
+	}
+
+	@Override
+	public Map<String, Double> getMapTimeMeanByQuery()
+	{
+		return byQuery(s -> s.mapTime.getMean() / 1e6);
+	}
+
+	@Override
+	public Map<String, Double> getRowsMeanByQuery()
+	{
+		return byQuery(s -> s.rows.getMean());
+	}
+
+	@Override
+	public Map<String, Long> getWastedBytesByQuery()
+	{
+		Map<String, Long> map = new TreeMap<>();
+		for (Entry<String, Stats> entry : stats.entrySet())
+			if (entry.getValue().getWastedBytes() > 0)
+				map.put(entry.getKey(), entry.getValue().getWastedBytes());
+
+		return map;
+	}
+
+	@Override
+	public Map<String, Double> getRowsEstimateByQuery()
+	{
+		return byQuery(s -> s.rowsEstimate);
+	}
+
+	/**
+	 * Register the metrics on the platform MBean server.
+	 */
+	public void registerMBean()
+	{
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(MBEAN_NAME);
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+
+			server.registerMBean(this, objectName);
+			mbeanName = objectName;
+		}
+		catch (Exception e) {
+			logger.warn(String.format("Metrics of the queries are not registered: %s", e.getMessage()));
+		}
+	}
+
+	/**
+	 * Unregister the metrics from the platform MBean server.
+	 */
+	public void unregisterMBean()
+	{
+		if (mbeanName == null)
+			return;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		}
+		catch (Exception e) {
+			// quiet
+		}
+
+		mbeanName = null;
+	}
+
+	/**
+	 * Metrics of a query; the times are in nanoseconds.
+	 */
+	public static final class Stats {
+
+		private final Histogram execTime = new Histogram();
+		private final Histogram fetchTime = new Histogram();
+		private final Histogram mapTime = new Histogram();
+		private final Histogram rows = new Histogram();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder wastedBytes = new LongAdder();
+		private volatile DbRowMapper<?> checked;
+		private volatile double rowsEstimate = - 1;
+		private volatile double widthEstimate = - 1;
+
+		public Histogram getExecTime()
+		{
+			return execTime;
+		}
+
+		public Histogram getFetchTime()
+		{
+			return fetchTime;
+		}
+
+		public Histogram getMapTime()
+		{
+			return mapTime;
+		}
+
+		public Histogram getRows()
+		{
+			return rows;
+		}
+
+		public long getErrorCount()
+		{
+			return errors.sum();
+		}
+
+		/**
+		 * Estimated bytes of the columns fetched without binding in the
+		 * Model, counted with the projection check.
+		 *
+		 * @return long
+		 */
+		public long getWastedBytes()
+		{
+			return wastedBytes.sum();
+		}
+
+		/**
+		 * Decayed estimate of the rows of the result, or -1 when unknown.
+		 *
+		 * @return double
+		 */
+		public double getRowsEstimate()
+		{
+			return rowsEstimate;
+		}
+
+		/**
+		 * Decayed estimate of the width in bytes of the rows, or -1 when
+		 * unknown.
+		 *
+		 * @return double
+		 */
+		public double getWidthEstimate()
+		{
+			return widthEstimate;
+		}
+
+		/**
+		 * The concurrent updates may be lost, as for a sample.
+		 */
+		void learn(int rows, int width)
+		{
+			rowsEstimate = decay(rowsEstimate, rows);
+			if (width > 0)
+				widthEstimate = decay(widthEstimate, width);
+		}
+
+		private static double decay(double estimate, double value)
+		{
+			return (estimate < 0) ? value : estimate + DECAY * (value - estimate);
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("Stats[exec=%s, fetch=%s, map=%s, rows=%s, errors=%d]",
+				execTime, fetchTime, mapTime, rows, getErrorCount());
+		}
+	}
+
+	//
+	// Internal
+	//
+
+	/**
+	 * Starts the probe of an execution of the query.
+	 */
+	Probe probe(String identity, Map<String, Object> parameters)
+	{
+		return new Probe(identity, parameters);
+	}
+
+	private Stats stats(String identity)
+	{
+		Stats s = stats.get(identity);
+		if (s == null) {
+			if (stats.size() >= MAX_QUERIES)
+				identity = OTHERS;
+
+			s = stats.computeIfAbsent(identity, k -> new Stats());
+		}
+
+		return s;
+	}
+
+	private Map<String, Double> byQuery(ToDoubleFunction<Stats> metric)
+	{
+		Map<String, Double> map = new TreeMap<>();
+		for (Entry<String, Stats> entry : stats.entrySet())
+			map.put(entry.getKey(), metric.applyAsDouble(entry.getValue()));
+
+		return map;
+	}
+
+	/**
+	 * An execution of a query, owned by a single thread. The fetch time is
+	 * the time past the execution which is not spent in mapping the rows.
+	 */
+	final class Probe {
+
+		private final String identity;
+		private final Map<String, Object> parameters;
+		private final Stats stats;
+		private final long start = System.nanoTime();
+		private long executed;
+		private long mapping;
+		private int rows;
+		private int width;
+		private DbRowMapper<?> mapper;
+		private boolean failed;
+		private boolean closed;
+
+		Probe(String identity, Map<String, Object> parameters) {
+
+			this.identity = identity;
+			this.parameters = parameters;
+			this.stats = stats(identity);
+		}
+
+		/**
+		 * Returns the size given by the caller or, when adaptive, the
+		 * expected rows of the result; null when unknown.
+		 */
+		Number size(Number hint)
+		{
+			if (hint != null || ! adaptive || stats.rowsEstimate < 0)
+				return hint;
+
+			return (int) Math.ceil(stats.rowsEstimate * 1.1) + 1;
+		}
+
+		/**
+		 * Returns the fetch size given by the caller or, when adaptive, the
+		 * one fetching the expected rows in a round trip, up to the bytes of
+		 * a fetch; null when unknown.
+		 */
+		Integer fetchSize(Integer hint)
+		{
+			if (hint != null || ! adaptive || stats.rowsEstimate < 0)
+				return hint;
+
+			long fetchSize = (long) Math.ceil(stats.rowsEstimate * 1.25) + 1;
+			if (stats.widthEstimate > 0)
+				fetchSize = Math.min(fetchSize, (long) (FETCH_BYTES / stats.widthEstimate));
+
+			return (int) Math.max(MIN_FETCH_SIZE, Math.min(MAX_FETCH_SIZE, fetchSize));
+		}
+
+		void executed()
+		{
+			executed = System.nanoTime();
+		}
+
+		<M extends Model> M map(DbRowMapper<M> mapper, ResultSet rs) throws Exception
+		{
+			long t = System.nanoTime();
+			M model = mapper.map(rs);
+			mapping += System.nanoTime() - t;
+			rows++;
+			width = mapper.width();
+			this.mapper = mapper;
+
+			return model;
+		}
+
+		<T> T read(DbColumnReader<T> reader, ResultSet rs) throws SQLException
+		{
+			long t = System.nanoTime();
+			T value = reader.read(rs, 1);
+			mapping += System.nanoTime() - t;
+			rows++;
+
+			return value;
+		}
+
+		/**
+		 * The rows read without mapping, of the given width.
+		 */
+		void fetched(int rows, int width)
+		{
+			this.rows = rows;
+			this.width = width;
+		}
+
+		void failed()
+		{
+			failed = true;
+		}
+
+		void close()
+		{
+			if (closed)
+				return;
+
+			closed = true;
+			long end = System.nanoTime();
+			if (executed == 0)
+				executed = end;
+
+			Stats s = stats;
+			s.execTime.record(executed - start);
+			s.fetchTime.record(end - executed - mapping);
+			s.mapTime.record(mapping);
+			s.rows.record(rows);
+			if (failed)
+				s.errors.increment();
+			else
+				s.learn(rows, width);
+
+			if (projectionCheck && mapper != null && mapper.wasted() > 0)
+				check(s);
+
+			long threshold = slowQueryThreshold;
+			long elapsed = (end - start) / 1000000;
+			if (threshold > 0 && elapsed >= threshold) {
+				slowQueries.increment();
+				logger.warn(String.format("Slow query '%s' in %d ms (%d rows): %s",
+					identity, elapsed, rows, parameters));
+			}
+		}
+
+		private void check(Stats s)
+		{
+			s.wastedBytes.add((long) rows * mapper.wasted());
+			if (s.checked != mapper) {
+				s.checked = mapper;
+				logger.warn(String.format("Query '%s' fetches the columns %s without binding in the Model, "
+					+ "wasting about %d bytes per row.", identity, Arrays.toString(mapper.unbound()), mapper.wasted()));
+			}
+		}
+	}
+}
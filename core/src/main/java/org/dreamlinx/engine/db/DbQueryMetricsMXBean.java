@@ -0,0 +1,67 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.util.Map;
+
+/**
+ * Metrics of the queries of the DAOs exposed through JMX, by the identity of
+ * the query. The times are in milliseconds.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public interface DbQueryMetricsMXBean {
+
+	int getQueryCount();
+
+	long getSlowQueryCount();
+
+	long getSlowQueryThreshold();
+
+	void setSlowQueryThreshold(long slowQueryThreshold);
+
+	boolean isAdaptive();
+
+	void setAdaptive(boolean adaptive);
+
+	boolean isProjectionCheck();
+
+	void setProjectionCheck(boolean projectionCheck);
+
+	Map<String, Long> getExecutionsByQuery();
+
+	Map<String, Long> getErrorsByQuery();
+
+	Map<String, Double> getExecTimeMeanByQuery();
+
+	Map<String, Double> getExecTime99thByQuery();
+
+	Map<String, Double> getFetchTimeMeanByQuery();
+
+	Map<String, Double> getMapTimeMeanByQuery();
+
+	Map<String, Double> getRowsMeanByQuery();
+
+	Map<String, Double> getRowsEstimateByQuery();
+
+	Map<String, Long> getWastedBytesByQuery();
+}
@@ -0,0 +1,121 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.dreamlinx.engine.model.Model;
+
+/**
+ * Compiled plan for mapping the rows of a result set shape into Models. The
+ * columns are already resolved by index, so a row is mapped without any
+ * metadata access, string handling or reflection.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+final class DbRowMapper<M extends Model> {
+
+	private final Supplier<M> factory;
+	private final int[] indexes;
+	private final DbColumnBinder<M>[] binders;
+	private final int width;
+	private final String[] unbound;
+	private final int wasted;
+
+	DbRowMapper(Supplier<M> factory, int[] indexes, List<DbColumnBinder<M>> binders, int width,
+		String[] unbound, int wasted) {
+
+		this.factory = factory;
+		this.indexes = indexes;
+		this.binders = toArray(binders);
+		this.width = width;
+		this.unbound = unbound;
+		this.wasted = wasted;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <M extends Model> DbColumnBinder<M>[] toArray(List<DbColumnBinder<M>> binders)
+	{
+		return binders.toArray((DbColumnBinder<M>[]) new DbColumnBinder<?>[binders.size()]);
+	}
+
+	/**
+	 * Map the current row of the result set into a new Model.
+	 *
+	 * @param ResultSet rs
+	 * @return M
+	 * @throws Exception
+	 */
+	M map(ResultSet rs) throws Exception
+	{
+		M model = factory.get();
+		for (int i = 0; i < indexes.length; i++)
+			binders[i].bind(rs, indexes[i], model);
+
+		model.aftermath();
+
+		return model;
+	}
+
+	/**
+	 * Number of the bound columns.
+	 *
+	 * @return int
+	 */
+	int size()
+	{
+		return indexes.length;
+	}
+
+	/**
+	 * Estimated width in bytes of the rows, from the types of all the
+	 * columns of the result set.
+	 *
+	 * @return int
+	 */
+	int width()
+	{
+		return width;
+	}
+
+	/**
+	 * Names of the columns of the result set without binding in the Model.
+	 *
+	 * @return String[]
+	 */
+	String[] unbound()
+	{
+		return unbound;
+	}
+
+	/**
+	 * Estimated width in bytes of the unbound columns, fetched for nothing.
+	 *
+	 * @return int
+	 */
+	int wasted()
+	{
+		return wasted;
+	}
+}
@@ -36,6 +36,11 @@ public class DbSQLQuery {
 
 	private String sqlQuery;
 	private Map<String, Object> parameters;
+	private Integer fetchSize;
+
+	private String name;
+	private Long cacheExpiry;
+	private String[] cacheTags;
 
 	public DbSQLQuery(String sqlQuery) {
 
@@ -79,6 +84,104 @@ public class DbSQLQuery {
 		this.parameters = parameters;
 	}
 
+	/**
+	 * Returns the fetch size of the query; when it is null the one of the
+	 * properties is in use.
+	 * 
+	 * @return Integer
+	 */
+	public Integer getFetchSize()
+	{
+		return fetchSize;
+	}
+
+	/**
+	 * Override the fetch size of the properties for this query. Zero fetches
+	 * the whole result at once.
+	 * 
+	 * @param Integer fetchSize
+	 */
+	public void setFetchSize(Integer fetchSize)
+	{
+		Validate.isTrue(fetchSize == null || fetchSize >= 0, "fetchSize cannot be negative");
+
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Returns the XML key of the query, when it was loaded from the XML file
+	 * of the DAO.
+	 * 
+	 * @return String
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Returns the time in milliseconds the result of the query is cached;
+	 * when it is null the result is not cached.
+	 * 
+	 * @return Long
+	 */
+	public Long getCacheExpiry()
+	{
+		return cacheExpiry;
+	}
+
+	/**
+	 * Cache the result of the query for the time in milliseconds; null
+	 * disables the cache. The cached results are shared, so they must not
+	 * be modified.
+	 * 
+	 * @param Long cacheExpiry
+	 */
+	public void setCacheExpiry(Long cacheExpiry)
+	{
+		Validate.isTrue(cacheExpiry == null || cacheExpiry > 0, "cacheExpiry must be greater than zero");
+
+		this.cacheExpiry = cacheExpiry;
+	}
+
+	/**
+	 * Returns the tags invalidating the cached result, beyond the tables of
+	 * the query.
+	 * 
+	 * @return String[]
+	 */
+	public String[] getCacheTags()
+	{
+		return cacheTags;
+	}
+
+	public void setCacheTags(String... cacheTags)
+	{
+		this.cacheTags = cacheTags;
+	}
+
+	/**
+	 * Returns a copy of the query, with its own parameters.
+	 * 
+	 * @return DbSQLQuery
+	 */
+	public DbSQLQuery copy()
+	{
+		DbSQLQuery copy = new DbSQLQuery(sqlQuery);
+		copy.parameters.putAll(parameters);
+		copy.fetchSize = fetchSize;
+		copy.name = name;
+		copy.cacheExpiry = cacheExpiry;
+		copy.cacheTags = cacheTags;
+
+		return copy;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -0,0 +1,276 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Cache of the prepared statements, keyed per physical connection by the SQL
+ * text. Each connection keeps the last used statements up to the size of the
+ * cache; a statement in use is not shared until it is released.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public final class DbStatementCache {
+
+	private static final char STATEMENT = 'S';
+	private static final char CALL = 'C';
+
+	private final int maxSize;
+	private final Map<Connection, Statements> caches = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public DbStatementCache(int size) {
+
+		Validate.isTrue(size > 0, "size must be greater than zero");
+
+		this.maxSize = size;
+	}
+
+	/**
+	 * Returns the cached statement of the SQL on the physical connection, or
+	 * prepare a new one.
+	 *
+	 * @param Connection physical
+	 * @param String sql
+	 * @return PreparedStatement
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStatement(Connection physical, String sql) throws SQLException
+	{
+		Statements cache = statements(physical);
+		PreparedStatement stmt = cache.borrow(STATEMENT + sql);
+		if (stmt == null) {
+			stmt = physical.prepareStatement(sql);
+			cache.lend(stmt, STATEMENT + sql);
+		}
+
+		return stmt;
+	}
+
+	/**
+	 * Returns the cached callable statement of the SQL on the physical
+	 * connection, or prepare a new one.
+	 *
+	 * @param Connection physical
+	 * @param String sql
+	 * @return CallableStatement
+	 * @throws SQLException
+	 */
+	public CallableStatement prepareCall(Connection physical, String sql) throws SQLException
+	{
+		Statements cache = statements(physical);
+		CallableStatement stmt = (CallableStatement) cache.borrow(CALL + sql);
+		if (stmt == null) {
+			stmt = physical.prepareCall(sql);
+			cache.lend(stmt, CALL + sql);
+		}
+
+		return stmt;
+	}
+
+	/**
+	 * Give back the statement to the cache of its connection. Return false
+	 * if the statement is not owned by the cache.
+	 *
+	 * @param Statement stmt
+	 * @return boolean
+	 * @throws SQLException
+	 */
+	public boolean release(Statement stmt) throws SQLException
+	{
+		Statements cache = caches.get(stmt.getConnection());
+		if (cache == null)
+			return false;
+
+		return cache.giveBack(stmt);
+	}
+
+	/**
+	 * Close all cached statements.
+	 */
+	public void clear()
+	{
+		for (Iterator<Statements> it = caches.values().iterator(); it.hasNext();) {
+			it.next().clear();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Number of the statements served by the cache.
+	 *
+	 * @return long
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * Number of the statements prepared by the connection.
+	 *
+	 * @return long
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * Maximum number of the cached statements for each connection.
+	 *
+	 * @return int
+	 */
+	public int getSize()
+	{
+		return maxSize;
+	}
+
+	//
+	// Internal
+	//
+
+	private Statements statements(Connection physical) throws SQLException
+	{
+		Statements cache = caches.get(physical);
+		if (cache == null) {
+			purge();
+
+			cache = new Statements();
+			Statements prev = caches.putIfAbsent(physical, cache);
+			if (prev != null)
+				cache = prev;
+		}
+
+		return cache;
+	}
+
+	/**
+	 * The connections discarded by the pool are forgotten when a new
+	 * connection comes in.
+	 */
+	private void purge()
+	{
+		for (Iterator<Entry<Connection, Statements>> it = caches.entrySet().iterator(); it.hasNext();) {
+			Entry<Connection, Statements> entry = it.next();
+			try {
+				if (! entry.getKey().isClosed())
+					continue;
+			}
+			catch (SQLException e) {
+				// Discarded
+			}
+
+			entry.getValue().clear();
+			it.remove();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private final class Statements extends LinkedHashMap<String, PreparedStatement> {
+
+		private final Map<Statement, String> borrowed = new IdentityHashMap<>();
+
+		Statements() {
+
+			super(16, 0.75F, true);
+		}
+
+		synchronized PreparedStatement borrow(String key)
+		{
+			PreparedStatement stmt = remove(key);
+			if (stmt != null) {
+				borrowed.put(stmt, key);
+				hits.increment();
+			}
+			else
+				misses.increment();
+
+			return stmt;
+		}
+
+		synchronized void lend(PreparedStatement stmt, String key)
+		{
+			borrowed.put(stmt, key);
+		}
+
+		synchronized boolean giveBack(Statement stmt) throws SQLException
+		{
+			String key = borrowed.remove(stmt);
+			if (key == null)
+				return false;
+
+			PreparedStatement prepared = (PreparedStatement) stmt;
+			prepared.clearParameters();
+			prepared.setFetchSize(0);
+
+			close(put(key, prepared));
+			return true;
+		}
+
+		@Override
+		public synchronized void clear()
+		{
+			for (PreparedStatement stmt : values())
+				close(stmt);
+
+			super.clear();
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Entry<String, PreparedStatement> eldest)
+		{
+			if (size() <= maxSize)
+				return false;
+
+			close(eldest.getValue());
+			return true;
+		}
+
+		private void close(Statement stmt)
+		{
+			try {
+				if (stmt != null)
+					stmt.close();
+			}
+			catch (SQLException e) {
+				// quiet
+			}
+		}
+	}
+}
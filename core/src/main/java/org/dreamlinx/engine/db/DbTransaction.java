@@ -0,0 +1,275 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.sql.Connection;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.lang3.Validate;
+import org.dreamlinx.engine.error.DatabaseException;
+import org.dreamlinx.engine.error.InitializationException;
+
+/**
+ * Unit of work pinning one connection across the calls of the DAOs: while
+ * the transaction is bound to the thread, the DAOs read and write over its
+ * connection and do not commit, so the work is committed or rolled back at
+ * once at the end. A transaction begun inside another one joins it.
+ * <p>
+ * The transaction is bound to the thread which begins it; it can be passed
+ * explicitly to another thread, and bound to it for the duration of a call.
+ * The asynchronous queries run on the thread of the transaction, and the
+ * splits of the bulk, rowid and partitioned queries run in sequence, so all
+ * of them share its connection.
+ * <p>
+ * The cached query results of the tables written in the transaction are
+ * invalidated when it is committed, and its own queries are not cached.
+ *
+ * <pre>
+ * try (DbTransaction tx = DbTransaction.begin()) {
+ * 	dao.insert(model);
+ * 	dao.update(other);
+ * 	tx.commit();
+ * }
+ * </pre>
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public final class DbTransaction implements AutoCloseable {
+
+	private static final ThreadLocal<DbTransaction> current = new ThreadLocal<>();
+
+	private final DbConnectionPool pool;
+	private Connection connection;
+	private int depth;
+	private boolean rollbackOnly;
+	private final BitSet committed = new BitSet();
+	private Set<String> invalidations;
+	private boolean invalidateAll;
+
+	private DbTransaction(DbConnectionPool pool) throws DatabaseException {
+
+		this.pool = pool;
+		this.connection = pool.open();
+		this.depth = 1;
+	}
+
+	/**
+	 * Begin a transaction bound to the thread, on a connection of the pool
+	 * of the DAOs, or join the one already bound.
+	 *
+	 * @return DbTransaction
+	 * @throws DatabaseException
+	 */
+	public static DbTransaction begin() throws DatabaseException
+	{
+		if (DbDao.connectionPool == null)
+			throw new InitializationException(DbDao.class);
+
+		DbTransaction tx = current.get();
+		if (tx != null) {
+			tx.depth++;
+			return tx;
+		}
+
+		tx = new DbTransaction(DbDao.connectionPool);
+		current.set(tx);
+
+		return tx;
+	}
+
+	/**
+	 * Returns the transaction bound to the thread, or null.
+	 *
+	 * @return DbTransaction
+	 */
+	public static DbTransaction current()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Execute the work with the transaction bound to the thread, then restore
+	 * the previous binding. The transaction is not completed.
+	 *
+	 * @param Callable<T> work
+	 * @return T
+	 * @throws Exception
+	 */
+	public <T> T call(Callable<T> work) throws Exception
+	{
+		Validate.notNull(work, "work cannot be null");
+		Validate.validState(connection != null, "The transaction is completed");
+
+		DbTransaction prev = current.get();
+		current.set(this);
+		try {
+			return work.call();
+		}
+		finally {
+			if (prev != null)
+				current.set(prev);
+			else
+				current.remove();
+		}
+	}
+
+	/**
+	 * Returns the pinned connection.
+	 *
+	 * @return Connection
+	 */
+	public Connection getConnection()
+	{
+		Validate.validState(connection != null, "The transaction is completed");
+
+		return connection;
+	}
+
+	/**
+	 * Commit the work of the transaction, when it is the outermost one; the
+	 * work is rolled back if it is marked for the rollback. A joined
+	 * transaction only records that its scope is committed.
+	 *
+	 * @throws DatabaseException
+	 */
+	public void commit() throws DatabaseException
+	{
+		if (depth > 1) {
+			committed.set(depth);
+			return;
+		}
+
+		if (rollbackOnly)
+			rollback();
+		else
+			complete(true);
+	}
+
+	/**
+	 * Rollback the work of the transaction; a joined transaction marks the
+	 * outermost one for the rollback.
+	 *
+	 * @throws DatabaseException
+	 */
+	public void rollback() throws DatabaseException
+	{
+		rollbackOnly = true;
+		if (depth == 1)
+			complete(false);
+	}
+
+	/**
+	 * Mark the transaction, so its end is a rollback.
+	 */
+	public void setRollbackOnly()
+	{
+		rollbackOnly = true;
+	}
+
+	public boolean isRollbackOnly()
+	{
+		return rollbackOnly;
+	}
+
+	public boolean isActive()
+	{
+		return (connection != null);
+	}
+
+	/**
+	 * End the scope of the transaction: the outermost one not committed is
+	 * rolled back, and the connection goes back to the pool; a joined one not
+	 * committed marks the outermost one for the rollback.
+	 *
+	 * @throws DatabaseException
+	 */
+	@Override
+	public void close() throws DatabaseException
+	{
+		if (depth > 1) {
+			if (! committed.get(depth))
+				rollbackOnly = true;
+
+			committed.clear(depth--);
+			return;
+		}
+
+		if (connection != null)
+			complete(false);
+	}
+
+	//
+	// Internal
+	//
+
+	/**
+	 * Record the tags of the query cache to invalidate on the commit; all
+	 * the cache when null.
+	 */
+	synchronized void invalidate(Set<String> tags)
+	{
+		if (tags == null)
+			invalidateAll = true;
+		else if (invalidations == null)
+			invalidations = new HashSet<>(tags);
+		else
+			invalidations.addAll(tags);
+	}
+
+	private synchronized void invalidateCache()
+	{
+		DbQueryCache cache = DbDao.queryCache;
+		if (cache != null && invalidateAll)
+			cache.invalidateAll();
+		else if (cache != null && invalidations != null)
+			cache.invalidate(invalidations);
+
+		invalidations = null;
+		invalidateAll = false;
+	}
+
+	private void complete(boolean commit) throws DatabaseException
+	{
+		if (connection == null)
+			return;
+
+		try {
+			if (commit) {
+				pool.commit(connection);
+				invalidateCache();
+			}
+			else
+				pool.rollback(connection);
+		}
+		finally {
+			depth = 0;
+			pool.close(connection);
+			connection = null;
+
+			if (current.get() == this)
+				current.remove();
+		}
+	}
+}
@@ -0,0 +1,746 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+import org.dreamlinx.engine.core.Log;
+import org.dreamlinx.engine.error.DatabaseException;
+import org.dreamlinx.engine.model.Key;
+import org.dreamlinx.engine.model.Model;
+
+/**
+ * Bounded cache of Models by their Key, with the W-TinyLFU policy: the new
+ * entries enter a small LRU window, then they are admitted in the main
+ * segmented LRU only if they are more frequent than the victim of it. The
+ * frequencies are estimated by a count-min sketch over the Murmur hash of
+ * the keys, halved periodically so the history ages out.
+ * <p>
+ * The reads are lock-free: the accesses are recorded in a lossy buffer and
+ * replayed on the policy under a lock by the writers. The entries can expire
+ * after the write and can be refreshed ahead of the expiry by the loader, in
+ * background, while the old value is still served.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class ModelCache<M extends Model> {
+
+	private static final Logger logger = Log.getEngineLogger();
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	private static final int DEAD = - 1;
+
+	private static final int READ_BUFFER_SIZE = 128;
+	private static final int READ_BUFFER_DRAIN = READ_BUFFER_SIZE / 4;
+
+	private final ConcurrentHashMap<Key, Node<M>> data;
+	private final long maximum;
+	private final ToLongFunction<M> weigher;
+
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final AccessDeque<M> window = new AccessDeque<>();
+	private final AccessDeque<M> probation = new AccessDeque<>();
+	private final AccessDeque<M> protect = new AccessDeque<>();
+	private final FrequencySketch sketch;
+	private final long windowMaximum;
+	private final long protectedMaximum;
+	private long windowWeight;
+	private long protectedWeight;
+	private long weight;
+
+	private final AtomicReferenceArray<Node<M>> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+	private final AtomicLong readCount = new AtomicLong();
+
+	private long expireAfterWrite;
+	private long refreshAfterWrite;
+	private Loader<M> loader;
+	private LongSupplier ticker = System::nanoTime;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder loads = new LongAdder();
+	private final LongAdder loadFailures = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder refreshes = new LongAdder();
+
+	/**
+	 * Cache bounded by the number of Models.
+	 *
+	 * @param long maximumSize
+	 */
+	public ModelCache(long maximumSize) {
+
+		this(maximumSize, m -> 1);
+	}
+
+	/**
+	 * Cache bounded by the total weight of the Models.
+	 *
+	 * @param long maximumWeight
+	 * @param ToLongFunction<M> weigher
+	 */
+	public ModelCache(long maximumWeight, ToLongFunction<M> weigher) {
+
+		Validate.isTrue(maximumWeight > 0, "maximumWeight must be greater than zero");
+		Validate.notNull(weigher, "weigher cannot be null");
+
+		this.maximum = maximumWeight;
+		this.weigher = weigher;
+		this.windowMaximum = Math.max(1, maximumWeight / 100);
+		this.protectedMaximum = (long) ((maximumWeight - windowMaximum) * 0.8);
+		this.data = new ConcurrentHashMap<>((int) Math.min(maximumWeight, 1 << 16));
+		this.sketch = new FrequencySketch(maximumWeight);
+	}
+
+	/**
+	 * Set the loader of the missing Models.
+	 *
+	 * @param Loader<M> loader
+	 */
+	public void setLoader(Loader<M> loader)
+	{
+		this.loader = loader;
+	}
+
+	/**
+	 * The Models expire after the duration from their write.
+	 *
+	 * @param long duration
+	 * @param TimeUnit unit
+	 */
+	public void setExpireAfterWrite(long duration, TimeUnit unit)
+	{
+		Validate.isTrue(duration >= 0, "duration cannot be negative");
+		expireAfterWrite = unit.toNanos(duration);
+	}
+
+	/**
+	 * The Models are reloaded in background by the loader, when they are
+	 * read after the duration from their write; the old value is returned
+	 * until the new one is loaded.
+	 *
+	 * @param long duration
+	 * @param TimeUnit unit
+	 */
+	public void setRefreshAfterWrite(long duration, TimeUnit unit)
+	{
+		Validate.isTrue(duration >= 0, "duration cannot be negative");
+		refreshAfterWrite = unit.toNanos(duration);
+	}
+
+	void setTicker(LongSupplier ticker)
+	{
+		this.ticker = ticker;
+	}
+
+	/**
+	 * Returns the Model of the key, or null when it is not cached or it is
+	 * expired.
+	 *
+	 * @param Key key
+	 * @return M
+	 */
+	public M getIfPresent(Key key)
+	{
+		Node<M> node = data.get(key);
+		if (node == null) {
+			misses.increment();
+			return null;
+		}
+
+		long now = ticker.getAsLong();
+		if (isExpired(node, now)) {
+			misses.increment();
+			expire(node);
+			return null;
+		}
+
+		hits.increment();
+		afterRead(node);
+
+		if (refreshAfterWrite > 0 && loader != null && (now - node.writeTime) > refreshAfterWrite)
+			refresh(node);
+
+		return node.value;
+	}
+
+	/**
+	 * Returns the Model of the key, loading it with the loader of the cache
+	 * when it is missing.
+	 *
+	 * @param Key key
+	 * @return M
+	 * @throws DatabaseException
+	 */
+	public M get(Key key) throws DatabaseException
+	{
+		return get(key, loader);
+	}
+
+	/**
+	 * Returns the Model of the key, loading it with the loader when it is
+	 * missing. A null Model is not cached.
+	 *
+	 * @param Key key
+	 * @param Loader<M> loader
+	 * @return M
+	 * @throws DatabaseException
+	 */
+	public M get(Key key, Loader<M> loader) throws DatabaseException
+	{
+		M model = getIfPresent(key);
+		if (model != null || loader == null)
+			return model;
+
+		try {
+			model = loader.load(key);
+			loads.increment();
+		}
+		catch (DatabaseException | RuntimeException e) {
+			loadFailures.increment();
+			throw e;
+		}
+
+		if (model != null)
+			put(key, model);
+
+		return model;
+	}
+
+	/**
+	 * Cache the Model by its key.
+	 *
+	 * @param M model
+	 */
+	public void put(M model)
+	{
+		put(model.getKey(), model);
+	}
+
+	/**
+	 * Cache all the Models of the map.
+	 *
+	 * @param Map<Key, M> models
+	 */
+	public void putAll(Map<Key, M> models)
+	{
+		for (Map.Entry<Key, M> entry : models.entrySet())
+			put(entry.getKey(), entry.getValue());
+	}
+
+	/**
+	 * Cache the Model by the key.
+	 *
+	 * @param Key key
+	 * @param M model
+	 */
+	public void put(Key key, M model)
+	{
+		Validate.notNull(key, "key cannot be null");
+		Validate.notNull(model, "model cannot be null");
+
+		Node<M> node = new Node<>(key, model, weigher.applyAsLong(model), ticker.getAsLong());
+
+		evictionLock.lock();
+		try {
+			Node<M> prev = data.put(key, node);
+			if (prev != null)
+				unlink(prev);
+
+			sketch.increment(key.hashCode());
+			window.add(node);
+			windowWeight += node.weight;
+			weight += node.weight;
+
+			maintain();
+		}
+		finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Discard the Model of the key.
+	 *
+	 * @param Key key
+	 */
+	public void invalidate(Key key)
+	{
+		evictionLock.lock();
+		try {
+			Node<M> node = data.remove(key);
+			if (node != null)
+				unlink(node);
+		}
+		finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Discard all the Models.
+	 */
+	public void invalidateAll()
+	{
+		evictionLock.lock();
+		try {
+			for (Node<M> node : data.values())
+				unlink(node);
+
+			data.clear();
+		}
+		finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Number of the cached Models.
+	 *
+	 * @return int
+	 */
+	public int size()
+	{
+		return data.size();
+	}
+
+	/**
+	 * Total weight of the cached Models.
+	 *
+	 * @return long
+	 */
+	public long weight()
+	{
+		evictionLock.lock();
+		try {
+			return weight;
+		}
+		finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Replay the recorded reads and evict the exceeding Models.
+	 */
+	public void cleanUp()
+	{
+		evictionLock.lock();
+		try {
+			maintain();
+		}
+		finally {
+			evictionLock.unlock();
+		}
+	}
+
+	public long getHitCount()
+	{
+		return hits.sum();
+	}
+
+	public long getMissCount()
+	{
+		return misses.sum();
+	}
+
+	public long getLoadCount()
+	{
+		return loads.sum();
+	}
+
+	public long getLoadFailureCount()
+	{
+		return loadFailures.sum();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictions.sum();
+	}
+
+	public long getExpirationCount()
+	{
+		return expirations.sum();
+	}
+
+	public long getRefreshCount()
+	{
+		return refreshes.sum();
+	}
+
+	/**
+	 * The ratio of hits over the requests, between 0.0 and 1.0.
+	 *
+	 * @return double
+	 */
+	public double getHitRatio()
+	{
+		long h = hits.sum();
+		long requests = h + misses.sum();
+
+		return (requests != 0) ? (double) h / requests : 1D;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("ModelCache[size=%d, maximum=%d, hits=%d, misses=%d, evictions=%d, expirations=%d]",
+			size(), maximum, getHitCount(), getMissCount(), getEvictionCount(), getExpirationCount());
+	}
+
+	//
+	// Internal
+	//
+
+	private boolean isExpired(Node<M> node, long now)
+	{
+		return (expireAfterWrite > 0 && (now - node.writeTime) > expireAfterWrite);
+	}
+
+	private void expire(Node<M> node)
+	{
+		evictionLock.lock();
+		try {
+			if (data.remove(node.key, node)) {
+				unlink(node);
+				expirations.increment();
+			}
+		}
+		finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private void refresh(Node<M> node)
+	{
+		if (! node.refreshing.compareAndSet(false, true))
+			return;
+
+		Runnable task = () -> {
+			try {
+				M model = loader.load(node.key);
+				if (model == null)
+					invalidate(node.key);
+				else if (data.get(node.key) == node)
+					put(node.key, model);
+
+				loads.increment();
+				refreshes.increment();
+			}
+			catch (Exception e) {
+				loadFailures.increment();
+				node.refreshing.set(false);
+				logger.warn(String.format("Refresh of '%s' is failed: %s", node.key, e.getMessage()));
+			}
+		};
+
+		DbExecutor executor = DbDao.getExecutor();
+		if (executor != null)
+			executor.submit(() -> {
+				task.run();
+				return null;
+			});
+		else
+			ForkJoinPool.commonPool().execute(task);
+	}
+
+	/**
+	 * The read is recorded in the lossy buffer; when it is filling up, the
+	 * reader tries to replay it, without waiting for the lock.
+	 */
+	private void afterRead(Node<M> node)
+	{
+		long count = readCount.getAndIncrement();
+		readBuffer.lazySet((int) (count & (READ_BUFFER_SIZE - 1)), node);
+
+		if ((count & (READ_BUFFER_DRAIN - 1)) == (READ_BUFFER_DRAIN - 1) && evictionLock.tryLock()) {
+			try {
+				maintain();
+			}
+			finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
+	private void maintain()
+	{
+		for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+			Node<M> node = readBuffer.getAndSet(i, null);
+			if (node != null && node.queue != DEAD)
+				onAccess(node);
+		}
+
+		evict();
+	}
+
+	private void onAccess(Node<M> node)
+	{
+		sketch.increment(node.key.hashCode());
+
+		switch (node.queue) {
+			case WINDOW:
+				window.moveToTail(node);
+				break;
+			case PROBATION:
+				probation.remove(node);
+				protect.add(node);
+				node.queue = PROTECTED;
+				protectedWeight += node.weight;
+
+				while (protectedWeight > protectedMaximum && protect.head != null) {
+					Node<M> demoted = protect.poll();
+					protectedWeight -= demoted.weight;
+					probation.add(demoted);
+					demoted.queue = PROBATION;
+				}
+				break;
+			case PROTECTED:
+				protect.moveToTail(node);
+				break;
+		}
+	}
+
+	/**
+	 * The exceeding Models of the window become candidates in probation;
+	 * while the cache is exceeding, each candidate duels the victim of the
+	 * probation, and the less frequent one is evicted.
+	 */
+	private void evict()
+	{
+		while (windowWeight > windowMaximum && window.head != null) {
+			Node<M> candidate = window.poll();
+			windowWeight -= candidate.weight;
+			probation.add(candidate);
+			candidate.queue = PROBATION;
+		}
+
+		while (weight > maximum) {
+			Node<M> victim = probation.head;
+			Node<M> candidate = probation.tail;
+
+			if (victim == null)
+				victim = (protect.head != null) ? protect.head : window.head;
+			else if (victim == candidate
+				|| sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode()))
+				victim = candidate;
+
+			if (victim == null)
+				break;
+
+			data.remove(victim.key, victim);
+			unlink(victim);
+			evictions.increment();
+		}
+	}
+
+	private void unlink(Node<M> node)
+	{
+		switch (node.queue) {
+			case WINDOW:
+				window.remove(node);
+				windowWeight -= node.weight;
+				break;
+			case PROBATION:
+				probation.remove(node);
+				break;
+			case PROTECTED:
+				protect.remove(node);
+				protectedWeight -= node.weight;
+				break;
+			default:
+				return;
+		}
+
+		weight -= node.weight;
+		node.queue = DEAD;
+	}
+
+	/**
+	 * Loader of the Models missing in the cache.
+	 */
+	@FunctionalInterface
+	public interface Loader<M> {
+
+		M load(Key key) throws DatabaseException;
+	}
+
+	private static final class Node<M> {
+
+		final Key key;
+		final M value;
+		final long weight;
+		final long writeTime;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+
+		int queue = WINDOW;
+		Node<M> prev;
+		Node<M> next;
+
+		Node(Key key, M value, long weight, long writeTime) {
+
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+			this.writeTime = writeTime;
+		}
+	}
+
+	/**
+	 * Doubly linked list of the nodes in access order: the head is the least
+	 * recently used.
+	 */
+	private static final class AccessDeque<M> {
+
+		Node<M> head;
+		Node<M> tail;
+
+		void add(Node<M> node)
+		{
+			node.prev = tail;
+			node.next = null;
+			if (tail != null)
+				tail.next = node;
+			else
+				head = node;
+
+			tail = node;
+		}
+
+		void remove(Node<M> node)
+		{
+			if (node.prev != null)
+				node.prev.next = node.next;
+			else
+				head = node.next;
+
+			if (node.next != null)
+				node.next.prev = node.prev;
+			else
+				tail = node.prev;
+
+			node.prev = node.next = null;
+		}
+
+		Node<M> poll()
+		{
+			Node<M> node = head;
+			if (node != null)
+				remove(node);
+
+			return node;
+		}
+
+		void moveToTail(Node<M> node)
+		{
+			if (node != tail) {
+				remove(node);
+				add(node);
+			}
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4 rows of 4-bit counters. The counters are halved
+	 * when the samples reach ten times the maximum, so the old frequencies
+	 * decay.
+	 */
+	static final class FrequencySketch {
+
+		private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+		};
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private final long[] table;
+		private final int mask;
+		private final long sampleSize;
+		private long size;
+
+		FrequencySketch(long maximum) {
+
+			int length = Integer.highestOneBit((int) Math.min(Math.max(maximum, 16), 1 << 26) - 1) << 1;
+			table = new long[length];
+			mask = length - 1;
+			sampleSize = 10 * Math.max(maximum, 16);
+		}
+
+		int frequency(int hash)
+		{
+			int freq = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(hash, i);
+				freq = Math.min(freq, (int) ((table[index] >>> (i << 4)) & 0xFL));
+			}
+
+			return freq;
+		}
+
+		void increment(int hash)
+		{
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(hash, i);
+				int shift = i << 4;
+				if (((table[index] >>> shift) & 0xFL) != 0xFL) {
+					table[index] += (1L << shift);
+					added = true;
+				}
+			}
+
+			if (added && ++size >= sampleSize)
+				reset();
+		}
+
+		private int indexOf(int hash, int i)
+		{
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += (h >>> 32);
+
+			return ((int) h) & mask;
+		}
+
+		private void reset()
+		{
+			for (int i = 0; i < table.length; i++)
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+
+			size = (size >>> 1);
+		}
+	}
+}
@@ -0,0 +1,496 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.dreamlinx.engine.core.Log;
+import org.dreamlinx.engine.error.DatabaseException;
+import org.dreamlinx.engine.error.InitializationException;
+import org.dreamlinx.engine.fn.MathFn;
+
+/**
+ * Connection pool of the engine, over any JDBC driver. The connections are
+ * borrowed by compare-and-set on their state, without locks: a thread first
+ * tries the last connection it released, then scans the pool, then opens a
+ * new connection while the pool is not full. A permit per connection bounds
+ * the borrowers, so the waiters time out after the borrow timeout.
+ * <p>
+ * The connections are validated when borrowed only after the validation
+ * interval from their last validation, and they are retired at the borrow,
+ * or by the eviction in background, when they exceed the maximum lifetime
+ * or, beyond the minimum idle ones, the idle timeout. The minimum idle
+ * connections are opened at init.
+ * <p>
+ * A released connection is rolled back, and its auto-commit, read-only and
+ * isolation are restored, so the next borrower never sees the work left by
+ * the previous one; a connection which cannot be reset is retired.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class NativeDbConnectionPool extends DbConnectionPool {
+
+	private static final Logger logger = Log.getEngineLogger();
+
+	private static final int IDLE = 0;
+	private static final int IN_USE = 1;
+	private static final int RETIRED = - 1;
+
+	private static final int VALIDATION_TIMEOUT = 5;
+	private static final long AWAIT_TIMEOUT = 10;
+
+	private final Factory factory;
+	private final CopyOnWriteArrayList<Pooled> pooled = new CopyOnWriteArrayList<>();
+	private final AtomicInteger total = new AtomicInteger();
+	private final ThreadLocal<Pooled> affinity = new ThreadLocal<>();
+	private final Object released = new Object();
+	private final AtomicInteger waiters = new AtomicInteger();
+	private Semaphore permits;
+	private ScheduledExecutorService evictor;
+	private volatile boolean active;
+
+	private int maxSize;
+	private int minIdle;
+	private long borrowTimeout;
+	private long maxLifetime;
+	private long idleTimeout;
+	private long validationInterval;
+
+	/**
+	 * Pool of the connections to the URL of the properties.
+	 *
+	 * @param DbProperties properties
+	 */
+	public NativeDbConnectionPool(DbProperties properties) {
+
+		this(properties, () -> DriverManager.getConnection(
+			properties.getUrl(), properties.getUsername(), properties.getPassword()));
+	}
+
+	/**
+	 * Pool of the connections opened by the factory.
+	 *
+	 * @param DbProperties properties
+	 * @param Factory factory
+	 */
+	public NativeDbConnectionPool(DbProperties properties, Factory factory) {
+
+		super(properties);
+
+		this.factory = factory;
+	}
+
+	@Override
+	public void init() throws DatabaseException
+	{
+		maxSize = MathFn.notZero(properties.getPoolSize()) ? properties.getPoolSize() : 1;
+		minIdle = Math.min(maxSize, MathFn.notZero(properties.getPoolMinIdle()) ? properties.getPoolMinIdle() : 0);
+		borrowTimeout = millis(properties.getBorrowTimeout());
+		maxLifetime = millis(properties.getMaxLifetime());
+		idleTimeout = millis(properties.getIdleTimeout());
+		validationInterval = millis(properties.getValidationInterval());
+
+		permits = new Semaphore(maxSize);
+		active = true;
+
+		// Warm-up
+		while (total.get() < minIdle) {
+			total.incrementAndGet();
+			try {
+				pooled.add(connect());
+			}
+			catch (SQLException | RuntimeException e) {
+				total.decrementAndGet();
+				throw new DatabaseException(e);
+			}
+		}
+
+		stopEvictor();
+		long interval = millis(properties.getEvictionInterval());
+		if (interval > 0 && (maxLifetime > 0 || idleTimeout > 0)) {
+			evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "NativeDbConnectionPool-Evictor-" + properties.getSourceName());
+				thread.setDaemon(true);
+				return thread;
+			});
+			evictor.scheduleWithFixedDelay(this::evict, interval, interval, TimeUnit.MILLISECONDS);
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug(String.format("NativeDbConnectionPool '%s' is now active with %d of %d connections.",
+				properties.getSourceName(), total.get(), maxSize));
+	}
+
+	@Override
+	public void shutdown() throws DatabaseException
+	{
+		active = false;
+		stopEvictor();
+
+		if (statementCache != null)
+			statementCache.clear();
+
+		for (Pooled p : pooled)
+			retire(p);
+	}
+
+	@Override
+	protected Connection acquire() throws DatabaseException
+	{
+		if (! active)
+			throw new InitializationException(NativeDbConnectionPool.class);
+
+		try {
+			if (borrowTimeout <= 0)
+				permits.acquire();
+			else if (! permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS))
+				throw new DatabaseException(String.format(
+					"No connection available in %d ms: %d connections in use.", borrowTimeout, maxSize));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatabaseException(e);
+		}
+
+		try {
+			return logical(take());
+		}
+		catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw new DatabaseException(e);
+		}
+	}
+
+	/**
+	 * The statements are cached on the connection of the driver.
+	 */
+	@Override
+	protected Connection physical(Connection connection) throws SQLException
+	{
+		return connection.unwrap(Connection.class);
+	}
+
+	/**
+	 * Retire the idle connections exceeding the lifetime or the idle timeout.
+	 */
+	public void evict()
+	{
+		long now = System.currentTimeMillis();
+		for (Pooled p : pooled)
+			if (expired(p, now) && p.state.compareAndSet(IDLE, RETIRED))
+				retire(p);
+	}
+
+	/**
+	 * Number of the open connections.
+	 *
+	 * @return int
+	 */
+	public int getTotalCount()
+	{
+		return total.get();
+	}
+
+	@Override
+	public int getIdleCount()
+	{
+		int count = 0;
+		for (Pooled p : pooled)
+			if (p.state.get() == IDLE)
+				count++;
+
+		return count;
+	}
+
+	/**
+	 * Opens the physical connections of the pool.
+	 */
+	@FunctionalInterface
+	public interface Factory {
+
+		Connection connect() throws SQLException;
+	}
+
+	//
+	// Internal
+	//
+
+	/**
+	 * With a permit, either an idle connection exists or the pool is not
+	 * full; a connection is idle before its permit is released.
+	 */
+	private Pooled take() throws SQLException
+	{
+		Pooled last = affinity.get();
+		if (last != null && last.state.compareAndSet(IDLE, IN_USE)) {
+			if (usable(last))
+				return last;
+
+			retire(last);
+		}
+
+		while (true) {
+			for (Pooled p : pooled) {
+				if (p.state.compareAndSet(IDLE, IN_USE)) {
+					if (usable(p))
+						return p;
+
+					retire(p);
+				}
+			}
+
+			int count = total.get();
+			if (count < maxSize && total.compareAndSet(count, count + 1)) {
+				Pooled p;
+				try {
+					p = connect();
+				}
+				catch (SQLException | RuntimeException e) {
+					total.decrementAndGet();
+					throw e;
+				}
+
+				p.state.set(IN_USE);
+				pooled.add(p);
+
+				return p;
+			}
+
+			await();
+		}
+	}
+
+	/**
+	 * Wait for a connection released or retired by another thread; the wait
+	 * is bounded, since the signal can come before it begins.
+	 */
+	private void await() throws SQLException
+	{
+		waiters.incrementAndGet();
+		try {
+			synchronized (released) {
+				released.wait(AWAIT_TIMEOUT);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException(e);
+		}
+		finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	private void signal()
+	{
+		if (waiters.get() > 0)
+			synchronized (released) {
+				released.notifyAll();
+			}
+	}
+
+	private boolean usable(Pooled p)
+	{
+		long now = System.currentTimeMillis();
+		if (expired(p, now))
+			return false;
+
+		if (validationInterval >= 0 && now - p.validated > validationInterval) {
+			try {
+				if (! p.physical.isValid(VALIDATION_TIMEOUT))
+					return false;
+			}
+			catch (SQLException e) {
+				return false;
+			}
+
+			p.validated = now;
+		}
+
+		return true;
+	}
+
+	private boolean expired(Pooled p, long now)
+	{
+		if (maxLifetime > 0 && now - p.created > maxLifetime)
+			return true;
+
+		return (idleTimeout > 0 && now - p.used > idleTimeout && total.get() > minIdle);
+	}
+
+	private void release(Pooled p)
+	{
+		p.used = System.currentTimeMillis();
+
+		if (active && reset(p)) {
+			p.state.set(IDLE);
+			affinity.set(p);
+			signal();
+		}
+		else
+			retire(p);
+
+		permits.release();
+	}
+
+	/**
+	 * Discard the work left by the borrower and restore the settings of the
+	 * connection; false when it cannot be reset.
+	 */
+	private boolean reset(Pooled p)
+	{
+		Connection conn = p.physical;
+		try {
+			if (conn.getAutoCommit())
+				conn.setAutoCommit(false);
+			else
+				conn.rollback();
+
+			if (conn.isReadOnly() != p.readOnly)
+				conn.setReadOnly(p.readOnly);
+
+			if (conn.getTransactionIsolation() != p.isolation)
+				conn.setTransactionIsolation(p.isolation);
+
+			return true;
+		}
+		catch (SQLException | RuntimeException e) {
+			logger.warn(String.format("The connection %s cannot be reset, it is retired: %s", conn, e.getMessage()));
+			return false;
+		}
+	}
+
+	private void retire(Pooled p)
+	{
+		p.state.set(RETIRED);
+		if (pooled.remove(p)) {
+			total.decrementAndGet();
+			signal();
+		}
+
+		try {
+			p.physical.close();
+		}
+		catch (SQLException e) {
+			// quiet
+		}
+	}
+
+	private void stopEvictor()
+	{
+		if (evictor != null) {
+			evictor.shutdownNow();
+			evictor = null;
+		}
+	}
+
+	private Pooled connect() throws SQLException
+	{
+		Connection conn = factory.connect();
+		try {
+			conn.setAutoCommit(false);
+
+			return new Pooled(conn, conn.isReadOnly(), conn.getTransactionIsolation());
+		}
+		catch (SQLException | RuntimeException e) {
+			conn.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * The connection lent to the borrower, which gives back the physical one
+	 * to the pool on close.
+	 */
+	private Connection logical(Pooled p)
+	{
+		AtomicBoolean closed = new AtomicBoolean();
+
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+			new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "close":
+						if (closed.compareAndSet(false, true))
+							release(p);
+
+						return null;
+					case "isClosed":
+						return closed.get() || p.physical.isClosed();
+					case "unwrap":
+						return ((Class<?>) args[0]).isInstance(p.physical)
+							? p.physical : p.physical.unwrap((Class<?>) args[0]);
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "toString":
+						return "Pooled" + p.physical;
+					default:
+						if (closed.get())
+							throw new SQLException("Connection is closed.");
+
+						try {
+							return method.invoke(p.physical, args);
+						}
+						catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+				}
+			});
+	}
+
+	private static long millis(Integer value)
+	{
+		return (value != null) ? value : - 1;
+	}
+
+	private static final class Pooled {
+
+		final Connection physical;
+		final boolean readOnly;
+		final int isolation;
+		final long created;
+		final AtomicInteger state = new AtomicInteger(IDLE);
+		volatile long used;
+		volatile long validated;
+
+		Pooled(Connection physical, boolean readOnly, int isolation) {
+
+			this.physical = physical;
+			this.readOnly = readOnly;
+			this.isolation = isolation;
+			this.created = this.used = this.validated = System.currentTimeMillis();
+		}
+	}
+}
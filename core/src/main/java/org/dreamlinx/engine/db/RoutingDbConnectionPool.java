@@ -0,0 +1,350 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+import org.dreamlinx.engine.core.Log;
+import org.dreamlinx.engine.error.DatabaseException;
+
+/**
+ * Connection pool routing the reads to the replicas of the database and the
+ * writes to the primary one. The DAOs read by the queryFor methods and write
+ * by the execute methods; the transactions are on the primary. A replica is
+ * selected in round-robin or by the least load, skipping the replicas found
+ * unhealthy by the health check; without any replica the reads go to the
+ * primary. The route can be forced for the duration of a call.
+ * <p>
+ * The replicas are asynchronous: a read following a write may not see it,
+ * unless it is forced on the primary.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class RoutingDbConnectionPool extends DbConnectionPool {
+
+	private static final Logger logger = Log.getEngineLogger();
+	private static final int PURGE_SIZE = 1024;
+
+	/**
+	 * Selection of the replica.
+	 */
+	public enum Balance {
+		ROUND_ROBIN, LEAST_LOADED
+	}
+
+	/**
+	 * Route forced for a call.
+	 */
+	public enum Route {
+		PRIMARY, REPLICA
+	}
+
+	/**
+	 * Check of the health of a replica, like its lag behind the primary.
+	 */
+	@FunctionalInterface
+	public interface HealthCheck {
+
+		boolean isHealthy(DbConnectionPool replica) throws Exception;
+	}
+
+	private final DbConnectionPool primary;
+	private final List<Replica> replicas;
+	private final Balance balance;
+	private final AtomicInteger next = new AtomicInteger();
+	private final ThreadLocal<Route> route = new ThreadLocal<>();
+	private final Map<Connection, DbConnectionPool> lent = new ConcurrentHashMap<>();
+
+	private HealthCheck healthCheck;
+	private long healthInterval = 5000;
+
+	public RoutingDbConnectionPool(DbConnectionPool primary, DbConnectionPool... replicas) {
+
+		this(Balance.ROUND_ROBIN, primary, replicas);
+	}
+
+	public RoutingDbConnectionPool(Balance balance, DbConnectionPool primary, DbConnectionPool... replicas) {
+
+		super(primary.getProperties());
+
+		Validate.notNull(balance, "balance cannot be null");
+
+		this.primary = primary;
+		this.balance = balance;
+
+		List<Replica> list = new ArrayList<>();
+		for (DbConnectionPool replica : replicas)
+			list.add(new Replica(replica));
+
+		this.replicas = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Set the health check of the replicas, done at most once in the
+	 * interval in milliseconds for each replica.
+	 *
+	 * @param HealthCheck healthCheck
+	 * @param long interval
+	 */
+	public void setHealthCheck(HealthCheck healthCheck, long interval)
+	{
+		this.healthCheck = healthCheck;
+		this.healthInterval = interval;
+
+		for (Replica r : replicas)
+			r.checked = 0;
+	}
+
+	@Override
+	public void init() throws DatabaseException
+	{
+		primary.init();
+		for (Replica r : replicas)
+			r.pool.init();
+
+		if (logger.isDebugEnabled())
+			logger.debug(String.format("RoutingDbConnectionPool is now active with %d replicas.", replicas.size()));
+	}
+
+	@Override
+	public void shutdown() throws DatabaseException
+	{
+		for (Replica r : replicas)
+			r.pool.shutdown();
+
+		primary.shutdown();
+		lent.clear();
+
+		if (statementCache != null)
+			statementCache.clear();
+	}
+
+	@Override
+	protected Connection acquire() throws DatabaseException
+	{
+		return acquire(false);
+	}
+
+	@Override
+	protected Connection acquire(boolean readOnly) throws DatabaseException
+	{
+		Route forced = route.get();
+		DbConnectionPool pool = primary;
+		if (forced == Route.REPLICA || (forced == null && readOnly))
+			pool = select();
+
+		Connection conn = pool.open();
+		if (lent.size() > PURGE_SIZE)
+			purge();
+
+		lent.put(conn, pool);
+		return conn;
+	}
+
+	@Override
+	public boolean close(Connection connection) throws DatabaseException
+	{
+		DbConnectionPool owner = lent.remove(connection);
+		boolean closed = (owner != null) ? owner.close(connection) : false;
+
+		return super.close(connection) || closed;
+	}
+
+	@Override
+	protected Connection physical(Connection connection) throws SQLException
+	{
+		DbConnectionPool owner = lent.get(connection);
+		return (owner != null) ? owner.physical(connection) : null;
+	}
+
+	@Override
+	public void cursor(Statement statement, int fetchSize) throws SQLException
+	{
+		primary.cursor(statement, fetchSize);
+	}
+
+	/**
+	 * Execute the work with the connections routed as forced.
+	 *
+	 * @param Route forced
+	 * @param Callable<T> work
+	 * @return T
+	 * @throws Exception
+	 */
+	public <T> T call(Route forced, Callable<T> work) throws Exception
+	{
+		Validate.notNull(work, "work cannot be null");
+
+		Route prev = route.get();
+		route.set(forced);
+		try {
+			return work.call();
+		}
+		finally {
+			if (prev != null)
+				route.set(prev);
+			else
+				route.remove();
+		}
+	}
+
+	public DbConnectionPool getPrimary()
+	{
+		return primary;
+	}
+
+	public List<DbConnectionPool> getReplicas()
+	{
+		List<DbConnectionPool> list = new ArrayList<>();
+		for (Replica r : replicas)
+			list.add(r.pool);
+
+		return list;
+	}
+
+	/**
+	 * Returns the replicas found healthy at their last check.
+	 *
+	 * @return List<DbConnectionPool>
+	 */
+	public List<DbConnectionPool> getHealthyReplicas()
+	{
+		List<DbConnectionPool> list = new ArrayList<>();
+		for (Replica r : replicas)
+			if (r.healthy)
+				list.add(r.pool);
+
+		return list;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("RoutingDbConnectionPool[primary=%s, replicas=%s, balance=%s]",
+			primary, Arrays.toString(getReplicas().toArray()), balance);
+	}
+
+	//
+	// Internal
+	//
+
+	private DbConnectionPool select()
+	{
+		int size = replicas.size();
+		if (size == 0)
+			return primary;
+
+		Replica selected = null;
+		if (balance == Balance.ROUND_ROBIN) {
+			int start = next.getAndIncrement() & Integer.MAX_VALUE;
+			for (int i = 0; i < size && selected == null; i++) {
+				Replica r = replicas.get((start + i) % size);
+				if (healthy(r))
+					selected = r;
+			}
+		}
+		else {
+			int least = Integer.MAX_VALUE;
+			for (Replica r : replicas) {
+				int load = r.pool.getLoad();
+				if (load < least && healthy(r)) {
+					least = load;
+					selected = r;
+				}
+			}
+		}
+
+		return (selected != null) ? selected.pool : primary;
+	}
+
+	private boolean healthy(Replica r)
+	{
+		if (healthCheck == null)
+			return true;
+
+		long now = System.currentTimeMillis();
+		long checked = r.checked;
+		if (now - checked >= healthInterval && r.checking.compareAndSet(false, true)) {
+			try {
+				boolean healthy = healthCheck.isHealthy(r.pool);
+				if (healthy != r.healthy)
+					logger.warn(String.format("Replica %s is now %s.", r.pool, healthy ? "healthy" : "unhealthy"));
+
+				r.healthy = healthy;
+			}
+			catch (Exception e) {
+				r.healthy = false;
+				logger.warn(String.format("Health check of the replica %s is failed: %s", r.pool, e.getMessage()));
+			}
+			finally {
+				r.checked = now;
+				r.checking.set(false);
+			}
+		}
+
+		return r.healthy;
+	}
+
+	/**
+	 * The connections closed by the callers without the pool are forgotten.
+	 */
+	private void purge()
+	{
+		for (Iterator<Entry<Connection, DbConnectionPool>> it = lent.entrySet().iterator(); it.hasNext();) {
+			try {
+				if (it.next().getKey().isClosed())
+					it.remove();
+			}
+			catch (SQLException e) {
+				it.remove();
+			}
+		}
+	}
+
+	private static final class Replica {
+
+		final DbConnectionPool pool;
+		final AtomicBoolean checking = new AtomicBoolean();
+		volatile boolean healthy = true;
+		volatile long checked;
+
+		Replica(DbConnectionPool pool) {
+
+			this.pool = pool;
+		}
+	}
+}
@@ -0,0 +1,362 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+import org.dreamlinx.engine.core.Log;
+import org.dreamlinx.engine.error.DatabaseException;
+import org.dreamlinx.engine.model.Key;
+
+/**
+ * Connection pool over the shards of a database partitioned by key: the
+ * shard of a key is given by the shard function over the Murmur hash of the
+ * Key. The connections are opened on the shard bound to the thread by call,
+ * so the DAOs are unaware of the sharding; without a bound shard the open
+ * fails. A scatter executes the work on every shard concurrently, by the
+ * DbExecutor, and merges the resulting maps.
+ * <p>
+ * The transactions are confined to the shard of their connection. A shard
+ * can be itself a RoutingDbConnectionPool over its replicas.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class ShardedDbConnectionPool extends DbConnectionPool {
+
+	private static final Logger logger = Log.getEngineLogger();
+	private static final int PURGE_SIZE = 1024;
+
+	/**
+	 * Returns the shard of the key, between 0 and the count of shards.
+	 */
+	@FunctionalInterface
+	public interface ShardFunction {
+
+		int shard(Key key, int shards);
+	}
+
+	/**
+	 * Shard by the modulo of the Murmur hash of the key.
+	 */
+	public static final ShardFunction HASH_MOD = (key, shards) -> Math.floorMod(key.hashCode(), shards);
+
+	private final List<DbConnectionPool> shards;
+	private final ShardFunction function;
+	private final ThreadLocal<Integer> current = new ThreadLocal<>();
+	private final Map<Connection, Integer> lent = new ConcurrentHashMap<>();
+
+	public ShardedDbConnectionPool(DbConnectionPool... shards) {
+
+		this(HASH_MOD, shards);
+	}
+
+	public ShardedDbConnectionPool(ShardFunction function, DbConnectionPool... shards) {
+
+		super(properties(shards));
+
+		Validate.notNull(function, "function cannot be null");
+
+		this.function = function;
+		this.shards = Collections.unmodifiableList(Arrays.asList(shards.clone()));
+	}
+
+	@Override
+	public void init() throws DatabaseException
+	{
+		for (DbConnectionPool shard : shards)
+			shard.init();
+
+		if (logger.isDebugEnabled())
+			logger.debug(String.format("ShardedDbConnectionPool is now active with %d shards.", shards.size()));
+	}
+
+	@Override
+	public void shutdown() throws DatabaseException
+	{
+		for (DbConnectionPool shard : shards)
+			shard.shutdown();
+
+		lent.clear();
+
+		if (statementCache != null)
+			statementCache.clear();
+	}
+
+	@Override
+	protected Connection acquire() throws DatabaseException
+	{
+		return acquire(false);
+	}
+
+	@Override
+	protected Connection acquire(boolean readOnly) throws DatabaseException
+	{
+		Integer shard = current.get();
+		if (shard == null)
+			throw new DatabaseException("No shard is bound to the thread.");
+
+		Connection conn = shards.get(shard).open(null, readOnly);
+		if (lent.size() > PURGE_SIZE)
+			purge();
+
+		lent.put(conn, shard);
+		return conn;
+	}
+
+	@Override
+	public boolean close(Connection connection) throws DatabaseException
+	{
+		Integer shard = lent.remove(connection);
+		boolean closed = (shard != null) ? shards.get(shard).close(connection) : false;
+
+		return super.close(connection) || closed;
+	}
+
+	@Override
+	protected Connection physical(Connection connection) throws SQLException
+	{
+		Integer shard = lent.get(connection);
+		return (shard != null) ? shards.get(shard).physical(connection) : null;
+	}
+
+	@Override
+	public void cursor(Statement statement, int fetchSize) throws SQLException
+	{
+		Integer shard = current.get();
+		shards.get((shard != null) ? shard : 0).cursor(statement, fetchSize);
+	}
+
+	/**
+	 * Returns the shard of the key.
+	 *
+	 * @param Key key
+	 * @return int
+	 */
+	public int shardOf(Key key)
+	{
+		Validate.notNull(key, "key cannot be null");
+
+		int shard = function.shard(key, shards.size());
+		Validate.validIndex(shards, shard, "shard %d of the key %s is out of range", shard, key);
+
+		return shard;
+	}
+
+	/**
+	 * Execute the work with the connections opened on the shard of the key.
+	 *
+	 * @param Key key
+	 * @param Callable<T> work
+	 * @return T
+	 * @throws Exception
+	 */
+	public <T> T call(Key key, Callable<T> work) throws Exception
+	{
+		return call(shardOf(key), work);
+	}
+
+	/**
+	 * Execute the work with the connections opened on the shard.
+	 *
+	 * @param int shard
+	 * @param Callable<T> work
+	 * @return T
+	 * @throws Exception
+	 */
+	public <T> T call(int shard, Callable<T> work) throws Exception
+	{
+		Validate.validIndex(shards, shard, "shard %d is out of range", shard);
+		Validate.notNull(work, "work cannot be null");
+
+		DbTransaction tx = DbTransaction.current();
+		if (tx != null && tx.isActive()) {
+			Integer pinned = lent.get(tx.getConnection());
+			if (pinned != null && pinned != shard)
+				throw new DatabaseException(String.format(
+					"The transaction is on the shard %d, not on the shard %d.", pinned, shard));
+		}
+
+		Integer prev = current.get();
+		current.set(shard);
+		try {
+			return work.call();
+		}
+		finally {
+			if (prev != null)
+				current.set(prev);
+			else
+				current.remove();
+		}
+	}
+
+	/**
+	 * Execute the work on every shard concurrently, by the DbExecutor (or in
+	 * sequence, when it is not active), and merges the maps in the order of
+	 * the shards. The first error of the shards is thrown; a key found on
+	 * more shards is a CollisionException in self-check mode.
+	 *
+	 * @param Callable<Map<K, V>> work
+	 * @return Map<K, V>
+	 * @throws DatabaseException
+	 */
+	public <K, V> Map<K, V> scatter(Callable<Map<K, V>> work) throws DatabaseException
+	{
+		Validate.notNull(work, "work cannot be null");
+
+		int count = shards.size();
+		List<Map<K, V>> results = new ArrayList<>(count);
+		DbExecutor executor = DbDao.getExecutor();
+
+		if (count == 1 || executor == null) {
+			for (int i = 0; i < count; i++)
+				results.add(gather(i, work));
+		}
+		else {
+			List<CompletableFuture<Map<K, V>>> futures = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				int shard = i;
+				futures.add(executor.submit(() -> call(shard, work)));
+			}
+
+			Exception error = null;
+			for (CompletableFuture<Map<K, V>> future : futures) {
+				try {
+					results.add(future.get());
+				}
+				catch (ExecutionException e) {
+					if (error == null)
+						error = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					if (error == null)
+						error = e;
+				}
+			}
+
+			if (error instanceof DatabaseException)
+				throw (DatabaseException) error;
+			if (error != null)
+				throw new DatabaseException(error);
+		}
+
+		int size = 0;
+		for (Map<K, V> result : results)
+			if (result != null)
+				size += result.size();
+
+		Map<K, V> merged = new LinkedHashMap<>(Math.max(16, (int) (size / 0.75F) + 1));
+		for (Map<K, V> result : results)
+			if (result != null)
+				for (Map.Entry<K, V> entry : result.entrySet())
+					DbDao.putModel(merged, entry.getKey(), entry.getValue());
+
+		return merged;
+	}
+
+	/**
+	 * Returns the shard bound to the thread, or null.
+	 *
+	 * @return Integer
+	 */
+	public Integer getCurrentShard()
+	{
+		return current.get();
+	}
+
+	public DbConnectionPool getShard(int shard)
+	{
+		return shards.get(shard);
+	}
+
+	public List<DbConnectionPool> getShards()
+	{
+		return shards;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("ShardedDbConnectionPool[shards=%s]", shards);
+	}
+
+	//
+	// Internal
+	//
+
+	/**
+	 * The shards are validated before the properties of the first one are
+	 * taken.
+	 */
+	private static DbProperties properties(DbConnectionPool[] shards)
+	{
+		Validate.notEmpty(shards, "shards cannot be empty");
+		Validate.noNullElements(shards, "shards cannot contain null");
+
+		return shards[0].getProperties();
+	}
+
+	private <K, V> Map<K, V> gather(int shard, Callable<Map<K, V>> work) throws DatabaseException
+	{
+		try {
+			return call(shard, work);
+		}
+		catch (DatabaseException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	/**
+	 * The connections closed by the callers without the pool are forgotten.
+	 */
+	private void purge()
+	{
+		for (Iterator<Entry<Connection, Integer>> it = lent.entrySet().iterator(); it.hasNext();) {
+			try {
+				if (it.next().getKey().isClosed())
+					it.remove();
+			}
+			catch (SQLException e) {
+				it.remove();
+			}
+		}
+	}
+}
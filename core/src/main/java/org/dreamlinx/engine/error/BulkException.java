@@ -0,0 +1,85 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.error;
+
+import java.util.Collections;
+import java.util.SortedMap;
+
+/**
+ * Exception for bulk operations with failed splits. Each split is committed
+ * on its own: the ones without error are committed, the failed ones are
+ * rolled back.
+ * 
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class BulkException extends DatabaseException {
+
+	private static final long serialVersionUID = - 3209338155471865170L;
+
+	private final Object[] results;
+	private final SortedMap<Integer, Throwable> errors;
+
+	public BulkException(Object[] results, SortedMap<Integer, Throwable> errors) {
+
+		super(String.format("%d of %d splits are failed %s: %s", errors.size(), results.length,
+			errors.keySet(), errors.get(errors.firstKey()).getMessage()), errors.get(errors.firstKey()));
+
+		this.results = results;
+		this.errors = Collections.unmodifiableSortedMap(errors);
+
+		for (Throwable t : errors.values())
+			if (t != getCause())
+				addSuppressed(t);
+	}
+
+	/**
+	 * Returns the results of the splits in input order; the failed ones are
+	 * null.
+	 * 
+	 * @return Object[]
+	 */
+	public Object[] getResults()
+	{
+		return results;
+	}
+
+	/**
+	 * Returns the errors by index of the failed splits.
+	 * 
+	 * @return SortedMap<Integer, Throwable>
+	 */
+	public SortedMap<Integer, Throwable> getErrors()
+	{
+		return errors;
+	}
+
+	/**
+	 * Check if the split is committed.
+	 * 
+	 * @param int split
+	 * @return boolean
+	 */
+	public boolean isCommitted(int split)
+	{
+		return ! errors.containsKey(split);
+	}
+}
@@ -62,6 +62,16 @@ public class DaemonPool {
 			logger.debug("Daemon pool is now active.");
 	}
 
+	/**
+	 * Check if the pool is initialized and not yet shut down.
+	 * 
+	 * @return boolean
+	 */
+	public static boolean isActive()
+	{
+		return (pool != null && ! pool.isShutdown());
+	}
+
 	/**
 	 * Initiates an orderly shutdown in which previously submitted tasks are executed, but no new
 	 * tasks will be accepted. Invocation has no additional effect if already shut down.
@@ -0,0 +1,158 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.sys.struct;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non negative values, like durations in
+ * nanoseconds. The values are counted in log-linear buckets: each power of
+ * two is split in 8 sub-buckets, so a percentile is within 12.5% of the
+ * recorded value.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Record the value; the negative ones are recorded as zero.
+	 *
+	 * @param long value
+	 */
+	public void record(long value)
+	{
+		if (value < 0)
+			value = 0;
+
+		counts.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	public long getSum()
+	{
+		return sum.sum();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	public double getMean()
+	{
+		long n = count.sum();
+		return (n != 0) ? (double) sum.sum() / n : 0;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket holding the percentile, between
+	 * 0 and 100, of the recorded values.
+	 *
+	 * @param double percentile
+	 * @return long
+	 */
+	public long getPercentile(double percentile)
+	{
+		long n = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			n += (snapshot[i] = counts.get(i));
+
+		if (n == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100 * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank && snapshot[i] != 0)
+				return Math.min(upperBound(i), getMax());
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * Forget all the recorded values.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("Histogram[count=%d, mean=%.1f, p50=%d, p99=%d, max=%d]",
+			getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+	}
+
+	//
+	// Internal
+	//
+
+	static int bucket(long value)
+	{
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		int sub = (int) (value >>> exp) & (SUB_BUCKETS - 1);
+
+		return (exp + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int exp = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS;
+
+		long bound = ((SUB_BUCKETS + sub + 1) << exp) - 1;
+		return (bound > 0) ? bound : Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,289 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.sys.struct;
+
+import java.util.Arrays;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * Growable buffers of primitive values, stored in a contiguous array without
+ * boxing: ten millions of longs take 80 MB instead of the hundreds of a list
+ * of Long. The array grows by half of its capacity; the values are trimmed
+ * to their size by toArray, which returns the array itself when it is full.
+ * The buffers are not thread safe.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public abstract class PrimitiveBuffer {
+
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	protected int size;
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Forget the values, keeping the capacity.
+	 */
+	public void clear()
+	{
+		size = 0;
+	}
+
+	public abstract int capacity();
+
+	//
+	// Internal
+	//
+
+	void checkIndex(int index)
+	{
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, size));
+	}
+
+	static int grow(int capacity, int minCapacity)
+	{
+		if (minCapacity < 0 || minCapacity > MAX_CAPACITY)
+			throw new OutOfMemoryError("Buffer capacity exceeded.");
+
+		int grown = capacity + (capacity >> 1);
+		if (grown < 0 || grown > MAX_CAPACITY)
+			grown = MAX_CAPACITY;
+
+		return Math.max(Math.max(grown, minCapacity), DEFAULT_CAPACITY);
+	}
+
+	static int initialCapacity(int capacity)
+	{
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity cannot be negative");
+
+		return capacity;
+	}
+
+	/**
+	 * Buffer of long values.
+	 */
+	public static final class OfLong extends PrimitiveBuffer {
+
+		private long[] values;
+
+		public OfLong() {
+
+			this(DEFAULT_CAPACITY);
+		}
+
+		public OfLong(int capacity) {
+
+			values = new long[initialCapacity(capacity)];
+		}
+
+		public void add(long value)
+		{
+			if (size == values.length)
+				values = Arrays.copyOf(values, grow(values.length, size + 1));
+
+			values[size++] = value;
+		}
+
+		public long get(int index)
+		{
+			checkIndex(index);
+			return values[index];
+		}
+
+		public void set(int index, long value)
+		{
+			checkIndex(index);
+			values[index] = value;
+		}
+
+		@Override
+		public int capacity()
+		{
+			return values.length;
+		}
+
+		/**
+		 * Returns the values, in the array of the buffer when it is full.
+		 *
+		 * @return long[]
+		 */
+		public long[] toArray()
+		{
+			return (size == values.length) ? values : Arrays.copyOf(values, size);
+		}
+
+		public LongStream stream()
+		{
+			return Arrays.stream(values, 0, size);
+		}
+
+		@Override
+		public String toString()
+		{
+			return Arrays.toString(Arrays.copyOf(values, size));
+		}
+	}
+
+	/**
+	 * Buffer of int values.
+	 */
+	public static final class OfInt extends PrimitiveBuffer {
+
+		private int[] values;
+
+		public OfInt() {
+
+			this(DEFAULT_CAPACITY);
+		}
+
+		public OfInt(int capacity) {
+
+			values = new int[initialCapacity(capacity)];
+		}
+
+		public void add(int value)
+		{
+			if (size == values.length)
+				values = Arrays.copyOf(values, grow(values.length, size + 1));
+
+			values[size++] = value;
+		}
+
+		public int get(int index)
+		{
+			checkIndex(index);
+			return values[index];
+		}
+
+		public void set(int index, int value)
+		{
+			checkIndex(index);
+			values[index] = value;
+		}
+
+		@Override
+		public int capacity()
+		{
+			return values.length;
+		}
+
+		/**
+		 * Returns the values, in the array of the buffer when it is full.
+		 *
+		 * @return int[]
+		 */
+		public int[] toArray()
+		{
+			return (size == values.length) ? values : Arrays.copyOf(values, size);
+		}
+
+		public IntStream stream()
+		{
+			return Arrays.stream(values, 0, size);
+		}
+
+		@Override
+		public String toString()
+		{
+			return Arrays.toString(Arrays.copyOf(values, size));
+		}
+	}
+
+	/**
+	 * Buffer of double values.
+	 */
+	public static final class OfDouble extends PrimitiveBuffer {
+
+		private double[] values;
+
+		public OfDouble() {
+
+			this(DEFAULT_CAPACITY);
+		}
+
+		public OfDouble(int capacity) {
+
+			values = new double[initialCapacity(capacity)];
+		}
+
+		public void add(double value)
+		{
+			if (size == values.length)
+				values = Arrays.copyOf(values, grow(values.length, size + 1));
+
+			values[size++] = value;
+		}
+
+		public double get(int index)
+		{
+			checkIndex(index);
+			return values[index];
+		}
+
+		public void set(int index, double value)
+		{
+			checkIndex(index);
+			values[index] = value;
+		}
+
+		@Override
+		public int capacity()
+		{
+			return values.length;
+		}
+
+		/**
+		 * Returns the values, in the array of the buffer when it is full.
+		 *
+		 * @return double[]
+		 */
+		public double[] toArray()
+		{
+			return (size == values.length) ? values : Arrays.copyOf(values, size);
+		}
+
+		public DoubleStream stream()
+		{
+			return Arrays.stream(values, 0, size);
+		}
+
+		@Override
+		public String toString()
+		{
+			return Arrays.toString(Arrays.copyOf(values, size));
+		}
+	}
+}
@@ -25,7 +25,18 @@ import org.dreamlinx.engine.conf.ConfigurationValidatorTest;
 import org.dreamlinx.engine.core.ChronoLogTest;
 import org.dreamlinx.engine.core.LogTest;
 import org.dreamlinx.engine.core.ModuleTest;
+import org.dreamlinx.engine.db.DbConnectionPoolTest;
+import org.dreamlinx.engine.db.DbDaoBulkTest;
+import org.dreamlinx.engine.db.DbDaoRowIdTest;
+import org.dreamlinx.engine.db.DbDaoTest;
 import org.dreamlinx.engine.db.DbFunctionTest;
+import org.dreamlinx.engine.db.DbQueryCacheTest;
+import org.dreamlinx.engine.db.DbQueryMetricsTest;
+import org.dreamlinx.engine.db.DbTransactionTest;
+import org.dreamlinx.engine.db.NativeDbConnectionPoolTest;
+import org.dreamlinx.engine.db.RoutingDbConnectionPoolTest;
+import org.dreamlinx.engine.db.ShardedDbConnectionPoolTest;
+import org.dreamlinx.engine.db.ModelCacheTest;
 import org.dreamlinx.engine.fn.DateFnTest;
 import org.dreamlinx.engine.fn.MathFnTest;
 import org.dreamlinx.engine.fn.NetworkFnTest;
@@ -39,7 +50,9 @@ import org.dreamlinx.engine.sys.DaemonPoolTest;
 import org.dreamlinx.engine.sys.OsTest;
 import org.dreamlinx.engine.sys.struct.BijectiveMapTest;
 import org.dreamlinx.engine.sys.struct.HierarchyTreeTest;
+import org.dreamlinx.engine.sys.struct.HistogramTest;
 import org.dreamlinx.engine.sys.struct.MultiMapTest;
+import org.dreamlinx.engine.sys.struct.PrimitiveBufferTest;
 import org.dreamlinx.engine.sys.struct.ScrollableListTest;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -62,7 +75,10 @@ import org.junit.runners.Suite;
 	// model
 	KeyTest.class, ModelTest.class,
 	// db
-	DbFunctionTest.class,
+	DbFunctionTest.class, DbDaoTest.class, DbDaoBulkTest.class, DbDaoRowIdTest.class,
+	ModelCacheTest.class, DbQueryCacheTest.class, DbTransactionTest.class,
+	NativeDbConnectionPoolTest.class, DbConnectionPoolTest.class, RoutingDbConnectionPoolTest.class,
+	ShardedDbConnectionPoolTest.class, DbQueryMetricsTest.class,
 	// fn
 	DateFnTest.class, MathFnTest.class, SysFnTest.class,
 	SerialFnTest.class, RandomFnTest.class, NetworkFnTest.class,
@@ -71,7 +87,8 @@ import org.junit.runners.Suite;
 	DaemonPoolTest.class, OsTest.class,
 	// data
 	HierarchyTreeTest.class, MultiMapTest.class,
-	BijectiveMapTest.class, ScrollableListTest.class
+	BijectiveMapTest.class, ScrollableListTest.class,
+	HistogramTest.class, PrimitiveBufferTest.class
 })
 public class UnitTestSuite {
 
@@ -0,0 +1,101 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+
+import javax.management.ObjectName;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class DbConnectionPoolTest extends UnitTestSupport {
+
+	private MemoryDb db;
+	private DbProperties props;
+
+	@Before
+	public void before() throws Exception
+	{
+		db = new MemoryDb();
+		db.table(DbDaoTest.SELECT_ALL, "ID", "NAME").rows(
+			new Object[] { 1L, "Terminal" });
+
+		props = new DbProperties();
+		props.setSourceName("memory");
+	}
+
+	@Test
+	public void metrics() throws Exception
+	{
+		MemoryDbConnectionPool pool = new MemoryDbConnectionPool(db, props, true);
+		DbDao.init(pool);
+		DummyDao dao = new DummyDao();
+
+		for (int i = 0; i < 5; i++)
+			dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+
+		Connection conn = pool.open();
+		assertEquals(1, pool.getActiveCount());
+		assertEquals(0, pool.getPendingCount());
+		assertEquals(6, pool.getBorrowCount());
+		assertTrue(pool.getBorrowWaitMax() >= pool.getBorrowWaitMean());
+
+		// Closed without the pool
+		conn.close();
+		assertEquals(0, pool.getActiveCount());
+		assertEquals(6, pool.getHoldTimeHistogram().getCount());
+		assertEquals(5, pool.getHoldTimeHistogram(DummyDao.class.getName()).getCount());
+		assertTrue(pool.getHoldTimeByCaller().containsKey(DummyDao.class.getName()));
+
+		// JMX
+		ObjectName name = new ObjectName("org.dreamlinx.engine.db:type=DbConnectionPool,name=\"memory\"");
+		assertEquals(6L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "BorrowCount"));
+
+		pool.unregisterMBean();
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+
+	@Test
+	public void leaks() throws Exception
+	{
+		props.setLeakDetectionThreshold(200);
+		MemoryDbConnectionPool pool = new MemoryDbConnectionPool(db, props);
+
+		Connection leaked = pool.open("leaker");
+		Connection returned = pool.open();
+		pool.close(returned);
+
+		Thread.sleep(250);
+		assertEquals(1, pool.detectLeaks());
+		assertEquals(0, pool.detectLeaks());
+		assertEquals(1, pool.getLeakCount());
+
+		pool.close(leaked);
+		assertEquals(0, pool.getActiveCount());
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.sql.Array;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.dreamlinx.engine.error.BulkException;
+import org.dreamlinx.engine.error.DatabaseException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class DbDaoBulkTest extends UnitTestSupport {
+
+	static final String BULK = "{? = call BULK_DUMMY(?,?)}";
+
+	private MemoryDb db;
+	private List<Dummy> models;
+
+	@Before
+	public void before() throws Exception
+	{
+		db = new MemoryDb();
+		db.table(BULK).update(params -> {
+			try {
+				Object[] ids = (Object[]) ((Array) params.get(0)).getArray();
+				if (Arrays.asList(ids).contains(5L))
+					throw new IllegalStateException("Refused id 5");
+
+				return ids.length;
+			}
+			catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		DbProperties prop = new DbProperties();
+		prop.setCommitSize(3);
+		DbDao.init(new MemoryDbConnectionPool(db, prop));
+
+		models = new ArrayList<>();
+		for (long i = 1; i <= 10; i++) {
+			Dummy dummy = new Dummy();
+			dummy.setId(i);
+			dummy.setName("N" + i);
+			models.add(dummy);
+		}
+	}
+
+	@Test
+	public void sequential() throws Exception
+	{
+		DummyBulkDao dao = new DummyBulkDao();
+		DbSQLQuery cached = new DbSQLQuery("SELECT * FROM DUMMY");
+		cached.setCacheExpiry(60000L);
+		DbDao.getQueryCache().get(cached, "T", q -> 1);
+
+		Integer[] res = dao.bulk(models.subList(5, 10));
+		assertArrayEquals(new Integer[] { 3, 2 }, res);
+		assertEquals(2, db.executions.get());
+		assertEquals(0, DbDao.getQueryCache().size());
+	}
+
+	@Test
+	public void parallel() throws Exception
+	{
+		DummyBulkDao dao = new DummyBulkDao();
+		dao.setParallelism(3);
+
+		Integer[] res = dao.bulk(models.subList(5, 10));
+		assertArrayEquals(new Integer[] { 3, 2 }, res);
+
+		try {
+			dao.bulk(models);
+			failWhenExceptionExpected();
+		}
+		catch (BulkException e) {
+			assertArrayEquals(new Object[] { 3, null, 3, 1 }, e.getResults());
+			assertEquals(1, e.getErrors().size());
+			assertTrue(e.isCommitted(0));
+			assertFalse(e.isCommitted(1));
+			assertTrue(e.isCommitted(3));
+		}
+
+		assertEquals(6, db.executions.get());
+		assertEquals(0, db.openConnections.get());
+	}
+
+	@Test
+	public void transaction() throws Exception
+	{
+		DummyBulkDao dao = new DummyBulkDao();
+		dao.setParallelism(3);
+
+		try (DbTransaction tx = DbTransaction.begin()) {
+			dao.bulk(models);
+			tx.commit();
+			failWhenExceptionExpected();
+		}
+		catch (IllegalStateException e) {
+			// The split of id 5 fails, so the transaction is rolled back
+		}
+
+		// The splits before the failure are rolled back with the transaction
+		assertEquals(2, db.executions.get());
+		assertEquals(1, db.connections.get());
+		assertEquals(0, db.commits.get());
+		assertEquals(1, db.rollbacks.get());
+		assertEquals(0, db.openConnections.get());
+	}
+
+	@Test
+	public void extraction() throws Exception
+	{
+		DbColumnExtractor<Dummy> ids = DbColumnExtractor.of(Dummy.class.getMethod("getId"), Long.class);
+		DbColumnExtractor<Dummy> hits = DbColumnExtractor.of(Dummy.class.getMethod("getHits"), int.class);
+		DbColumnExtractor<Dummy> amounts = DbColumnExtractor.of(Dummy.class.getMethod("getAmount"), Double.class);
+		DbColumnExtractor<Dummy> names = DbColumnExtractor.of(Dummy.class.getMethod("getName"), String.class);
+
+		Object data = ids.extract(models, null);
+		assertArrayEquals(new long[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, (long[]) data);
+		assertSame(data, ids.extract(models, data));
+		assertNotSame(data, ids.extract(models.subList(0, 3), data));
+		assertEquals(DbColumnExtractor.NUMBER_TYPE, ids.getDbType());
+
+		assertEquals(- 1, ((int[]) hits.extract(models, null))[0]);
+		assertEquals(DbColumnExtractor.NUMBER_TYPE, hits.getDbType());
+
+		models.get(1).setAmount(2.5D);
+		assertArrayEquals(new double[] { 2.5D }, (double[]) amounts.extract(models.subList(1, 2), null), 0D);
+		assertNull(((Object[]) amounts.extract(models, null))[0]);
+
+		assertEquals("N10", ((Object[]) names.extract(models, null))[9]);
+		assertEquals(DbColumnExtractor.VARCHAR_TYPE, names.getDbType());
+
+		try {
+			DbColumnExtractor.of(Thread.class.getMethod("getContextClassLoader"), ClassLoader.class).getDbType();
+			failWhenExceptionExpected();
+		}
+		catch (DatabaseException e) {}
+	}
+}
+
+class DummyBulkDao extends DbDaoBulk<Dummy> {
+
+	Integer[] bulk(List<Dummy> models) throws Exception
+	{
+		DbFunction fn = new DbFunction("BULK_DUMMY", Types.INTEGER);
+		fn.addParameter("ID", null);
+		fn.addParameter("NAME", null);
+
+		return executeBulk(fn, models, Integer.class);
+	}
+}
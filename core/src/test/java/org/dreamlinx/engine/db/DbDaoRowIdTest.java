@@ -0,0 +1,122 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.sql.Array;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.dreamlinx.engine.model.Key;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class DbDaoRowIdTest extends UnitTestSupport {
+
+	static final String FETCH = "{? = call FETCH_DUMMY(?)}";
+
+	private MemoryDb db;
+	private DummyRowIdDao dao;
+
+	@Before
+	public void before() throws Exception
+	{
+		db = new MemoryDb();
+		db.table(FETCH, "ID", "NAME").rows(params -> {
+			try {
+				Object[] rowIds = (Object[]) ((Array) params.get(0)).getArray();
+				return Arrays.stream(rowIds)
+					.map(r -> new Object[] { Long.valueOf(((String) r).substring(1)), r })
+					.iterator();
+			}
+			catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		DbDao.init(new MemoryDbConnectionPool(db));
+		dao = new DummyRowIdDao();
+	}
+
+	@Test
+	public void fetch() throws Exception
+	{
+		List<String> rowIds = new ArrayList<>();
+		for (int i = 0; i < 3000; i++)
+			rowIds.add("R" + (i % 2500));
+
+		DbFunction fn = new DbFunction("FETCH_DUMMY");
+		Map<Key, Dummy> map = dao.map(fn, rowIds);
+
+		assertEquals(2500, map.size());
+		assertEquals("R2499", map.get(new Key(2499L)).getName());
+		assertEquals(3, db.executions.get());
+		assertFalse(fn.hasParameters());
+
+		List<Dummy> list = dao.list(fn, rowIds);
+
+		assertEquals(2500, list.size());
+		assertEquals(Long.valueOf(0L), list.get(0).getId());
+		assertEquals(Long.valueOf(2499L), list.get(2499).getId());
+		assertEquals(6, db.executions.get());
+		assertEquals(0, db.openConnections.get());
+
+		assertEquals(2, dao.list(fn, Arrays.asList("R1", "R2", "R1")).size());
+	}
+
+	@Test
+	public void transaction() throws Exception
+	{
+		List<String> rowIds = new ArrayList<>();
+		for (int i = 0; i < 2500; i++)
+			rowIds.add("R" + i);
+
+		try (DbTransaction tx = DbTransaction.begin()) {
+			assertEquals(2500, dao.list(new DbFunction("FETCH_DUMMY"), rowIds).size());
+			tx.rollback();
+		}
+
+		assertEquals(3, db.executions.get());
+		assertEquals(1, db.connections.get());
+		assertEquals(0, DbDao.getExecutor().getSubmittedCount());
+		assertEquals(0, db.openConnections.get());
+	}
+}
+
+class DummyRowIdDao extends DbDaoRowId<Dummy> {
+
+	Map<Key, Dummy> map(DbFunction fn, List<String> rowIds) throws Exception
+	{
+		return queryForModelMap(fn, rowIds);
+	}
+
+	List<Dummy> list(DbFunction fn, List<String> rowIds) throws Exception
+	{
+		return queryForModelList(fn, rowIds);
+	}
+}
@@ -0,0 +1,525 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.dreamlinx.engine.UnitTestSupport;
+import org.dreamlinx.engine.error.DatabaseException;
+import org.dreamlinx.engine.model.Key;
+import org.dreamlinx.engine.sys.DaemonPool;
+import org.dreamlinx.engine.sys.struct.AutoCloseableIterator;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class DbDaoTest extends UnitTestSupport {
+
+	static final String SELECT_ALL = "SELECT * FROM DUMMY";
+	static final String SELECT_IDS = "SELECT ID FROM DUMMY";
+	static final String SELECT_MANY = "SELECT * FROM DUMMY_MANY";
+	static final String SELECT_PART = "SELECT * FROM DUMMY_MANY WHERE MOD(ID, ?) = ?";
+	static final String SELECT_AFTER = "SELECT * FROM DUMMY_MANY WHERE ID > ? ORDER BY ID";
+	static final int MANY = 10000;
+
+	private MemoryDb db;
+	private DummyDao dao;
+
+	@Before
+	public void before() throws Exception
+	{
+		db = new MemoryDb();
+		db.table(SELECT_ALL, "ID", "NAME", "AMOUNT", "HITS", "UNBOUND").rows(
+			new Object[] { 1L, "Terminal", 10.5D, 4, "x" },
+			new Object[] { 2L, "Thunar", null, 0, "y" },
+			new Object[] { 3L, null, 7D, 9, "z" });
+		db.table(SELECT_IDS, "ID").rows(
+			new Object[] { 1L },
+			new Object[] { 2L });
+		db.table(SELECT_MANY, "ID", "NAME").rows(params -> LongStream.rangeClosed(1, MANY)
+			.mapToObj(i -> new Object[] { i, "N" + i }).iterator());
+		db.table(SELECT_PART, "ID", "NAME").rows(params -> LongStream.rangeClosed(1, MANY)
+			.filter(i -> i % (Integer) params.get(0) == (Integer) params.get(1))
+			.mapToObj(i -> new Object[] { i, "N" + i }).iterator());
+		db.table(SELECT_AFTER, "ID", "NAME").rows(params -> LongStream.rangeClosed((Long) params.get(0) + 1, MANY)
+			.mapToObj(i -> new Object[] { i, "N" + i }).iterator());
+
+		DbDao.init(new MemoryDbConnectionPool(db));
+		dao = new DummyDao();
+	}
+
+	@Test
+	public void mapping() throws Exception
+	{
+		List<Dummy> list = dao.queryForModelList(new DbSQLQuery(SELECT_ALL));
+
+		assertEquals(3, list.size());
+		assertEquals(Long.valueOf(1L), list.get(0).getId());
+		assertEquals("Terminal", list.get(0).getName());
+		assertEquals(Double.valueOf(10.5D), list.get(0).getAmount());
+		assertNull(list.get(1).getAmount());
+		assertNull(list.get(2).getName());
+		assertTrue(list.get(2).aftermath);
+
+		Map<Key, Dummy> map = dao.queryForModelMap(new DbSQLQuery(SELECT_ALL));
+
+		assertEquals(3, map.size());
+		assertEquals("Thunar", map.get(new Key(2L)).getName());
+		assertEquals(0, db.openConnections.get());
+	}
+
+	@Test
+	public void primitiveArrays() throws Exception
+	{
+		long[] ids = dao.queryForLongArray(new DbSQLQuery(SELECT_MANY));
+		assertEquals(MANY, ids.length);
+		assertEquals(MANY * (MANY + 1L) / 2, LongStream.of(ids).sum());
+
+		assertArrayEquals(new int[] { 1, 2, 3 }, dao.queryForIntArray(new DbSQLQuery(SELECT_ALL)));
+		assertArrayEquals(new double[] { 1, 2 }, dao.queryForDoubleArray(new DbSQLQuery(SELECT_IDS)), 0);
+
+		db.table("SELECT ID FROM NOTHING", "ID").rows();
+		assertEquals(0, dao.queryForLongArray(new DbSQLQuery("SELECT ID FROM NOTHING")).length);
+
+		// The cached arrays are shared
+		DbSQLQuery cached = new DbSQLQuery(SELECT_IDS);
+		cached.setCacheExpiry(60000L);
+		long[] first = dao.queryForLongArray(cached);
+		assertArrayEquals(new long[] { 1, 2 }, first);
+		assertSame(first, dao.queryForLongArray(cached));
+		assertEquals(0, db.openConnections.get());
+	}
+
+	@Test
+	public void columns() throws Exception
+	{
+		db.table(SELECT_ALL, "ID", "NAME", "AMOUNT", "HITS", "UNBOUND", "ACTIVE")
+			.types(Types.BIGINT, Types.VARCHAR, Types.DOUBLE, Types.INTEGER, Types.OTHER, Types.BOOLEAN).rows(
+				new Object[] { 1L, "Terminal", 10.5D, 4, "x", true },
+				new Object[] { 2L, "Thunar", null, null, "y", false },
+				new Object[] { 3L, null, 7D, 9, "z", null });
+
+		DbColumns columns = dao.queryForColumns(new DbSQLQuery(SELECT_ALL));
+		assertEquals(3, columns.getRowCount());
+		assertEquals(6, columns.getLongColumn("id").sum());
+		assertEquals(17.5, columns.getDoubleColumn("AMOUNT").sum(), 0);
+		assertTrue(columns.getDoubleColumn("AMOUNT").isNull(1));
+		assertArrayEquals(new long[] { 4, 0, 9 }, columns.getLongColumn("HITS").toArray());
+		assertArrayEquals(new long[] { 1, 0, 0 }, columns.getLongColumn("ACTIVE").toArray());
+		assertTrue(columns.getLongColumn("ACTIVE").isNull(2));
+
+		// The values are copied
+		columns.getLongColumn("HITS").toArray()[0] = - 1;
+		assertEquals(4, columns.getLongColumn("HITS").get(0));
+		assertTrue(columns.getColumn("UNBOUND") instanceof DbColumns.ObjectColumn);
+
+		DbColumns.StringColumn names = columns.getStringColumn("NAME");
+		assertTrue(names.isEncoded());
+		assertEquals("Thunar", names.get(1));
+		assertNull(names.get(2));
+		assertTrue(names.isNull(2));
+
+		// Group by the dictionary of the names
+		db.table(SELECT_MANY, "ID", "NAME").types(Types.BIGINT, Types.VARCHAR).rows(params -> LongStream
+			.rangeClosed(1, MANY).mapToObj(i -> new Object[] { i, "N" + (i % 3) }).iterator());
+
+		columns = dao.queryForColumns(new DbSQLQuery(SELECT_MANY), true);
+		assertTrue(columns.getLongColumn("ID").isDirect());
+		assertEquals(MANY * (MANY + 1L) / 2, columns.getLongColumn("ID").sum());
+		assertEquals(MANY, columns.getLongColumn("ID").toArray()[MANY - 1]);
+		assertEquals(3, columns.getStringColumn("NAME").getDictionary().size());
+
+		Map<String, Double> sums = columns.sumBy("NAME", "ID");
+		assertEquals(3, sums.size());
+		assertEquals(MANY * (MANY + 1D) / 2, sums.values().stream().mapToDouble(Double::doubleValue).sum(), 0);
+		assertEquals(0, db.openConnections.get());
+	}
+
+	@Test
+	public void projection() throws Exception
+	{
+		assertEquals("ID, NAME, AMOUNT, HITS", dao.getSelectList());
+		assertEquals("SELECT ID, NAME, AMOUNT, HITS FROM DUMMY",
+			dao.project(new DbSQLQuery(SELECT_ALL)).getQuery());
+		assertEquals("select distinct d.ID, d.NAME, d.AMOUNT, d.HITS from DUMMY d where d.ID > ?",
+			dao.project(new DbSQLQuery("select distinct d.* from DUMMY d where d.ID > ?")).getQuery());
+
+		DbSQLQuery count = new DbSQLQuery("SELECT COUNT(*) FROM DUMMY");
+		assertSame(count, dao.project(count));
+
+		DbSQLQuery xml = new CachedQueryDao().loadXMLQuery("selectProjected");
+		assertEquals("SELECT d.ID, d.NAME, d.AMOUNT, d.HITS FROM DUMMY d", xml.getQuery());
+		assertEquals("selectProjected", xml.getName());
+
+		// Self-check of the unbound columns
+		DbQueryMetrics metrics = DbDao.getQueryMetrics();
+		metrics.reset();
+		metrics.setProjectionCheck(true);
+		try {
+			DbSQLQuery named = new DbSQLQuery(SELECT_ALL);
+			named.setName("dummies");
+			dao.queryForModelList(named);
+			dao.queryForModelList(named);
+
+			assertEquals(2 * 3 * DbDao.MAX_COLUMN_WIDTH, metrics.getStats("dummies").getWastedBytes());
+			assertEquals(1, metrics.getWastedBytesByQuery().size());
+		}
+		finally {
+			metrics.setProjectionCheck(false);
+		}
+	}
+
+	@Test
+	public void rowMapperPlan() throws Exception
+	{
+		dao.queryForModelList(new DbSQLQuery(SELECT_ALL));
+		dao.queryForModelMap(new DbSQLQuery(SELECT_ALL));
+
+		assertEquals(1, dao.rowMappers.size());
+
+		dao.queryForModelList(new DbSQLQuery(SELECT_IDS));
+
+		assertEquals(2, dao.rowMappers.size());
+		assertEquals(1, dao.rowMappers.get("ID,").size());
+		assertEquals(4, dao.rowMappers.get("ID,NAME,AMOUNT,HITS,UNBOUND,").size());
+	}
+
+	@Test
+	public void columnReaders() throws Exception
+	{
+		List<Dummy> list = dao.queryForModelList(new DbSQLQuery(SELECT_ALL));
+
+		assertEquals(4, list.get(0).getHits());
+		assertEquals(0, list.get(1).getHits());
+		assertEquals(9, list.get(2).getHits());
+
+		// A primitive field cannot be NULL
+		db.table(SELECT_ALL, "ID", "HITS").rows(new Object[] { 1L, null });
+		try {
+			dao.queryForModelList(new DbSQLQuery(SELECT_ALL));
+			failWhenExceptionExpected();
+		}
+		catch (DatabaseException e) {}
+
+		List<Long> ids = dao.queryForObjectList(new DbSQLQuery(SELECT_IDS), Long.class);
+
+		assertEquals(2, ids.size());
+		assertEquals(Long.valueOf(2L), ids.get(1));
+
+		DbColumnReaders.register(StringBuilder.class, (rs, i) -> {
+			String v = rs.getString(i);
+			return (v != null) ? new StringBuilder(v) : null;
+		});
+		assertEquals("1", dao.queryForObjectList(new DbSQLQuery(SELECT_IDS), StringBuilder.class).get(0).toString());
+
+		try {
+			dao.queryForObjectList(new DbSQLQuery(SELECT_IDS), Thread.class);
+			failWhenExceptionExpected();
+		}
+		catch (DatabaseException e) {}
+
+		// Resolved by the type of the readers, in registration order
+		assertSame(DbColumnReaders.get(Integer.class), DbColumnReaders.get(Number.class));
+		assertNotSame(DbColumnReaders.get(java.util.Date.class), DbColumnReaders.get(java.sql.Date.class));
+	}
+
+	@Test
+	public void stream() throws Exception
+	{
+		DbProperties prop = new DbProperties();
+		prop.setFetchSize(50);
+		DbDao.init(new MemoryDbConnectionPool(db, prop));
+
+		try (Stream<Dummy> stream = dao.queryForModelStream(new DbSQLQuery(SELECT_MANY))) {
+			assertEquals(MANY, stream.filter(m -> m.getId() != null).count());
+		}
+		assertEquals(0, db.openConnections.get());
+		assertTrue(db.maxBufferedRows.get() <= 50);
+
+		try (Stream<Dummy> stream = dao.queryForModelStream(new DbSQLQuery(SELECT_MANY))) {
+			assertEquals("N3", stream.skip(2).findFirst().get().getName());
+			assertEquals(1, db.openConnections.get());
+		}
+		assertEquals(0, db.openConnections.get());
+
+		List<Dummy> list = dao.queryForModelList(new DbSQLQuery(SELECT_MANY));
+		assertEquals(MANY, list.size());
+		assertTrue(db.maxBufferedRows.get() <= 50);
+	}
+
+	@Test
+	public void pages() throws Exception
+	{
+		DbSQLQuery sqlQuery = new DbSQLQuery(SELECT_AFTER);
+		sqlQuery.addParameter("ID", 0L);
+
+		long sum = 0;
+		try (AutoCloseableIterator<Dummy> it = dao.queryForModelPages(sqlQuery, "ID", Dummy::getId, 1000, false)) {
+			assertEquals(0, db.openConnections.get());
+			while (it.hasNext()) {
+				sum += it.next().getId();
+				assertEquals(0, db.openConnections.get());
+			}
+		}
+		assertEquals(MANY * (MANY + 1L) / 2, sum);
+		assertEquals(MANY / 1000 + 1, db.executions.get());
+
+		// The next page is read in the background
+		List<Long> ids = new ArrayList<>();
+		try (AutoCloseableIterator<Dummy> it = dao.queryForModelPages(sqlQuery, "ID", Dummy::getId, 3000, true)) {
+			it.forEachRemaining(m -> ids.add(m.getId()));
+			assertFalse(it.hasNext());
+		}
+		assertEquals(MANY, ids.size());
+		assertEquals(Long.valueOf(MANY), ids.get(MANY - 1));
+
+		// Closed before the end
+		sqlQuery.addParameter("ID", 9000L);
+		try (AutoCloseableIterator<Dummy> it = dao.queryForModelPages(sqlQuery, "ID", Dummy::getId, 100, true)) {
+			assertEquals(Long.valueOf(9001), it.next().getId());
+		}
+		assertEquals(0, db.openConnections.get());
+	}
+
+	@Test
+	public void prefetch() throws Exception
+	{
+		long expected = 1;
+		try (AutoCloseableIterator<Dummy> it = dao.queryForModelIterator(new DbSQLQuery(SELECT_MANY), 64)) {
+			while (it.hasNext())
+				assertEquals(Long.valueOf(expected++), it.next().getId());
+
+			assertFalse(it.hasNext());
+		}
+		assertEquals(MANY + 1, expected);
+		assertEquals(0, db.openConnections.get());
+
+		// Closed before the end
+		try (AutoCloseableIterator<Dummy> it = dao.queryForModelIterator(new DbSQLQuery(SELECT_MANY), 8)) {
+			assertEquals(Long.valueOf(1), it.next().getId());
+		}
+		assertEquals(0, db.openConnections.get());
+
+		// Failure of the producer
+		db.table("SELECT * FROM BROKEN", "ID").rows(params -> LongStream.rangeClosed(1, MANY)
+			.mapToObj(i -> {
+				if (i == MANY / 2)
+					throw new IllegalStateException("broken");
+
+				return new Object[] { i };
+			}).iterator());
+
+		int count = 0;
+		try (AutoCloseableIterator<Dummy> it = dao.queryForModelIterator(new DbSQLQuery("SELECT * FROM BROKEN"), 8)) {
+			while (it.hasNext()) {
+				it.next();
+				count++;
+			}
+			failWhenExceptionExpected();
+		}
+		catch (RuntimeException e) {
+			assertEquals("broken", ExceptionUtils.getRootCause(e).getMessage());
+		}
+		assertTrue(count < MANY / 2);
+		assertEquals(0, db.openConnections.get());
+
+		// Read inline by a worker of the executor
+		CompletableFuture<Long> inline = dao.async(() -> {
+			long read = 0;
+			try (AutoCloseableIterator<Dummy> it = dao.queryForModelIterator(new DbSQLQuery(SELECT_MANY), 8)) {
+				while (it.hasNext() && it.next() != null)
+					read++;
+			}
+			return read;
+		});
+		assertEquals(Long.valueOf(MANY), inline.get(5, TimeUnit.SECONDS));
+		assertEquals(0, db.openConnections.get());
+	}
+
+	@Test
+	public void cursor() throws Exception
+	{
+		DbProperties prop = new DbProperties();
+		prop.setFetchSize(0);
+		DbDao.init(new MemoryDbConnectionPool(db, prop));
+
+		assertEquals(MANY, dao.queryForModelList(new DbSQLQuery(SELECT_MANY)).size());
+		assertEquals(MANY, db.maxBufferedRows.get());
+
+		db.maxBufferedRows.set(0);
+		DbSQLQuery query = new DbSQLQuery(SELECT_MANY);
+		query.setFetchSize(100);
+
+		assertEquals(MANY, dao.queryForModelMap(query).size());
+		assertEquals(100, db.maxBufferedRows.get());
+
+		db.maxBufferedRows.set(0);
+		prop.setFetchSize(20);
+		query.setFetchSize(null);
+
+		try (Stream<Dummy> stream = dao.queryForModelStream(query)) {
+			assertEquals(MANY, stream.count());
+		}
+		assertEquals(20, db.maxBufferedRows.get());
+		assertEquals(0, db.openConnections.get());
+	}
+
+	@Test
+	public void statementCache() throws Exception
+	{
+		MemoryDbConnectionPool pool = new MemoryDbConnectionPool(db, new DbProperties(), true);
+		DbDao.init(pool);
+
+		for (int i = 0; i < 3; i++)
+			assertEquals(3, dao.queryForModelList(new DbSQLQuery(SELECT_ALL)).size());
+
+		assertEquals(1, db.statements.get());
+		assertEquals(1, pool.getStatementCache().getMisses());
+		assertEquals(2, pool.getStatementCache().getHits());
+
+		try (Stream<Dummy> stream = dao.queryForModelStream(new DbSQLQuery(SELECT_ALL))) {
+			assertEquals(2, dao.queryForModelList(new DbSQLQuery(SELECT_IDS)).size());
+			assertEquals(3, dao.queryForModelList(new DbSQLQuery(SELECT_ALL)).size());
+			assertEquals(3, stream.count());
+		}
+		assertEquals(3, db.statements.get());
+		assertEquals(2, pool.idle.size());
+
+		DbProperties prop = new DbProperties();
+		prop.setStatementCacheSize(1);
+		pool = new MemoryDbConnectionPool(db, prop, true);
+		DbDao.init(pool);
+
+		dao.queryForModelList(new DbSQLQuery(SELECT_ALL));
+		dao.queryForModelList(new DbSQLQuery(SELECT_IDS));
+		dao.queryForModelList(new DbSQLQuery(SELECT_ALL));
+
+		assertEquals(3, pool.getStatementCache().getMisses());
+		assertEquals(0, pool.getStatementCache().getHits());
+	}
+
+	@Test
+	public void partitionedMap() throws Exception
+	{
+		DbSQLQuery named = new DbSQLQuery(SELECT_PART);
+		named.setName("partitions");
+		DbDao.getQueryMetrics().reset();
+		Map<Key, Dummy> map = dao.queryForModelMap(named, 4, MANY);
+
+		assertEquals(MANY, map.size());
+		assertEquals(4, db.connections.get());
+		assertEquals(4, DbDao.getQueryMetrics().getStats("partitions").getExecTime().getCount());
+
+		// In the order of the partitions
+		assertTrue(map instanceof LinkedHashMap);
+		assertEquals(new Key(4L), map.keySet().iterator().next());
+
+		DaemonPool.init(4);
+		try {
+			map = dao.queryForModelMap(new DbSQLQuery(SELECT_PART), 8, MANY);
+
+			assertEquals(MANY, map.size());
+			assertEquals("N77", map.get(new Key(77L)).getName());
+			assertEquals(12, db.connections.get());
+			assertEquals(0, db.openConnections.get());
+
+			map = dao.queryForModelMap(i -> {
+				DbSQLQuery query = new DbSQLQuery(SELECT_PART);
+				query.addParameter("n", 2);
+				query.addParameter("i", i);
+				return query;
+			}, 2, null);
+
+			assertEquals(MANY, map.size());
+
+			// On the connection of the transaction
+			int connections = db.connections.get();
+			try (DbTransaction tx = DbTransaction.begin()) {
+				assertEquals(MANY, dao.queryForModelMap(new DbSQLQuery(SELECT_PART), 8, MANY).size());
+				tx.commit();
+			}
+			assertEquals(connections + 1, db.connections.get());
+		}
+		finally {
+			DaemonPool.shutdown(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void async() throws Exception
+	{
+		List<CompletableFuture<List<Dummy>>> futures = new ArrayList<>();
+		for (int i = 0; i < 32; i++)
+			futures.add(dao.queryForModelListAsync(new DbSQLQuery(SELECT_ALL), null));
+
+		for (CompletableFuture<List<Dummy>> future : futures)
+			assertEquals(3, future.get().size());
+
+		CompletableFuture<Integer> nested = DbDao.getExecutor().submit(() -> {
+			List<CompletableFuture<List<Long>>> inner = new ArrayList<>();
+			for (int i = 0; i < 32; i++)
+				inner.add(dao.queryForObjectListAsync(new DbSQLQuery(SELECT_IDS), Long.class));
+
+			return inner.stream().mapToInt(f -> f.join().size()).sum();
+		});
+		assertEquals(Integer.valueOf(64), nested.get(5, TimeUnit.SECONDS));
+
+		try {
+			dao.queryForObjectAsync(new DbSQLQuery(SELECT_IDS), Thread.class).join();
+			failWhenExceptionExpected();
+		}
+		catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof DatabaseException);
+		}
+
+		DbExecutor executor = DbDao.getExecutor();
+		assertEquals(66, executor.getSubmittedCount());
+		assertEquals(1, executor.getFailedCount());
+		assertEquals(0, executor.getQueueDepth());
+		assertEquals(0, db.openConnections.get());
+
+		// Rejected after the shutdown
+		executor.shutdown();
+		try {
+			dao.queryForModelListAsync(new DbSQLQuery(SELECT_ALL), null).get(5, TimeUnit.SECONDS);
+			failWhenExceptionExpected();
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		assertEquals(2, executor.getFailedCount());
+	}
+}
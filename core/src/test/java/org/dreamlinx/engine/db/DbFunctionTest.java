@@ -50,4 +50,74 @@ public class DbFunctionTest extends UnitTestSupport {
 		assertStringNotBlank(func.getFunction());
 		assertFalse(func.getFunction().contains("()"));
 	}
+
+	@Test
+	public void callText() throws Exception
+	{
+		DbFunction func = new DbFunction("dummyFunction");
+		func.addParameter("p_a", "4FT");
+
+		String call = func.getFunction();
+		assertEquals("{? = call dummyFunction(?)}", call);
+		assertSame(call, func.getFunction());
+
+		func.addParameter("p_a", "5FT");
+		assertSame(call, func.getFunction());
+
+		func.addParameter("p_b", 11309, "trim");
+		assertEquals("{? = call dummyFunction(?,TRIM(?))}", func.getFunction());
+
+		func.clearParameters();
+		assertFalse(func.hasParameters());
+		assertEquals("{? = call dummyFunction()}", func.getFunction());
+
+		try {
+			func.getParameters().put("p_a", "4FT");
+			failWhenExceptionExpected();
+		}
+		catch (UnsupportedOperationException e) {}
+	}
+
+	@Test
+	public void elements() throws Exception
+	{
+		assertArrayEquals(new Long[] { 1L, 2L }, DbFunction.elements(new long[] { 1, 2 }));
+		assertArrayEquals(new Integer[] { 3 }, DbFunction.elements(new int[] { 3 }));
+		assertArrayEquals(new Boolean[] { true }, DbFunction.elements(new boolean[] { true }));
+
+		String[] names = { "4FT" };
+		assertSame(names, DbFunction.elements(names));
+	}
+
+	@Test
+	public void template() throws Exception
+	{
+		DbFunction tmpl = new DbFunction("dummyFunction", null);
+		tmpl.addParameter("p_a", null);
+		tmpl.addParameter("p_b", null, "upper");
+		tmpl.template();
+
+		DbFunction func = tmpl.bind("4FT", 11309);
+
+		assertSame(tmpl.getFunction(), func.getFunction());
+		assertEquals("{call dummyFunction(?,UPPER(?))}", func.getFunction());
+		assertEquals("4FT", func.getParameters().get("p_a"));
+		assertEquals(11309, func.getParameters().get("p_b"));
+		assertNull(tmpl.getParameters().get("p_a"));
+
+		func.addParameter("p_a", "5FT");
+		assertEquals("5FT", func.getParameters().get("p_a"));
+
+		try {
+			func.addParameter("p_c", 1);
+			failWhenExceptionExpected();
+		}
+		catch (IllegalStateException e) {}
+
+		try {
+			tmpl.bind("4FT");
+			failWhenExceptionExpected();
+		}
+		catch (IllegalArgumentException e) {}
+	}
 }
@@ -0,0 +1,220 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.dreamlinx.engine.model.Key;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class DbQueryCacheTest extends UnitTestSupport {
+
+	private MemoryDb db;
+	private CachedQueryDao dao;
+
+	@Before
+	public void before() throws Exception
+	{
+		db = new MemoryDb();
+		db.table("SELECT * FROM DUMMY", "ID", "NAME").rows(
+			new Object[] { 1L, "Terminal" },
+			new Object[] { 2L, "Thunar" });
+		db.table("SELECT COUNT(*) FROM DUMMY", "COUNT").rows(
+			new Object[] { 2L });
+		db.table("UPDATE DUMMY SET NAME = ?").update(params -> 2);
+		db.table("{call TOUCH_DUMMY()}").update(params -> 1);
+
+		DbDao.init(new MemoryDbConnectionPool(db));
+		dao = new CachedQueryDao();
+	}
+
+	@Test
+	public void cached() throws Exception
+	{
+		List<Dummy> first = dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+		List<Dummy> second = dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+
+		assertEquals(2, first.size());
+		assertSame(first, second);
+		assertEquals(1, db.executions.get());
+		assertEquals(1, DbDao.getQueryCache().getHits());
+
+		// Other shapes of the same query are cached apart
+		assertEquals(2, dao.queryForModelMap(dao.loadXMLQuery("selectAll")).size());
+		assertEquals(2, db.executions.get());
+
+		// Not opted in
+		dao.queryForObject(dao.loadXMLQuery("countAll"), Long.class);
+		dao.queryForObject(dao.loadXMLQuery("countAll"), Long.class);
+		assertEquals(4, db.executions.get());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void immutable() throws Exception
+	{
+		dao.queryForModelList(dao.loadXMLQuery("selectAll")).clear();
+	}
+
+	@Test
+	public void shared() throws Exception
+	{
+		List<Dummy> first = dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+		List<Dummy> second = dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+		assertSame(first.get(0), second.get(0));
+		assertEquals(1, db.executions.get());
+
+		Map<Key, Dummy> map = dao.queryForModelMap(dao.loadXMLQuery("selectAll"));
+		assertSame(map.get(new Key(1L)), dao.queryForModelMap(dao.loadXMLQuery("selectAll")).get(new Key(1L)));
+	}
+
+	@Test
+	public void invalidate() throws Exception
+	{
+		dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+		DbDao.getQueryCache().invalidate("dummies");
+		dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+		assertEquals(2, db.executions.get());
+
+		// Modified table
+		DbSQLQuery update = dao.loadXMLQuery("updateAll");
+		update.addParameter("NAME", "x");
+		dao.execute(update);
+		dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+		assertEquals(4, db.executions.get());
+		assertEquals(0, DbDao.getQueryCache().getHits());
+		assertEquals(2, DbDao.getQueryCache().getInvalidations());
+	}
+
+	@Test
+	public void function() throws Exception
+	{
+		DbQueryCache cache = DbDao.getQueryCache();
+		DbFunction fn = new DbFunction("TOUCH_DUMMY", null);
+
+		dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+		fn.setCacheTags("others");
+		dao.execute(fn, null);
+		assertEquals(1, cache.size());
+
+		fn.setCacheTags("dummies");
+		dao.execute(fn, null);
+		assertEquals(0, cache.size());
+
+		// Without tags
+		dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+		dao.execute(new DbFunction("TOUCH_DUMMY", null), null);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void transaction() throws Exception
+	{
+		DbQueryCache cache = DbDao.getQueryCache();
+		DbSQLQuery update = dao.loadXMLQuery("updateAll");
+		update.addParameter("NAME", "x");
+
+		dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+		try (DbTransaction tx = DbTransaction.begin()) {
+			dao.execute(update);
+			assertEquals(1, cache.size());
+
+			// Not cached in the transaction
+			dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+			assertEquals(3, db.executions.get());
+			assertEquals(0, cache.getHits());
+
+			tx.commit();
+		}
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getInvalidations());
+
+		// Rolled back
+		dao.queryForModelList(dao.loadXMLQuery("selectAll"));
+		try (DbTransaction tx = DbTransaction.begin()) {
+			dao.execute(update);
+			tx.rollback();
+		}
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getInvalidations());
+	}
+
+	@Test
+	public void invalidateWhileLoading() throws Exception
+	{
+		DbQueryCache cache = new DbQueryCache(8);
+		DbSQLQuery sqlQuery = new DbSQLQuery("SELECT * FROM DUMMY");
+		sqlQuery.setCacheExpiry(60000L);
+
+		assertEquals(1, (int) cache.get(sqlQuery, "A", q -> {
+			cache.invalidate("dummy");
+			return 1;
+		}));
+		assertEquals(0, cache.size());
+
+		assertEquals(2, (int) cache.get(sqlQuery, "A", q -> 2));
+		assertEquals(2, (int) cache.get(sqlQuery, "A", q -> 3));
+		assertEquals(1, cache.size());
+
+		cache.get(sqlQuery, "B", q -> {
+			cache.invalidateAll();
+			return 4;
+		});
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void evict() throws Exception
+	{
+		DbQueryCache cache = new DbQueryCache(2);
+		DbSQLQuery sqlQuery = new DbSQLQuery("SELECT * FROM DUMMY");
+		sqlQuery.setCacheExpiry(60000L);
+		DbSQLQuery shorter = new DbSQLQuery("SELECT * FROM DUMMY");
+		shorter.setCacheExpiry(1000L);
+
+		cache.get(sqlQuery, "A", q -> 1);
+		cache.get(shorter, "B", q -> 2);
+		cache.get(sqlQuery, "C", q -> 3);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+
+		// The oldest expiry is evicted, the new result is admitted
+		assertEquals(1, (int) cache.get(sqlQuery, "A", q -> 4));
+		assertEquals(3, (int) cache.get(sqlQuery, "C", q -> 5));
+		assertEquals(6, (int) cache.get(shorter, "B", q -> 6));
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.getEvictions());
+	}
+
+	@Test
+	public void tables() throws Exception
+	{
+		assertEquals(Arrays.asList("A", "S.B", "C"), Arrays.asList(DbQueryCache.tables(
+			"select * from a join s.b on a.id = b.id where exists (select 1 from \"c\")").toArray()));
+	}
+}
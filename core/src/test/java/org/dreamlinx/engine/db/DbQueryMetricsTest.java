@@ -0,0 +1,212 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.stream.LongStream;
+
+import javax.management.ObjectName;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.dreamlinx.engine.db.DbQueryMetrics.Stats;
+import org.dreamlinx.engine.error.DatabaseException;
+import org.dreamlinx.engine.sys.struct.AutoCloseableIterator;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class DbQueryMetricsTest extends UnitTestSupport {
+
+	static final String SELECT_SLOW = "SELECT ID, NAME FROM DUMMY WHERE SLOW = ?";
+	static final String SELECT_BIG = "SELECT ID, NAME FROM DUMMY WHERE BIG = 1";
+	static final int BIG = 5000;
+
+	private MemoryDb db;
+	private DummyDao dao;
+
+	@Before
+	public void before() throws Exception
+	{
+		db = new MemoryDb();
+		db.table(DbDaoTest.SELECT_ALL, "ID", "NAME").rows(
+			new Object[] { 1L, "Terminal" },
+			new Object[] { 2L, "Terminal" },
+			new Object[] { 3L, "Terminal" });
+		db.table(SELECT_SLOW, "ID", "NAME").rows(params -> new Iterator<Object[]>() {
+
+			int n;
+
+			@Override
+			public boolean hasNext()
+			{
+				return n < 2;
+			}
+
+			@Override
+			public Object[] next()
+			{
+				try {
+					Thread.sleep(5);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return new Object[] { (long) ++n, "Slow" };
+			}
+		});
+
+		db.table(SELECT_BIG, "ID", "NAME").types(Types.BIGINT, Types.VARCHAR).rows(params -> LongStream
+			.rangeClosed(1, BIG).mapToObj(i -> new Object[] { i, "N" + i }).iterator());
+
+		DbDao.init(new MemoryDbConnectionPool(db, new DbProperties()));
+		DbDao.getQueryMetrics().reset();
+		dao = new DummyDao();
+	}
+
+	@Test
+	public void metrics() throws Exception
+	{
+		DbSQLQuery named = new DbSQLQuery(DbDaoTest.SELECT_ALL);
+		named.setName("dummies");
+		for (int i = 0; i < 4; i++)
+			assertEquals(3, dao.queryForModelList(named).size());
+
+		dao.queryForModelMap(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+		try {
+			dao.queryForModelList(new DbSQLQuery("SELECT NOTHING"));
+			failWhenExceptionExpected();
+		}
+		catch (DatabaseException e) {
+			// No table
+		}
+
+		DbQueryMetrics metrics = DbDao.getQueryMetrics();
+		Stats stats = metrics.getStats("dummies");
+		assertEquals(4, stats.getExecTime().getCount());
+		assertEquals(12, stats.getRows().getSum());
+		assertEquals(4, stats.getMapTime().getCount());
+		assertEquals(0, stats.getErrorCount());
+
+		String hashed = DbQueryMetrics.identity(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+		assertTrue(hashed.startsWith("SQL#"));
+		assertEquals(1, metrics.getStats(hashed).getExecTime().getCount());
+		assertEquals(3, metrics.getStats(hashed).getRows().getMax());
+
+		String missing = DbQueryMetrics.identity(new DbSQLQuery("SELECT NOTHING"));
+		assertEquals(1, metrics.getStats(missing).getErrorCount());
+
+		assertEquals(3, metrics.getQueryCount());
+		assertEquals(Long.valueOf(4), metrics.getExecutionsByQuery().get("dummies"));
+		assertEquals(Arrays.asList("SQL#", "SQL#", "dummies"), Arrays.asList(
+			metrics.getRowsMeanByQuery().keySet().stream().map(k -> k.replaceAll("#.*", "#")).toArray()));
+
+		ObjectName name = new ObjectName("org.dreamlinx.engine.db:type=DbQueryMetrics");
+		assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		assertEquals(3, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "QueryCount"));
+	}
+
+	@Test
+	public void slow() throws Exception
+	{
+		DbQueryMetrics metrics = DbDao.getQueryMetrics();
+		metrics.setSlowQueryThreshold(5);
+
+		DbSQLQuery slow = new DbSQLQuery(SELECT_SLOW);
+		slow.setName("slow");
+		slow.addParameter("SLOW", true);
+		dao.queryForModelList(slow);
+		dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+
+		// The lazy queries are recorded on close
+		try (AutoCloseableIterator<Dummy> it = dao.queryForModelIterator(slow)) {
+			while (it.hasNext())
+				it.next();
+		}
+
+		Stats stats = metrics.getStats("slow");
+		assertEquals(2, stats.getExecTime().getCount());
+		assertEquals(4, stats.getRows().getSum());
+		assertTrue(stats.getExecTime().getSum() + stats.getFetchTime().getSum() >= 20000000);
+		assertEquals(2, metrics.getSlowQueryCount());
+	}
+
+	@Test
+	public void adaptive() throws Exception
+	{
+		DbSQLQuery big = new DbSQLQuery(SELECT_BIG);
+		big.setName("big");
+		assertEquals(BIG, dao.queryForModelList(big).size());
+		assertEquals(100, db.maxBufferedRows.get());
+
+		Stats stats = DbDao.getQueryMetrics().getStats("big");
+		assertEquals(BIG, stats.getRowsEstimate(), 0);
+		assertEquals(8 + 10, stats.getWidthEstimate(), 0);
+
+		// The global fetch size is a hint
+		db.maxBufferedRows.set(0);
+		assertEquals(BIG, dao.queryForModelMap(big).size());
+		assertEquals(100, db.maxBufferedRows.get());
+
+		// Without it, the history chooses the fetch size
+		DbProperties prop = new DbProperties();
+		prop.setFetchSize(null);
+		DbDao.init(new MemoryDbConnectionPool(db, prop));
+
+		DbSQLQuery small = new DbSQLQuery(DbDaoTest.SELECT_ALL);
+		small.setName("grown");
+		dao.queryForModelList(small);
+		DbSQLQuery grown = new DbSQLQuery(SELECT_BIG);
+		grown.setName("grown");
+		db.maxBufferedRows.set(0);
+		assertEquals(BIG, dao.queryForModelList(grown).size());
+		assertEquals(16, db.maxBufferedRows.get());
+
+		// The hints take priority
+		db.maxBufferedRows.set(0);
+		big.setFetchSize(50);
+		assertEquals(BIG, dao.queryForModelList(big, 10).size());
+		assertEquals(50, db.maxBufferedRows.get());
+
+		DbDao.getQueryMetrics().setAdaptive(false);
+		db.maxBufferedRows.set(0);
+		big.setFetchSize(null);
+		dao.queryForModelList(big);
+		assertEquals(BIG, db.maxBufferedRows.get());
+
+		// The default of the driver is kept
+		prop.setFetchSize(0);
+		DbDao.init(new MemoryDbConnectionPool(db, prop));
+		db.maxBufferedRows.set(0);
+		dao.queryForModelList(grown);
+		assertEquals(BIG, db.maxBufferedRows.get());
+
+		// The estimates decay toward the recent results
+		small.setName("big");
+		dao.queryForModelList(small);
+		assertEquals(BIG + 0.25 * (3 - BIG), stats.getRowsEstimate(), 0.001);
+	}
+}
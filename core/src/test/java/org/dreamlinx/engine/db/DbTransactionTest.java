@@ -0,0 +1,174 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class DbTransactionTest extends UnitTestSupport {
+
+	static final String UPDATE = "UPDATE DUMMY SET NAME = ?";
+
+	private MemoryDb db;
+	private DummyDao dao;
+
+	@Before
+	public void before() throws Exception
+	{
+		db = new MemoryDb();
+		db.table(DbDaoTest.SELECT_ALL, "ID", "NAME").rows(
+			new Object[] { 1L, "Terminal" });
+		db.table(UPDATE).update(params -> 1);
+
+		DbDao.init(new MemoryDbConnectionPool(db));
+		dao = new DummyDao();
+	}
+
+	@After
+	public void after() throws Exception
+	{
+		assertNull(DbTransaction.current());
+	}
+
+	@Test
+	public void commit() throws Exception
+	{
+		try (DbTransaction tx = DbTransaction.begin()) {
+			for (int i = 0; i < 30; i++)
+				dao.execute(update());
+
+			assertEquals(1, dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL)).size());
+			assertEquals(0, db.commits.get());
+			tx.commit();
+		}
+
+		assertEquals(1, db.connections.get());
+		assertEquals(1, db.commits.get());
+		assertEquals(0, db.rollbacks.get());
+		assertEquals(0, db.openConnections.get());
+	}
+
+	@Test
+	public void async() throws Exception
+	{
+		try (DbTransaction tx = DbTransaction.begin()) {
+			dao.execute(update());
+			assertEquals(1, dao.queryForModelListAsync(new DbSQLQuery(DbDaoTest.SELECT_ALL), null).join().size());
+			tx.rollback();
+		}
+
+		// On the connection of the transaction
+		assertEquals(1, db.connections.get());
+		assertEquals(0, db.commits.get());
+		assertEquals(1, db.rollbacks.get());
+		assertEquals(0, DbDao.getExecutor().getSubmittedCount());
+	}
+
+	@Test
+	public void rollback() throws Exception
+	{
+		try (DbTransaction tx = DbTransaction.begin()) {
+			dao.execute(update());
+			assertTrue(tx.isActive());
+		}
+
+		assertEquals(0, db.commits.get());
+		assertEquals(1, db.rollbacks.get());
+		assertEquals(0, db.openConnections.get());
+	}
+
+	@Test
+	public void joined() throws Exception
+	{
+		try (DbTransaction tx = DbTransaction.begin()) {
+			try (DbTransaction inner = DbTransaction.begin()) {
+				assertSame(tx, inner);
+				dao.execute(update());
+				inner.rollback();
+			}
+
+			assertTrue(tx.isActive());
+			tx.commit();
+		}
+
+		assertEquals(0, db.commits.get());
+		assertEquals(1, db.rollbacks.get());
+	}
+
+	@Test
+	public void joinedNotCommitted() throws Exception
+	{
+		try (DbTransaction tx = DbTransaction.begin()) {
+			try (DbTransaction inner = DbTransaction.begin()) {
+				dao.execute(update());
+				assertFalse(inner.isRollbackOnly());
+			}
+
+			assertTrue(tx.isRollbackOnly());
+			tx.commit();
+		}
+
+		assertEquals(0, db.commits.get());
+		assertEquals(1, db.rollbacks.get());
+
+		// Committed scopes
+		try (DbTransaction tx = DbTransaction.begin()) {
+			try (DbTransaction inner = DbTransaction.begin()) {
+				dao.execute(update());
+				inner.commit();
+			}
+
+			assertFalse(tx.isRollbackOnly());
+			tx.commit();
+		}
+
+		assertEquals(1, db.commits.get());
+	}
+
+	@Test
+	public void explicit() throws Exception
+	{
+		try (DbTransaction tx = DbTransaction.begin()) {
+			CompletableFuture<Integer> future = dao.async(() -> tx.call(() -> dao.execute(update())));
+			assertEquals(Integer.valueOf(1), future.get());
+			tx.commit();
+		}
+
+		assertEquals(1, db.connections.get());
+		assertEquals(1, db.commits.get());
+	}
+
+	private static DbSQLQuery update()
+	{
+		DbSQLQuery update = new DbSQLQuery(UPDATE);
+		update.addParameter("NAME", "x");
+
+		return update;
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import org.dreamlinx.engine.model.Model;
+
+/**
+ * Model of the DUMMY table of the tests.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+@SuppressWarnings("serial")
+class Dummy extends Model {
+
+	@DbColumnName("ID")
+	private Long id;
+
+	@DbColumnName("NAME")
+	private String name;
+
+	@DbColumnName("AMOUNT")
+	private Double amount;
+
+	@DbColumnName("HITS")
+	private int hits = - 1;
+
+	@DbColumnSkip
+	boolean aftermath;
+
+	@Override
+	protected Object[] defineKey()
+	{
+		return new Object[] {
+			id
+		};
+	}
+
+	@Override
+	public void aftermath() throws Exception
+	{
+		aftermath = true;
+	}
+
+	public Long getId()
+	{
+		return id;
+	}
+
+	public void setId(Long id)
+	{
+		this.id = id;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+
+	public int getHits()
+	{
+		return hits;
+	}
+
+	public void setHits(int hits)
+	{
+		this.hits = hits;
+	}
+
+	public Double getAmount()
+	{
+		return amount;
+	}
+
+	public void setAmount(Double amount)
+	{
+		this.amount = amount;
+	}
+}
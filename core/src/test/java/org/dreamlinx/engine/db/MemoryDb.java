@@ -0,0 +1,508 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Array;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * In-memory stand-in of a JDBC driver for unit tests. The SQL is never
+ * parsed: each statement text is bound to a table, whose rows are supplied
+ * by the test as a function of the bound parameters. Like the real drivers,
+ * the result set is buffered entirely unless a fetch size is set on a
+ * connection without auto-commit.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class MemoryDb {
+
+	private final Map<String, Table> tables = new ConcurrentHashMap<>();
+
+	final AtomicInteger connections = new AtomicInteger();
+	final AtomicInteger openConnections = new AtomicInteger();
+	final AtomicInteger statements = new AtomicInteger();
+	final AtomicInteger executions = new AtomicInteger();
+	final AtomicInteger commits = new AtomicInteger();
+	final AtomicInteger rollbacks = new AtomicInteger();
+	final AtomicInteger uncommitted = new AtomicInteger();
+	final AtomicInteger maxBufferedRows = new AtomicInteger();
+
+	/**
+	 * Bind the statement text to a new table with the columns.
+	 *
+	 * @param String sql
+	 * @param String... columns
+	 * @return Table
+	 */
+	public Table table(String sql, String... columns)
+	{
+		Table table = new Table(columns);
+		tables.put(sql, table);
+
+		return table;
+	}
+
+	public Connection connect()
+	{
+		connections.incrementAndGet();
+		openConnections.incrementAndGet();
+
+		return proxy(Connection.class, new ConnectionHandler());
+	}
+
+	public static class Table {
+
+		final String[] columns;
+		final int[] types;
+		Function<List<Object>, Iterator<Object[]>> rows = params -> new ArrayList<Object[]>().iterator();
+		Function<List<Object>, Integer> update = params -> 0;
+
+		Table(String[] columns) {
+
+			this.columns = columns;
+			this.types = new int[columns.length];
+			Arrays.fill(types, Types.OTHER);
+		}
+
+		public Table types(int... types)
+		{
+			System.arraycopy(types, 0, this.types, 0, types.length);
+			return this;
+		}
+
+		public Table rows(Object[]... rows)
+		{
+			List<Object[]> list = Arrays.asList(rows);
+			this.rows = params -> list.iterator();
+			return this;
+		}
+
+		public Table rows(Function<List<Object>, Iterator<Object[]>> rows)
+		{
+			this.rows = rows;
+			return this;
+		}
+
+		public Table update(Function<List<Object>, Integer> update)
+		{
+			this.update = update;
+			return this;
+		}
+	}
+
+	//
+	// Internal
+	//
+
+	@SuppressWarnings("unchecked")
+	static <T> T proxy(Class<T> type, InvocationHandler handler)
+	{
+		return (T) Proxy.newProxyInstance(MemoryDb.class.getClassLoader(), new Class<?>[] {
+			type
+		}, handler);
+	}
+
+	static Object standard(Object proxy, Method method, Object[] args)
+	{
+		switch (method.getName()) {
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return proxy.getClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+			case "unwrap":
+				return proxy;
+			case "isWrapperFor":
+				return ((Class<?>) args[0]).isInstance(proxy);
+			default:
+				throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+	class ConnectionHandler implements InvocationHandler {
+
+		boolean autoCommit = true;
+		boolean closed = false;
+		boolean readOnly = false;
+		int isolation = Connection.TRANSACTION_READ_COMMITTED;
+		int updates = 0;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			switch (method.getName()) {
+				case "prepareStatement":
+				case "prepareCall":
+				case "createStatement":
+					if (closed)
+						throw new SQLException("Connection is closed.");
+
+					statements.incrementAndGet();
+					return MemoryDb.proxy(CallableStatement.class,
+						new StatementHandler(this, (Connection) proxy, args != null ? (String) args[0] : null));
+				case "setAutoCommit":
+					autoCommit = (Boolean) args[0];
+					return null;
+				case "getAutoCommit":
+					return autoCommit;
+				case "commit":
+					commits.incrementAndGet();
+					uncommitted.addAndGet(- updates);
+					updates = 0;
+					return null;
+				case "rollback":
+					if (closed)
+						throw new SQLException("Connection is closed.");
+
+					rollbacks.incrementAndGet();
+					uncommitted.addAndGet(- updates);
+					updates = 0;
+					return null;
+				case "close":
+					if (! closed)
+						openConnections.decrementAndGet();
+
+					closed = true;
+					return null;
+				case "isClosed":
+					return closed;
+				case "isReadOnly":
+					return readOnly;
+				case "setReadOnly":
+					readOnly = (Boolean) args[0];
+					return null;
+				case "getTransactionIsolation":
+					return isolation;
+				case "setTransactionIsolation":
+					isolation = (Integer) args[0];
+					return null;
+				case "isValid":
+					return ! closed;
+				case "clearWarnings":
+					return null;
+				case "createArrayOf":
+					Object[] elements = (Object[]) args[1];
+					return MemoryDb.proxy(Array.class, (p, m, a) -> {
+						if (m.getName().equals("getArray"))
+							return elements;
+						if (m.getName().equals("free"))
+							return null;
+
+						return standard(p, m, a);
+					});
+				default:
+					return standard(proxy, method, args);
+			}
+		}
+	}
+
+	class StatementHandler implements InvocationHandler {
+
+		final ConnectionHandler conn;
+		final Connection connProxy;
+		final String sql;
+		final Map<Integer, Object> params = new TreeMap<>();
+		final List<Integer> outs = new LinkedList<>();
+
+		int fetchSize = 0;
+		int maxRows = 0;
+		boolean closed = false;
+		ResultSet resultSet;
+		Integer updated;
+
+		StatementHandler(ConnectionHandler conn, Connection connProxy, String sql) {
+
+			this.conn = conn;
+			this.connProxy = connProxy;
+			this.sql = sql;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			String name = method.getName();
+			if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+
+				params.put((Integer) args[0], name.equals("setNull") ? null : args[1]);
+				return null;
+			}
+
+			switch (name) {
+				case "setFetchSize":
+					fetchSize = (Integer) args[0];
+					return null;
+				case "getFetchSize":
+					return fetchSize;
+				case "setMaxRows":
+					maxRows = (Integer) args[0];
+					return null;
+				case "getMaxRows":
+					return maxRows;
+				case "registerOutParameter":
+					outs.add((Integer) args[0]);
+					return null;
+				case "clearParameters":
+					params.clear();
+					return null;
+				case "executeQuery":
+					return (resultSet = query(proxy));
+				case "execute":
+					if (args != null)
+						return false; // plain statement, as SET SESSION
+
+					if (! outs.isEmpty())
+						resultSet = query(proxy);
+					else
+						executions.incrementAndGet();
+
+					return true;
+				case "executeUpdate":
+					executions.incrementAndGet();
+					if (! conn.autoCommit) {
+						conn.updates++;
+						uncommitted.incrementAndGet();
+					}
+
+					return (updated = table().update.apply(inputs()));
+				case "getObject":
+					return (resultSet != null) ? resultSet : updated;
+				case "getResultSet":
+					return resultSet;
+				case "getConnection":
+					return connProxy;
+				case "close":
+					closed = true;
+					return null;
+				case "isClosed":
+					return closed;
+				case "cancel":
+					return null;
+				default:
+					return standard(proxy, method, args);
+			}
+		}
+
+		Table table() throws SQLException
+		{
+			Table table = tables.get(sql);
+			if (table == null)
+				throw new SQLException("No table bound for: " + sql);
+
+			return table;
+		}
+
+		List<Object> inputs()
+		{
+			List<Object> inputs = new ArrayList<>();
+			for (Map.Entry<Integer, Object> param : params.entrySet())
+				if (! outs.contains(param.getKey()))
+					inputs.add(param.getValue());
+
+			return inputs;
+		}
+
+		ResultSet query(Object proxy) throws SQLException
+		{
+			if (closed)
+				throw new SQLException("Statement is closed.");
+
+			executions.incrementAndGet();
+			Table table = table();
+
+			return MemoryDb.proxy(ResultSet.class,
+				new ResultSetHandler(this, proxy, table, table.rows.apply(inputs())));
+		}
+	}
+
+	class ResultSetHandler implements InvocationHandler {
+
+		final StatementHandler stmt;
+		final Object stmtProxy;
+		final Table table;
+		final Iterator<Object[]> source;
+		final LinkedList<Object[]> buffer = new LinkedList<>();
+
+		int fetchSize;
+		int maxRows;
+		int read;
+		Object[] row;
+		boolean wasNull;
+		boolean closed;
+
+		ResultSetHandler(StatementHandler stmt, Object stmtProxy, Table table, Iterator<Object[]> source) {
+
+			this.stmt = stmt;
+			this.stmtProxy = stmtProxy;
+			this.table = table;
+			this.source = source;
+			this.fetchSize = stmt.fetchSize;
+			this.maxRows = stmt.maxRows;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			String name = method.getName();
+			if (name.startsWith("get") && args != null && args.length == 1
+				&& (args[0] instanceof Integer || args[0] instanceof String)) {
+
+				if (row == null)
+					throw new SQLException("No current row.");
+
+				int index = (args[0] instanceof String) ? indexOf((String) args[0]) : (Integer) args[0];
+				Object value = row[index - 1];
+				wasNull = (value == null);
+
+				return convert(name, value);
+			}
+
+			switch (name) {
+				case "next":
+					if (closed)
+						throw new SQLException("ResultSet is closed.");
+
+					if (maxRows > 0 && read >= maxRows) {
+						row = null;
+						return false;
+					}
+
+					fill();
+					row = buffer.poll();
+					if (row != null)
+						read++;
+
+					return (row != null);
+				case "wasNull":
+					return wasNull;
+				case "setFetchSize":
+					fetchSize = (Integer) args[0];
+					return null;
+				case "getFetchSize":
+					return fetchSize;
+				case "getMetaData":
+					return MemoryDb.proxy(ResultSetMetaData.class, this::metaData);
+				case "getStatement":
+					return stmtProxy;
+				case "close":
+					closed = true;
+					return null;
+				case "isClosed":
+					return closed;
+				default:
+					return standard(proxy, method, args);
+			}
+		}
+
+		void fill()
+		{
+			if (! buffer.isEmpty())
+				return;
+
+			boolean paging = (fetchSize > 0 && ! stmt.conn.autoCommit);
+			while (source.hasNext() && (! paging || buffer.size() < fetchSize))
+				buffer.add(source.next());
+
+			int buffered = buffer.size();
+			maxBufferedRows.accumulateAndGet(buffered, Math::max);
+		}
+
+		int indexOf(String column)
+		{
+			for (int i = 0; i < table.columns.length; i++)
+				if (table.columns[i].equalsIgnoreCase(column))
+					return i + 1;
+
+			throw new IllegalArgumentException(column);
+		}
+
+		Object metaData(Object proxy, Method method, Object[] args)
+		{
+			switch (method.getName()) {
+				case "getColumnCount":
+					return table.columns.length;
+				case "getColumnName":
+				case "getColumnLabel":
+					return table.columns[(Integer) args[0] - 1];
+				case "getColumnType":
+					return table.types[(Integer) args[0] - 1];
+				case "getColumnDisplaySize":
+				case "getPrecision":
+					return 10;
+				case "getScale":
+					return 0;
+				default:
+					return standard(proxy, method, args);
+			}
+		}
+
+		Object convert(String getter, Object value)
+		{
+			switch (getter) {
+				case "getString":
+					return (value != null) ? value.toString() : null;
+				case "getInt":
+					return (value != null) ? ((Number) value).intValue() : 0;
+				case "getLong":
+					return (value != null) ? ((Number) value).longValue() : 0L;
+				case "getShort":
+					return (value != null) ? ((Number) value).shortValue() : (short) 0;
+				case "getDouble":
+					return (value != null) ? ((Number) value).doubleValue() : 0D;
+				case "getFloat":
+					return (value != null) ? ((Number) value).floatValue() : 0F;
+				case "getBoolean":
+					if (value instanceof Number)
+						return ((Number) value).intValue() != 0;
+
+					return (value != null) ? (Boolean) value : false;
+				case "getBigDecimal":
+					return (value != null) ? new BigDecimal(value.toString()) : null;
+				case "getTimestamp":
+					return (value != null) ? new Timestamp(((Date) value).getTime()) : null;
+				default:
+					return value;
+			}
+		}
+	}
+}
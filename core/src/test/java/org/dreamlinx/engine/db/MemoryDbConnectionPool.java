@@ -0,0 +1,125 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.lang.reflect.InvocationTargetException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import org.dreamlinx.engine.error.DatabaseException;
+
+/**
+ * Connection pool over the in-memory stand-in of JDBC driver. When pooling,
+ * the physical connections are kept idle and lent behind logical ones, like
+ * the pools of the drivers.
+ *
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class MemoryDbConnectionPool extends DbConnectionPool {
+
+	final MemoryDb db;
+	final boolean pooling;
+	final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+	public MemoryDbConnectionPool(MemoryDb db) {
+
+		this(db, new DbProperties());
+	}
+
+	public MemoryDbConnectionPool(MemoryDb db, DbProperties properties) {
+
+		this(db, properties, false);
+	}
+
+	public MemoryDbConnectionPool(MemoryDb db, DbProperties properties, boolean pooling) {
+
+		super(properties);
+
+		this.db = db;
+		this.pooling = pooling;
+	}
+
+	@Override
+	public void init() throws DatabaseException
+	{}
+
+	@Override
+	public void shutdown() throws DatabaseException
+	{}
+
+	@Override
+	protected Connection physical(Connection connection) throws SQLException
+	{
+		return pooling ? connection.unwrap(Connection.class) : null;
+	}
+
+	@Override
+	protected Connection acquire() throws DatabaseException
+	{
+		try {
+			Connection conn = pooling ? idle.poll() : null;
+			if (conn == null)
+				conn = db.connect();
+
+			conn.setAutoCommit(false);
+			if (! pooling)
+				return conn;
+
+			Connection physical = conn;
+			boolean[] closed = new boolean[1];
+
+			return MemoryDb.proxy(Connection.class, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "close":
+						if (! closed[0])
+							idle.push(physical);
+
+						closed[0] = true;
+						return null;
+					case "isClosed":
+						return closed[0];
+					case "unwrap":
+						return physical;
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					default:
+						if (closed[0])
+							throw new SQLException("Connection is closed.");
+
+						try {
+							return method.invoke(physical, args);
+						}
+						catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+				}
+			});
+		}
+		catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.dreamlinx.engine.model.Key;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class ModelCacheTest extends UnitTestSupport {
+
+	static final String SELECT_ONE = "SELECT * FROM DUMMY WHERE ID = ?";
+
+	private MemoryDb db;
+	private CachedDummyDao dao;
+
+	@Before
+	public void before() throws Exception
+	{
+		db = new MemoryDb();
+		db.table(SELECT_ONE, "ID", "NAME").rows(params -> Collections.singletonList(
+			new Object[] { params.get(0), "N" + params.get(0) }).iterator());
+
+		DbDao.init(new MemoryDbConnectionPool(db));
+		dao = new CachedDummyDao();
+	}
+
+	@Test
+	public void readThrough() throws Exception
+	{
+		ModelCache<Dummy> cache = new ModelCache<>(100);
+
+		assertEquals("N7", dao.get(cache, 7L).getName());
+		assertEquals("N7", dao.get(cache, 7L).getName());
+		assertEquals(1, db.executions.get());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getLoadCount());
+
+		cache.invalidate(new Key(7L));
+		assertNull(cache.getIfPresent(new Key(7L)));
+		assertEquals("N7", dao.get(cache, 7L).getName());
+		assertEquals(2, db.executions.get());
+	}
+
+	@Test
+	public void bounded() throws Exception
+	{
+		ModelCache<Dummy> cache = new ModelCache<>(100);
+		for (long i = 0; i < 1000; i++)
+			cache.put(dummy(i));
+
+		cache.cleanUp();
+		assertEquals(100, cache.size());
+		assertEquals(100, cache.weight());
+		assertEquals(900, cache.getEvictionCount());
+
+		ModelCache<Dummy> weighted = new ModelCache<>(100, m -> 10);
+		for (long i = 0; i < 100; i++)
+			weighted.put(dummy(i));
+
+		assertEquals(10, weighted.size());
+	}
+
+	@Test
+	public void admission() throws Exception
+	{
+		ModelCache<Dummy> cache = new ModelCache<>(100);
+		for (long i = 0; i < 50; i++)
+			cache.put(dummy(i));
+
+		for (int r = 0; r < 10; r++)
+			for (long i = 0; i < 50; i++)
+				cache.getIfPresent(new Key(i));
+
+		// A scan of one-hit keys does not flush the frequent ones
+		for (long i = 1000; i < 11000; i++)
+			cache.put(dummy(i));
+
+		cache.cleanUp();
+		int survived = 0;
+		for (long i = 0; i < 50; i++)
+			if (cache.getIfPresent(new Key(i)) != null)
+				survived++;
+
+		assertTrue(survived >= 45);
+		assertEquals(100, cache.size());
+	}
+
+	@Test
+	public void expiry() throws Exception
+	{
+		AtomicLong now = new AtomicLong();
+		ModelCache<Dummy> cache = new ModelCache<>(100);
+		cache.setTicker(now::get);
+		cache.setExpireAfterWrite(10, TimeUnit.SECONDS);
+
+		cache.put(dummy(1L));
+		now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+		assertNotNull(cache.getIfPresent(new Key(1L)));
+
+		now.addAndGet(TimeUnit.SECONDS.toNanos(6));
+		assertNull(cache.getIfPresent(new Key(1L)));
+		assertEquals(1, cache.getExpirationCount());
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.weight());
+	}
+
+	@Test
+	public void refresh() throws Exception
+	{
+		AtomicLong now = new AtomicLong();
+		AtomicInteger loads = new AtomicInteger();
+		ModelCache<Dummy> cache = new ModelCache<>(100);
+		cache.setTicker(now::get);
+		cache.setRefreshAfterWrite(1, TimeUnit.SECONDS);
+		cache.setLoader(key -> {
+			Dummy d = dummy(1L);
+			d.setName("R" + loads.incrementAndGet());
+			return d;
+		});
+
+		assertEquals("R1", cache.get(new Key(1L)).getName());
+
+		now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+		assertEquals("R1", cache.get(new Key(1L)).getName());
+
+		for (int i = 0; i < 100 && cache.getRefreshCount() == 0; i++)
+			Thread.sleep(10);
+
+		assertEquals("R2", cache.getIfPresent(new Key(1L)).getName());
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void sketch() throws Exception
+	{
+		ModelCache.FrequencySketch sketch = new ModelCache.FrequencySketch(16);
+		int hash = new Key(42L).hashCode();
+
+		for (int i = 0; i < 5; i++)
+			sketch.increment(hash);
+
+		assertTrue(sketch.frequency(hash) >= 5);
+		for (int i = 0; i < 100; i++)
+			sketch.increment(hash);
+
+		// Saturated at 4 bits and then halved by the aging
+		assertTrue(sketch.frequency(hash) <= 15);
+	}
+
+	private static Dummy dummy(long id)
+	{
+		Dummy d = new Dummy();
+		d.setId(id);
+		d.setName("N" + id);
+
+		return d;
+	}
+}
+
+class CachedDummyDao extends DbDao<Dummy> {
+
+	Dummy get(ModelCache<Dummy> cache, Long id) throws Exception
+	{
+		DbSQLQuery query = new DbSQLQuery(ModelCacheTest.SELECT_ONE);
+		query.addParameter("ID", id);
+
+		return queryForModel(cache, new Key(id), query);
+	}
+}
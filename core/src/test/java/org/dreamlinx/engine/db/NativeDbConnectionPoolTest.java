@@ -0,0 +1,274 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.dreamlinx.engine.error.DatabaseException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class NativeDbConnectionPoolTest extends UnitTestSupport {
+
+	private MemoryDb db;
+	private DbProperties props;
+
+	@Before
+	public void before() throws Exception
+	{
+		db = new MemoryDb();
+		db.table(DbDaoTest.SELECT_ALL, "ID", "NAME").rows(
+			new Object[] { 1L, "Terminal" });
+
+		props = new DbProperties();
+		props.setPoolSize((short) 4);
+		props.setPoolMinIdle((short) 2);
+		props.setBorrowTimeout(100);
+	}
+
+	@Test
+	public void pooling() throws Exception
+	{
+		NativeDbConnectionPool pool = new NativeDbConnectionPool(props, db::connect);
+		pool.init();
+		assertEquals(2, db.connections.get());
+		assertEquals(2, pool.getIdleCount());
+
+		Connection conn = pool.open();
+		Connection physical = conn.unwrap(Connection.class);
+		assertEquals(1, pool.getActiveCount());
+		conn.close();
+		assertTrue(conn.isClosed());
+
+		// Affinity to the last released connection
+		conn = pool.open();
+		assertSame(physical, conn.unwrap(Connection.class));
+		conn.close();
+
+		// The statements are cached on the physical connection
+		DbDao.init(pool);
+		DummyDao dao = new DummyDao();
+		for (int i = 0; i < 10; i++)
+			dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+
+		assertEquals(2, db.connections.get());
+		assertEquals(9, pool.getStatementCache().getHits());
+
+		pool.shutdown();
+		assertEquals(0, db.openConnections.get());
+	}
+
+	@Test
+	public void timeout() throws Exception
+	{
+		NativeDbConnectionPool pool = new NativeDbConnectionPool(props, db::connect);
+		pool.init();
+
+		List<Connection> held = new ArrayList<>();
+		for (int i = 0; i < 4; i++)
+			held.add(pool.open());
+
+		assertEquals(4, db.connections.get());
+		try {
+			pool.open();
+			failWhenExceptionExpected();
+		}
+		catch (DatabaseException e) {
+			// No connection available
+		}
+
+		held.get(0).close();
+		pool.open().close();
+		assertEquals(4, db.connections.get());
+	}
+
+	@Test
+	public void eviction() throws Exception
+	{
+		props.setMaxLifetime(1);
+		NativeDbConnectionPool pool = new NativeDbConnectionPool(props, db::connect);
+		pool.init();
+
+		Thread.sleep(5);
+		pool.evict();
+		assertEquals(0, pool.getTotalCount());
+		assertEquals(0, db.openConnections.get());
+
+		// Retired at the borrow
+		Connection conn = pool.open();
+		conn.close();
+		Thread.sleep(5);
+		pool.open().close();
+		assertEquals(4, db.connections.get());
+		assertEquals(1, db.openConnections.get());
+	}
+
+	@Test
+	public void evictor() throws Exception
+	{
+		props.setMaxLifetime(1);
+		props.setEvictionInterval(5);
+		NativeDbConnectionPool pool = new NativeDbConnectionPool(props, db::connect);
+		pool.init();
+
+		for (int i = 0; i < 100 && pool.getTotalCount() > 0; i++)
+			Thread.sleep(5);
+
+		assertEquals(0, pool.getTotalCount());
+		assertEquals(0, db.openConnections.get());
+		pool.shutdown();
+	}
+
+	@Test
+	public void reset() throws Exception
+	{
+		db.table("UPDATE DUMMY SET NAME = ?").update(params -> 1);
+		NativeDbConnectionPool pool = new NativeDbConnectionPool(props, db::connect);
+		pool.init();
+
+		Connection conn = pool.open();
+		Connection physical = conn.unwrap(Connection.class);
+		conn.setReadOnly(true);
+		conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+		try (PreparedStatement stmt = conn.prepareStatement("UPDATE DUMMY SET NAME = ?")) {
+			stmt.setString(1, "x");
+			stmt.executeUpdate();
+		}
+		assertEquals(1, db.uncommitted.get());
+		conn.close();
+
+		// The next borrower does not see the uncommitted work
+		conn = pool.open();
+		assertSame(physical, conn.unwrap(Connection.class));
+		assertEquals(0, db.uncommitted.get());
+		assertEquals(1, db.rollbacks.get());
+		assertFalse(conn.getAutoCommit());
+		assertFalse(conn.isReadOnly());
+		assertEquals(Connection.TRANSACTION_READ_COMMITTED, conn.getTransactionIsolation());
+		conn.close();
+
+		// Not reset, so retired
+		conn = pool.open();
+		conn.unwrap(Connection.class).close();
+		conn.close();
+		assertEquals(1, pool.getTotalCount());
+		pool.shutdown();
+	}
+
+	@Test
+	public void warmup() throws Exception
+	{
+		AtomicInteger connects = new AtomicInteger();
+		NativeDbConnectionPool pool = new NativeDbConnectionPool(props, () -> {
+			if (connects.incrementAndGet() > 1)
+				throw new SQLException("Refused");
+
+			return db.connect();
+		});
+
+		try {
+			pool.init();
+			failWhenExceptionExpected();
+		}
+		catch (DatabaseException e) {}
+
+		assertEquals(1, pool.getTotalCount());
+		pool.shutdown();
+	}
+
+	@Test
+	public void validation() throws Exception
+	{
+		AtomicInteger validations = new AtomicInteger();
+		NativeDbConnectionPool pool = new NativeDbConnectionPool(props, () -> {
+			Connection physical = db.connect();
+			return MemoryDb.proxy(Connection.class, (p, m, a) -> {
+				if (m.getName().equals("isValid"))
+					validations.incrementAndGet();
+
+				return m.invoke(physical, a);
+			});
+		});
+		pool.init();
+
+		for (int i = 0; i < 100; i++)
+			pool.open().close();
+
+		assertEquals(0, validations.get());
+
+		props.setValidationInterval(0);
+		pool.init();
+		Thread.sleep(2);
+		pool.open().close();
+		assertEquals(1, validations.get());
+	}
+
+	@Test
+	public void concurrency() throws Exception
+	{
+		props.setBorrowTimeout(10000);
+		NativeDbConnectionPool pool = new NativeDbConnectionPool(props, db::connect);
+		pool.init();
+
+		long elapsed = borrow(pool, 8, 20000);
+		assertTrue(db.connections.get() <= 4);
+		assertEquals(0, pool.getActiveCount());
+		printf("NativeDbConnectionPool: %d borrows in %d ms", 8 * 20000, elapsed);
+
+		MemoryDbConnectionPool memory = new MemoryDbConnectionPool(new MemoryDb(), props, true);
+		elapsed = borrow(memory, 8, 20000);
+		printf("MemoryDbConnectionPool: %d borrows in %d ms", 8 * 20000, elapsed);
+	}
+
+	private static long borrow(DbConnectionPool pool, int threads, int borrows) throws Exception
+	{
+		AtomicInteger errors = new AtomicInteger();
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++)
+			workers.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < borrows; i++)
+						pool.open().close();
+				}
+				catch (Exception e) {
+					errors.incrementAndGet();
+				}
+			}));
+
+		long start = System.currentTimeMillis();
+		workers.forEach(Thread::start);
+		for (Thread w : workers)
+			w.join();
+
+		assertEquals(0, errors.get());
+		return System.currentTimeMillis() - start;
+	}
+}
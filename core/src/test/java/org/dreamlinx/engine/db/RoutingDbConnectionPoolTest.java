@@ -0,0 +1,145 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.dreamlinx.engine.db.RoutingDbConnectionPool.Balance;
+import org.dreamlinx.engine.db.RoutingDbConnectionPool.Route;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class RoutingDbConnectionPoolTest extends UnitTestSupport {
+
+	static final String UPDATE = "UPDATE DUMMY SET NAME = ?";
+
+	private MemoryDb primary;
+	private MemoryDb[] replicas;
+
+	@Before
+	public void before() throws Exception
+	{
+		primary = memoryDb();
+		replicas = new MemoryDb[] { memoryDb(), memoryDb() };
+	}
+
+	@Test
+	public void roundRobin() throws Exception
+	{
+		RoutingDbConnectionPool pool = routing(Balance.ROUND_ROBIN);
+		DbDao.init(pool);
+		DummyDao dao = new DummyDao();
+
+		for (int i = 0; i < 10; i++)
+			dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+		dao.execute(update());
+
+		assertEquals(1, primary.executions.get());
+		assertEquals(5, replicas[0].executions.get());
+		assertEquals(5, replicas[1].executions.get());
+		assertEquals(1, primary.commits.get());
+		assertEquals(0, pool.getActiveCount());
+
+		// Forced on the primary
+		pool.call(Route.PRIMARY, () -> dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL)));
+		assertEquals(2, primary.executions.get());
+
+		// The transactions are on the primary
+		try (DbTransaction tx = DbTransaction.begin()) {
+			dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+			tx.commit();
+		}
+		assertEquals(3, primary.executions.get());
+		assertEquals(10, replicas[0].executions.get() + replicas[1].executions.get());
+
+		// The statements are prepared again after the shutdown
+		long hits = pool.getStatementCache().getHits();
+		pool.shutdown();
+		dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+		assertEquals(hits, pool.getStatementCache().getHits());
+	}
+
+	@Test
+	public void leastLoaded() throws Exception
+	{
+		RoutingDbConnectionPool pool = routing(Balance.LEAST_LOADED);
+		DbDao.init(pool);
+
+		pool.getReplicas().get(0).open();
+		assertEquals(1, pool.getReplicas().get(0).getLoad());
+		new DummyDao().queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+
+		assertEquals(0, replicas[0].executions.get());
+		assertEquals(1, replicas[1].executions.get());
+	}
+
+	@Test
+	public void health() throws Exception
+	{
+		AtomicBoolean lagging = new AtomicBoolean(true);
+		RoutingDbConnectionPool pool = routing(Balance.ROUND_ROBIN);
+		pool.setHealthCheck(replica -> replica != pool.getReplicas().get(0) || ! lagging.get(), 0);
+		DbDao.init(pool);
+		DummyDao dao = new DummyDao();
+
+		for (int i = 0; i < 4; i++)
+			dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+
+		assertEquals(0, replicas[0].executions.get());
+		assertEquals(4, replicas[1].executions.get());
+		assertEquals(1, pool.getHealthyReplicas().size());
+
+		// No replica is healthy
+		pool.setHealthCheck(replica -> false, 0);
+		dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+		assertEquals(1, primary.executions.get());
+	}
+
+	private RoutingDbConnectionPool routing(Balance balance)
+	{
+		return new RoutingDbConnectionPool(balance, new MemoryDbConnectionPool(primary, new DbProperties(), true),
+			new MemoryDbConnectionPool(replicas[0], new DbProperties(), true),
+			new MemoryDbConnectionPool(replicas[1], new DbProperties(), true));
+	}
+
+	private static MemoryDb memoryDb()
+	{
+		MemoryDb db = new MemoryDb();
+		db.table(DbDaoTest.SELECT_ALL, "ID", "NAME").rows(
+			new Object[] { 1L, "Terminal" });
+		db.table(UPDATE).update(params -> 1);
+
+		return db;
+	}
+
+	private static DbSQLQuery update()
+	{
+		DbSQLQuery update = new DbSQLQuery(UPDATE);
+		update.addParameter("NAME", "x");
+
+		return update;
+	}
+}
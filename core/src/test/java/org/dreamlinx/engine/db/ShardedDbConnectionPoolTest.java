@@ -0,0 +1,130 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.db;
+
+import java.util.List;
+import java.util.Map;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.dreamlinx.engine.error.DatabaseException;
+import org.dreamlinx.engine.model.Key;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class ShardedDbConnectionPoolTest extends UnitTestSupport {
+
+	private MemoryDb[] dbs;
+	private ShardedDbConnectionPool pool;
+	private DummyDao dao;
+
+	@Before
+	public void before() throws Exception
+	{
+		dbs = new MemoryDb[3];
+		DbConnectionPool[] shards = new DbConnectionPool[dbs.length];
+		for (int i = 0; i < dbs.length; i++) {
+			dbs[i] = new MemoryDb();
+			dbs[i].table(DbDaoTest.SELECT_ALL, "ID", "NAME").rows(
+				new Object[] { 10L * i + 1, "Terminal" },
+				new Object[] { 10L * i + 2, "Terminal" });
+			shards[i] = new MemoryDbConnectionPool(dbs[i], new DbProperties(), true);
+		}
+
+		pool = new ShardedDbConnectionPool(shards);
+		DbDao.init(pool);
+		dao = new DummyDao();
+	}
+
+	@Test
+	public void point() throws Exception
+	{
+		Key key = new Key(42L);
+		int shard = pool.shardOf(key);
+		assertEquals(Math.floorMod(key.hashCode(), 3), shard);
+
+		List<Dummy> list = dao.onShard(key, () -> dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL)));
+		assertEquals(Long.valueOf(10L * shard + 1), list.get(0).getId());
+		for (int i = 0; i < dbs.length; i++)
+			assertEquals((i == shard) ? 1 : 0, dbs[i].executions.get());
+
+		// No shard is bound
+		try {
+			dao.queryForModelList(new DbSQLQuery(DbDaoTest.SELECT_ALL));
+			failWhenExceptionExpected();
+		}
+		catch (DatabaseException e) {
+			assertNull(pool.getCurrentShard());
+		}
+
+		// The transactions are confined to their shard
+		try {
+			pool.call(shard, () -> {
+				try (DbTransaction tx = DbTransaction.begin()) {
+					Object result = pool.call((shard + 1) % 3, () -> null);
+					tx.commit();
+					return result;
+				}
+			});
+			failWhenExceptionExpected();
+		}
+		catch (DatabaseException e) {
+			assertEquals(0, pool.getActiveCount());
+		}
+
+		try {
+			new ShardedDbConnectionPool();
+			failWhenExceptionExpected();
+		}
+		catch (IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void scatter() throws Exception
+	{
+		Map<Key, Dummy> map = dao.queryForModelMapOnShards(new DbSQLQuery(DbDaoTest.SELECT_ALL), 2);
+		assertEquals(6, map.size());
+		for (int i = 0; i < dbs.length; i++) {
+			assertTrue(map.containsKey(new Key(10L * i + 2)));
+			assertEquals(1, dbs[i].executions.get());
+		}
+
+		// The cached results of the shards are apart
+		DbSQLQuery cached = new DbSQLQuery(DbDaoTest.SELECT_ALL);
+		cached.setCacheExpiry(60000L);
+		for (int n = 0; n < 2; n++)
+			assertEquals(6, dao.queryForModelMapOnShards(cached, null).size());
+
+		for (int i = 0; i < dbs.length; i++)
+			assertEquals(2, dbs[i].executions.get());
+		assertEquals(3, DbDao.getQueryCache().getHits());
+		assertEquals(0, pool.getActiveCount());
+
+		// The statements are prepared again after the shutdown
+		long hits = pool.getStatementCache().getHits();
+		pool.shutdown();
+		dao.queryForModelMapOnShards(new DbSQLQuery(DbDaoTest.SELECT_ALL), 2);
+		assertEquals(hits, pool.getStatementCache().getHits());
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.sys.struct;
+
+import java.util.stream.IntStream;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class HistogramTest extends UnitTestSupport {
+
+	@Test
+	public void percentiles() throws Exception
+	{
+		Histogram h = new Histogram();
+		assertEquals(0, h.getPercentile(99));
+
+		for (long v = 1; v <= 1000; v++)
+			h.record(v);
+
+		assertEquals(1000, h.getCount());
+		assertEquals(1000, h.getMax());
+		assertEquals(500.5, h.getMean(), 0.001);
+		assertTrue(Math.abs(h.getPercentile(50) - 500) <= 500 / 8);
+		assertTrue(Math.abs(h.getPercentile(99) - 990) <= 990 / 8);
+		assertEquals(1000, h.getPercentile(100));
+
+		h.reset();
+		assertEquals(0, h.getCount());
+	}
+
+	@Test
+	public void buckets() throws Exception
+	{
+		for (long v : new long[] { 0, 7, 8, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE }) {
+			int b = Histogram.bucket(v);
+			assertTrue(v <= Histogram.upperBound(b));
+			assertTrue(b == 0 || v > Histogram.upperBound(b - 1));
+		}
+	}
+
+	@Test
+	public void concurrent() throws Exception
+	{
+		Histogram h = new Histogram();
+		IntStream.range(0, 100000).parallel().forEach(i -> h.record(i % 100));
+
+		assertEquals(100000, h.getCount());
+		assertEquals(99, h.getMax());
+	}
+}
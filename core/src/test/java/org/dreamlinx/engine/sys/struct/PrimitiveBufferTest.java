@@ -0,0 +1,79 @@
+/**
+ *  Copyright (C) 2015 DreamLinx <dreamlinx@dreamlinx.org>
+ *  All Rights Reserved.
+ *
+ *  This file is part of DreamLinx.
+ *
+ *  DreamLinx is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DreamLinx is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DreamLinx. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dreamlinx.engine.sys.struct;
+
+import org.dreamlinx.engine.UnitTestSupport;
+import org.junit.Test;
+
+/**
+ * @author Marco Merli <yohji@dreamlinx.org>
+ * @since 1.0
+ */
+public class PrimitiveBufferTest extends UnitTestSupport {
+
+	@Test
+	public void longs() throws Exception
+	{
+		PrimitiveBuffer.OfLong buffer = new PrimitiveBuffer.OfLong(0);
+		for (long v = 0; v < 1000; v++)
+			buffer.add(v * 3);
+
+		assertEquals(1000, buffer.size());
+		assertEquals(2997, buffer.get(999));
+		assertEquals(999 * 1000 / 2 * 3, buffer.stream().sum());
+
+		long[] array = buffer.toArray();
+		assertEquals(1000, array.length);
+		assertTrue(buffer.capacity() >= 1000);
+
+		try {
+			buffer.get(1000);
+			failWhenExceptionExpected();
+		}
+		catch (IndexOutOfBoundsException e) {}
+
+		buffer.clear();
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.toArray().length);
+	}
+
+	@Test
+	public void presized() throws Exception
+	{
+		PrimitiveBuffer.OfInt ints = new PrimitiveBuffer.OfInt(3);
+		ints.add(1);
+		ints.add(2);
+		ints.add(3);
+		int[] array = ints.toArray();
+		assertArrayEquals(new int[] { 1, 2, 3 }, array);
+
+		// The full buffer is not copied
+		ints.set(0, 7);
+		assertEquals(7, array[0]);
+		assertEquals(3, ints.capacity());
+
+		PrimitiveBuffer.OfDouble doubles = new PrimitiveBuffer.OfDouble();
+		doubles.add(0.5);
+		doubles.add(1.5);
+		assertArrayEquals(new double[] { 0.5, 1.5 }, doubles.toArray(), 0);
+		assertEquals("[0.5, 1.5]", doubles.toString());
+	}
+}
@@ -94,6 +94,9 @@ public final class OracleDbConnectionPool extends DbConnectionPool {
 			connPool.setMinPoolSize(5);
 			connPool.setMaxPoolSize(properties.getPoolSize());
 
+			if (MathFn.notZero(properties.getStatementCacheSize()))
+				connPool.setMaxStatements(properties.getStatementCacheSize());
+
 			poolManager.createConnectionPool((UniversalConnectionPoolAdapter) connPool);
 			poolManager.startConnectionPool(properties.getSourceName());
 
@@ -125,7 +128,7 @@ public final class OracleDbConnectionPool extends DbConnectionPool {
 	}
 
 	@Override
-	public final OracleConnection open() throws DatabaseException
+	protected OracleConnection acquire() throws DatabaseException
 	{
 		if (connPool == null)
 			throw new InitializationException(OracleDbConnectionPool.class);
@@ -209,7 +212,7 @@ public final class OracleDbConnectionPool extends DbConnectionPool {
 	{
 		Validate.notNull(queue, "queue cannot be null");
 
-		try (OracleConnection conn = open()) {
+		try (OracleConnection conn = (OracleConnection) open()) {
 
 			Properties globalOptions = new Properties();
 			String[] queueNameArr = new String[1];
@@ -39,8 +39,6 @@ import org.dreamlinx.engine.error.DatabaseException;
  */
 public class OracleDbPackageFunction extends DbFunction {
 
-	private static final String FN_BLOCK = "begin %s %s%s.%s(%s); end;";
-
 	private String packageName;
 
 	public OracleDbPackageFunction(String packageName, String functionName) {
@@ -55,33 +53,6 @@ public class OracleDbPackageFunction extends DbFunction {
 		this.packageName = packageName;
 	}
 
-	@Override
-	public String getFunction()
-	{
-		StringBuilder paramsList = new StringBuilder();
-
-		if (hasParameters()) {
-			for (String name : parameters.keySet()) {
-
-				if (paramsList.length() != 0)
-					paramsList.append(',');
-
-				String fn;
-				if (parametersFn != null && (fn = parametersFn.get(name)) != null) {
-					paramsList.append(fn);
-					paramsList.append("(?)");
-				}
-				else
-					paramsList.append('?');
-			}
-		}
-
-		return String.format(FN_BLOCK,
-			(hasOuput() ? "? := " : ""),
-			packageName, functionName,
-			paramsList.toString());
-	}
-
 	public String getPackageName()
 	{
 		return packageName;
@@ -91,6 +62,21 @@ public class OracleDbPackageFunction extends DbFunction {
 	// Internal
 	//
 
+	@Override
+	protected String compile()
+	{
+		StringBuilder fn = new StringBuilder(packageName.length() + functionName.length()
+			+ 24 + 4 * parameters.size());
+		fn.append("begin ");
+		if (hasOuput())
+			fn.append("? := ");
+
+		fn.append(packageName).append('.').append(functionName).append('(');
+		appendParameters(fn);
+
+		return fn.append("); end;").toString();
+	}
+
 	@Override
 	protected void createArrays(Connection conn) throws DatabaseException
 	{
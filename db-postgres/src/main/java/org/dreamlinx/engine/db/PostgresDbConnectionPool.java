@@ -21,12 +21,15 @@
 package org.dreamlinx.engine.db;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 
 import org.apache.log4j.Logger;
 import org.dreamlinx.engine.core.Log;
 import org.dreamlinx.engine.error.DatabaseException;
 import org.dreamlinx.engine.error.InitializationException;
+import org.postgresql.PGConnection;
 import org.postgresql.ds.PGPoolingDataSource;
 
 /**
@@ -67,11 +70,14 @@ public final class PostgresDbConnectionPool extends DbConnectionPool {
 	@Override
 	public void shutdown() throws DatabaseException
 	{
+		if (statementCache != null)
+			statementCache.clear();
+
 		connPool.close();
 	}
 
 	@Override
-	public final Connection open() throws DatabaseException
+	protected Connection acquire() throws DatabaseException
 	{
 		if (connPool == null)
 			throw new InitializationException(PostgresDbConnectionPool.class);
@@ -86,4 +92,33 @@ public final class PostgresDbConnectionPool extends DbConnectionPool {
 			throw new DatabaseException(e);
 		}
 	}
+
+	/**
+	 * The statements of the pooled connections are closed with them, so they
+	 * are cached on the physical connection of the driver.
+	 */
+	@Override
+	protected Connection physical(Connection connection) throws SQLException
+	{
+		return (Connection) connection.unwrap(PGConnection.class);
+	}
+
+	/**
+	 * The driver reads the rows through a server-side portal only when the
+	 * fetch size is set on a forward only statement and the connection is
+	 * not in autocommit; otherwise the whole result is loaded in memory.
+	 */
+	@Override
+	public void cursor(Statement statement, int fetchSize) throws SQLException
+	{
+		Connection conn = statement.getConnection();
+		if (conn.getAutoCommit())
+			conn.setAutoCommit(false);
+
+		if (statement.getResultSetType() != ResultSet.TYPE_FORWARD_ONLY)
+			logger.warn(String.format("Statement is not forward only: "
+				+ "the rows of fetch size %d will not be read by cursor.", fetchSize));
+
+		statement.setFetchSize(fetchSize);
+	}
 }